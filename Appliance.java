@@ -12,7 +12,9 @@ public class Appliance extends Component{
      */
     @Override
     public void engage(){
-        Reporter.report(this,Reporter.Msg.ENGAGING);
+        if(Reporter.enabled(Reporter.Msg.ENGAGING)){
+            Reporter.report(this,Reporter.Msg.ENGAGING);
+        }
         this.changeSwitch(true);
         if(this.turned_on){
             this.turnOn();
@@ -26,8 +28,21 @@ public class Appliance extends Component{
      * @param rate The rate of the appliance
      */
     public Appliance(String name, Component source, int rate) {
-        super(name, source);
-        this.getSource().attach(this);
+        this(name, source, rate, true);
+    }
+
+    /**
+     * Constructor of an appliance that may be created and attached to its
+     * source without reporting it, as when loading a snapshot.
+     * @param report Whether to report it.
+     */
+    Appliance(String name, Component source, int rate, boolean report) {
+        super(name, source, report);
+        if(report){
+            this.getSource().attach(this);
+        }else{
+            this.getSource().addLoad(this);
+        }
         this.rate = rate;
         this.turned_on = false;
     }
@@ -40,15 +55,17 @@ public class Appliance extends Component{
     }
 
     /**
-     * If the source is engaged and the appliance's switch is on, change draw.
+     * If the source is engaged and the appliance's switch is on, change draw unless it is already drawing.
      * If the source is engaged and the appliance's switch is not on, notify the user that it is turned on, and
      * change draw.
      * If the source is not on, and this method is called, only turn the switch on.
      */
     public void turnOn(){
         if(this.getSource().engaged() && this.turned_on){
-            this.changeDraw(this.rate);}
-        else if(!this.turned_on && this.getSource().engaged()){
+            if(this.getOwnDraw() == 0){
+                this.changeDraw(this.rate);
+            }
+        }else if(!this.turned_on && this.getSource().engaged()){
             this.turned_on = true;
             Reporter.report(this,Reporter.Msg.SWITCHING_ON);
             this.changeDraw(this.rate);
@@ -58,26 +75,59 @@ public class Appliance extends Component{
     }
 
     /**
-     * Notify the user that the appliance is turning off, and if the source is engaged, change draw.
+     * Put the switch where a transaction wants it. The switch is reported the
+     * same way as turnOn and turnOff do, and the own draw is set to match,
+     * but the change is left for the transaction to pass on.
+     * @param on Whether the switch ends up on.
+     * @return the change in the draw of the appliance.
+     */
+    int switchTo(boolean on){
+        if(on && !this.turned_on && this.getSource().engaged()){
+            Reporter.report(this,Reporter.Msg.SWITCHING_ON);
+        }else if(!on){
+            Reporter.report(this,Reporter.Msg.SWITCHING_OFF);
+        }
+        this.turned_on = on;
+        int own = on && this.getSource().engaged() ? this.rate : 0;
+        int delta = own - this.getOwnDraw();
+        this.setOwnDraw(own);
+        return delta;
+    }
+
+    /**
+     * Notify the user that the appliance is turning off, and give back its draw if it was drawing.
      */
     public void turnOff(){
         Reporter.report(this,Reporter.Msg.SWITCHING_OFF);
         this.turned_on = false;
-        if(this.getSource().engaged()){
-            this.changeDraw(-this.rate);
+        if(this.getOwnDraw() != 0){
+            this.changeDraw(-this.getOwnDraw());
         }
     }
 
 
     /**
-     * Notify the user that it is disengaging. Only change draw when the switch is on.
+     * Notify the user that it is disengaging. Only change draw when it is actually drawing;
+     * the switch keeps its position for when the power comes back.
      */
     @Override
     public void disengage(){
-        Reporter.report(this,Reporter.Msg.DISENGAGING);
-        if(this.turned_on = true){
-            this.changeDraw(-this.rate);
+        if(Reporter.enabled(Reporter.Msg.DISENGAGING)){
+            Reporter.report(this,Reporter.Msg.DISENGAGING);
         }
+        if(this.getOwnDraw() != 0){
+            this.changeDraw(-this.getOwnDraw());
+        }
+    }
+
+    @Override
+    void restoreSwitch(boolean on){
+        this.turned_on = on;
+    }
+
+    @Override
+    Reporter.Kind getKind(){
+        return Reporter.Kind.APPLIANCE;
     }
 
     @Override
@@ -0,0 +1,193 @@
+package components;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An EventSink that copies events into a lock-free ring buffer and lets a
+ * background writer thread format and print them in batches.
+ * <br><br>
+ * Producers claim a slot with one atomic increment and publish it by
+ * writing the slot's sequence number. The single writer thread drains
+ * published slots in order, so the output is exactly what the
+ * synchronous sink would have printed, only later.
+ *
+ * @author Yutong Wu
+ */
+public class AsyncEventSink implements EventSink {
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = 100_000L;
+
+    private final PrintStream out;
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLongArray published;
+
+    private final Reporter.Msg[] msg;
+    private final Reporter.Kind[] kind;
+    private final String[] name;
+    private final boolean[] on;
+    private final int[] draw;
+    private final int[] aux;
+    private final Reporter.Kind[] otherKind;
+    private final String[] otherName;
+    private final boolean[] otherOn;
+    private final int[] otherDraw;
+    private final int[] otherAux;
+    private final int[] param;
+    private final boolean[] hasParam;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Create a sink that writes to System.out with the default capacity.
+     */
+    public AsyncEventSink(){
+        this(System.out, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a sink and start its writer thread.
+     * @param out where the formatted events go.
+     * @param capacity number of slots, rounded up to a power of two.
+     */
+    public AsyncEventSink(PrintStream out, int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.out = out;
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++){
+            this.published.set(i, -1L);
+        }
+        this.msg = new Reporter.Msg[size];
+        this.kind = new Reporter.Kind[size];
+        this.name = new String[size];
+        this.on = new boolean[size];
+        this.draw = new int[size];
+        this.aux = new int[size];
+        this.otherKind = new Reporter.Kind[size];
+        this.otherName = new String[size];
+        this.otherOn = new boolean[size];
+        this.otherDraw = new int[size];
+        this.otherAux = new int[size];
+        this.param = new int[size];
+        this.hasParam = new boolean[size];
+        this.writer = new Thread(this::drainLoop, "overload-event-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Copy the event into the next free slot. Spins while the buffer is full.
+     * @param event the event to take in.
+     */
+    @Override
+    public void publish(CircuitEvent event){
+        long seq = this.claimed.getAndIncrement();
+        while(seq - this.written.get() > this.mask){
+            LockSupport.unpark(this.writer);
+            Thread.onSpinWait();
+        }
+        int i = (int) (seq & this.mask);
+        this.msg[i] = event.msg;
+        this.kind[i] = event.kind;
+        this.name[i] = event.name;
+        this.on[i] = event.on;
+        this.draw[i] = event.draw;
+        this.aux[i] = event.aux;
+        this.otherKind[i] = event.otherKind;
+        this.otherName[i] = event.otherName;
+        this.otherOn[i] = event.otherOn;
+        this.otherDraw[i] = event.otherDraw;
+        this.otherAux[i] = event.otherAux;
+        this.param[i] = event.param;
+        this.hasParam[i] = event.hasParam;
+        this.published.lazySet(i, seq);
+    }
+
+    /**
+     * Wait until the writer has printed everything claimed so far.
+     */
+    @Override
+    public void flush(){
+        long target = this.claimed.get();
+        while(this.written.get() < target && this.writer.isAlive()){
+            LockSupport.unpark(this.writer);
+            Thread.onSpinWait();
+        }
+        this.out.flush();
+    }
+
+    /**
+     * Flush and stop the writer thread.
+     */
+    @Override
+    public void close(){
+        flush();
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try{
+            this.writer.join();
+        }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of the writer thread: format whatever is published, in order,
+     * one batch at a time, and print each batch with a single call.
+     */
+    private void drainLoop(){
+        StringBuilder batch = new StringBuilder(MAX_BATCH * 64);
+        CircuitEvent event = new CircuitEvent();
+        String newline = System.lineSeparator();
+        long next = 0;
+        while(this.running || next < this.claimed.get()){
+            int count = 0;
+            while(count < MAX_BATCH){
+                int i = (int) (next & this.mask);
+                if(this.published.get(i) != next){
+                    break;
+                }
+                load(i, event);
+                Reporter.format(event, batch);
+                batch.append(newline);
+                next++;
+                count++;
+            }
+            if(count > 0){
+                this.out.print(batch);
+                this.out.flush();
+                batch.setLength(0);
+                this.written.set(next);
+            }else{
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Copy a slot back into the writer's private event object.
+     */
+    private void load(int i, CircuitEvent event){
+        event.msg = this.msg[i];
+        event.kind = this.kind[i];
+        event.name = this.name[i];
+        event.on = this.on[i];
+        event.draw = this.draw[i];
+        event.aux = this.aux[i];
+        event.otherKind = this.otherKind[i];
+        event.otherName = this.otherName[i];
+        event.otherOn = this.otherOn[i];
+        event.otherDraw = this.otherDraw[i];
+        event.otherAux = this.otherAux[i];
+        event.param = this.param[i];
+        event.hasParam = this.hasParam[i];
+    }
+}
@@ -0,0 +1,171 @@
+package components;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Runs a script of user commands without prompting for them.
+ * <br><br>
+ * The script is streamed through a fixed size buffer and every line is
+ * split by the same tokenizer as the configuration file. The command
+ * word itself is matched on its bytes and never turned into a String.
+ * A line that cannot be carried out, or fails on a file it reads or
+ * writes, is reported with its line number and skipped; the rest of the
+ * script still runs. A "quit" line ends the script early.
+ *
+ * @author Yutong Wu
+ */
+public class BatchRunner {
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final String[] KEYWORDS = {"toggle", "display", "connect", "switch", "save", "load", "study", "risk", "headroom", "canconnect", "stats", "undo", "redo", "diff", "why", "history", "quit"};
+    private static final byte[][] KEYWORD_BYTES = new byte[KEYWORDS.length][];
+    private static final String QUIT = "quit";
+
+    static {
+        for(int k = 0; k < KEYWORDS.length; k++){
+            KEYWORD_BYTES[k] = KEYWORDS[k].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final LineTokenizer tokenizer = new LineTokenizer();
+    private String[] words = new String[8];
+    private Circuit circuit;
+    private boolean quit;
+    private long commands;
+    private long rejected;
+    private long nanos;
+
+    /**
+     * Get ready to run commands on a circuit.
+     * @param circuit The circuit, already started up.
+     */
+    public BatchRunner(Circuit circuit){
+        this.circuit = circuit;
+    }
+
+    /**
+     * @return The circuit the commands ran on; a load replaces it.
+     */
+    public Circuit getCircuit(){
+        return this.circuit;
+    }
+
+    /**
+     * @return The number of commands run, rejected ones included.
+     */
+    public long getCommands(){
+        return this.commands;
+    }
+
+    /**
+     * @return The number of commands that could not be carried out.
+     */
+    public long getRejected(){
+        return this.rejected;
+    }
+
+    /**
+     * @return How long running the commands took, in milliseconds.
+     */
+    public double getMillis(){
+        return this.nanos / 1e6;
+    }
+
+    /**
+     * @return How many commands per second were run.
+     */
+    public double getCommandsPerSecond(){
+        return this.nanos == 0 ? 0 : this.commands * 1e9 / this.nanos;
+    }
+
+    /**
+     * Run every command of a script, in order.
+     * @param channel Where the script comes from.
+     * @param where Name of the script, used in error messages.
+     * @throws IOException if the script cannot be read.
+     */
+    public void run(ReadableByteChannel channel, String where) throws IOException{
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        int lineNumber = 0;
+        int scanFrom = 0;
+        while(!this.quit){
+            int read = channel.read(buffer);
+            int filled = buffer.position();
+            int lineFrom = 0;
+            for(int i = scanFrom; i < filled && !this.quit; i++){
+                if(buffer.get(i) == '\n'){
+                    this.runLine(buffer, lineFrom, i, where, ++lineNumber);
+                    lineFrom = i + 1;
+                }
+            }
+            if(read < 0){
+                if(lineFrom < filled && !this.quit){
+                    this.runLine(buffer, lineFrom, filled, where, ++lineNumber);
+                }
+                break;
+            }
+            buffer.limit(filled).position(lineFrom);
+            buffer.compact();
+            scanFrom = buffer.position();
+            if(!buffer.hasRemaining()){
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+        Reporter.flush();
+        this.nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Split one line into words and carry it out. Blank lines are skipped.
+     */
+    private void runLine(ByteBuffer buffer, int from, int to, String where, int lineNumber){
+        LineTokenizer tok = this.tokenizer;
+        tok.reset(buffer, from, to);
+        if(!tok.next()){
+            return;
+        }
+        int count = 0;
+        this.words[count++] = keyword(tok);
+        while(tok.next()){
+            if(count == this.words.length){
+                this.words = Arrays.copyOf(this.words, count * 2);
+            }
+            this.words[count++] = tok.text();
+        }
+        if(count == 1 && this.words[0].equals(QUIT)){
+            this.quit = true;
+            return;
+        }
+        this.commands++;
+        try{
+            this.circuit = Overload.execute(this.circuit, this.words, count);
+        }catch(CommandException ce){
+            this.rejected++;
+            Reporter.commandError(where + ":" + lineNumber, ce.getErrorNumber(), ce.getArguments());
+        }catch(UncheckedIOException uioe){
+            this.rejected++;
+            Reporter.commandError(where + ":" + lineNumber, Overload.FILE_NOT_FOUND, uioe.getCause().getMessage());
+        }
+    }
+
+    /**
+     * @return The shared String of the current word if it is a command
+     *         word, a new String otherwise.
+     */
+    private static String keyword(LineTokenizer tok){
+        for(int k = 0; k < KEYWORDS.length; k++){
+            if(tok.is(KEYWORD_BYTES[k])){
+                return KEYWORDS[k];
+            }
+        }
+        return tok.text();
+    }
+}
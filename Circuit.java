@@ -0,0 +1,126 @@
+package components;
+
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * The operations Overload needs from a circuit, so that it can run on
+ * either the Component objects or the compact array model.
+ *
+ * @author Yutong Wu
+ */
+public interface Circuit {
+
+    /**
+     * @param name Name of a component.
+     * @return Whether the circuit has a component with that name.
+     */
+    boolean contains(String name);
+
+    /**
+     * @return The number of components in the circuit.
+     */
+    int size();
+
+    /**
+     * Add a power source, the root of a main circuit.
+     * @param name Name of the power source.
+     */
+    void addPowerSource(String name);
+
+    /**
+     * Add a circuit breaker.
+     * @param name Name of the circuit breaker.
+     * @param source Name of its source.
+     * @param limit Limit of the circuit breaker.
+     */
+    void addCircuitBreaker(String name, String source, int limit);
+
+    /**
+     * Add an outlet.
+     * @param name Name of the outlet.
+     * @param source Name of its source.
+     */
+    void addOutlet(String name, String source);
+
+    /**
+     * Add an appliance. This is also how a new appliance is connected.
+     * @param name Name of the appliance.
+     * @param source Name of its source.
+     * @param rating Rating of the appliance.
+     * @throws CommandException if there is no such source.
+     */
+    void addAppliance(String name, String source, int rating);
+
+    /**
+     * Engage every power source, and with them the rest of the circuit.
+     */
+    void initialize();
+
+    /**
+     * Switch a circuit breaker or an appliance on if it is off, off if it is on.
+     * @param name Name of the component.
+     * @throws CommandException if there is no such switchable component.
+     */
+    void toggle(String name);
+
+    /**
+     * Find the components whose names match a pattern, where '*' matches
+     * any run of characters and '?' any one character; see ComponentRegistry.
+     * @param pattern A name, possibly with wildcards.
+     * @param kinds The kinds of component to keep.
+     * @return The names found, in name order.
+     */
+    List<String> find(String pattern, EnumSet<Reporter.Kind> kinds);
+
+    /**
+     * Carry out the operations of a transaction together; see Transaction.
+     * @param transaction The operations.
+     * @throws CommandException if an operation names an unknown appliance
+     *                          or source; nothing is done in that case.
+     */
+    void commit(Transaction transaction);
+
+    /**
+     * Print every main circuit as a tree.
+     */
+    void display();
+
+    /**
+     * Print one component and its loads as a tree.
+     * @param name Name of the component.
+     * @param levels How many levels of loads to show; 0 shows the component alone.
+     * @throws CommandException if there is no such component.
+     */
+    void display(String name, int levels);
+
+    /**
+     * @return The names of the power sources, in the order display shows them.
+     */
+    List<String> getPowerSources();
+
+    /**
+     * @param name Name of a component.
+     * @return Its draw, including everything below it.
+     * @throws CommandException if there is no such component.
+     */
+    int getDraw(String name);
+
+    /**
+     * @return How many times a circuit breaker has blown since the circuit was built.
+     */
+    long getTrips();
+
+    /**
+     * Tell how much more draw a component could take, for instance from a
+     * new appliance, before a circuit breaker between it and its power
+     * source blows. Nothing is changed or reported.
+     * @param name Name of a component.
+     * @return The smallest limit minus draw of the breakers that are on,
+     *         on the way up to the first one that is off, or
+     *         Integer.MAX_VALUE if there are none or if the component is
+     *         not engaged, since a new appliance there would not draw.
+     * @throws CommandException if there is no such component.
+     */
+    int headroom(String name);
+}
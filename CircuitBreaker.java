@@ -3,6 +3,7 @@ package components;
 public class CircuitBreaker extends Component {
     private int limit;
     private boolean check_turned_on;
+    private int trips;
 
     /**
      * Constructor of a circuit breaker.
@@ -11,9 +12,22 @@ public class CircuitBreaker extends Component {
      * @param limit Limit of the circuit breaker.
      */
     public CircuitBreaker(String name, Component source, int limit) {
-        super(name, source);
+        this(name, source, limit, true);
+    }
+
+    /**
+     * Constructor of a circuit breaker that may be created and attached
+     * to its source without reporting it, as when loading a snapshot.
+     * @param report Whether to report it.
+     */
+    CircuitBreaker(String name, Component source, int limit, boolean report) {
+        super(name, source, report);
         this.limit = 0;
-        this.getSource().attach(this);
+        if(report){
+            this.getSource().attach(this);
+        }else{
+            this.getSource().addLoad(this);
+        }
         this.check_turned_on = false;
         this.limit = limit;
     }
@@ -24,7 +38,9 @@ public class CircuitBreaker extends Component {
     @Override
     public void engage(){
         this.changeSwitch(true);
-        Reporter.report(this, Reporter.Msg.ENGAGING);
+        if(Reporter.enabled(Reporter.Msg.ENGAGING)){
+            Reporter.report(this, Reporter.Msg.ENGAGING);
+        }
     }
 
     /**
@@ -34,47 +50,143 @@ public class CircuitBreaker extends Component {
         return this.limit;
     }
 
+    /**
+     * Returns how many times the circuit breaker has blown.
+     */
+    public int getTrips() {
+        return this.trips;
+    }
+
     /**
      * Notify the user that the circuit breaker is turining on, also engage its load.
+     * Any draw the loads had while the breaker was off now reaches the source.
+     * If the breaker blows while the loads are engaged, the rest stay disengaged.
+     * In parallel mode every load is engaged first and the limit is checked
+     * once, against the total.
      */
     public void turnOn(){
         Reporter.report(this,Reporter.Msg.SWITCHING_ON);
+        int held = this.check_turned_on ? 0 : this.getDraw();
         this.check_turned_on = true;
-        this.engageLoads();
+        long cause = Trace.enter(Trace.SWITCH_ON, this.getName(), held, this.limit);
+        try{
+            if(held > this.limit){
+                this.trip(0);
+                return;
+            }
+            if(this.getSource() != null){
+                this.getSource().propagateDraw(held);
+            }
+            if(ParallelPower.isEnabled()){
+                this.engageLoads();
+                return;
+            }
+            for(Component c: this.getLoads()){
+                if(!this.check_turned_on){
+                    break;
+                }
+                c.engage();
+            }
+        }finally{
+            Trace.leave(cause);
+        }
     }
 
     /**
-     * Draw change to its source.
-     * Also checks whether the change drawed on itself exceeds the limit. If so, show
+     * Take the change in draw of the loads.
+     * Also checks whether the new draw exceeds the limit. If so, show
      * the blown up message, and disengage itself and all of its load.
+     * The change is only reported and passed on to the source while the
+     * breaker is on; while it is off, the breaker just holds it.
      * @param delta the change to be drawn.
+     * @return the source, or null if the change stops here.
      */
     @Override
-    public void changeDraw(int delta){
+    protected Component absorbDraw(int delta){
         this.setDraw(delta);
-        Reporter.report(this,Reporter.Msg.DRAW_CHANGE,delta);
+        if(!this.check_turned_on){
+            return null;
+        }
+        if(Reporter.enabled(Reporter.Msg.DRAW_CHANGE)){
+            Reporter.report(this,Reporter.Msg.DRAW_CHANGE,delta);
+        }
         if(this.getDraw()>this.limit){
-            Reporter.report(this, Reporter.Msg.BLOWN,this.getDraw());
-            this.turnOff();
-            return;
+            this.trip(this.getDraw() - delta);
+            return null;
         }
-        if(this.getSource() != null) {
-            this.getSource().changeDraw(delta);
+        return this.getSource();
+    }
+
+    /**
+     * Take the net change of a transaction, and check the limit once against
+     * the final draw. If the breaker blows, the sources lose everything they
+     * were getting through it before the transaction. A breaker that is
+     * off just holds the change.
+     * @param delta the net change in the draw of the loads.
+     * @return the change to pass on to the source.
+     */
+    @Override
+    int absorbNet(int delta){
+        int before = this.getDraw();
+        if(!this.check_turned_on){
+            this.setDraw(delta);
+            return 0;
+        }
+        super.absorbNet(delta);
+        if(this.getDraw()>this.limit){
+            this.trip(0);
+            return -before;
         }
+        return delta;
+    }
 
+    /**
+     * The draw is over the limit: show the blown up message and switch off.
+     * Whatever switching off does is traced back to the trip.
+     * @param passedOn the part of the draw that the sources know about.
+     */
+    private void trip(int passedOn){
+        this.trips++;
+        Metrics.trip(this.getName());
+        Reporter.report(this, Reporter.Msg.BLOWN, this.getDraw());
+        long cause = Trace.enter(Trace.TRIP, this.getName(), this.getDraw(), this.limit);
+        this.shutOff(passedOn);
+        Trace.leave(cause);
     }
 
     /**
      * Turn off the circuit breaker.
      */
     public void turnOff(){
+        this.shutOff(this.check_turned_on ? this.getDraw() : 0);
+    }
+
+    /**
+     * Switch the breaker off: take what the sources were getting through it
+     * away from them, then disengage the loads. The loads give back their own
+     * draw on the way, which brings the draw of this breaker down to 0 without
+     * going any further up.
+     * @param passedOn the part of the draw that the sources know about.
+     */
+    private void shutOff(int passedOn){
         Reporter.report(this, Reporter.Msg.SWITCHING_OFF);
         this.check_turned_on = false;
-        this.getSource().changeDraw(-this.getSource().getDraw());
-        this.setDraw(-this.getDraw());
+        if(this.getSource() != null){
+            this.getSource().propagateDraw(-passedOn);
+        }
         this.disengageLoads();
     }
 
+    @Override
+    void restoreSwitch(boolean on){
+        this.check_turned_on = on;
+    }
+
+    @Override
+    Reporter.Kind getKind(){
+        return Reporter.Kind.CIRCUIT_BREAKER;
+    }
+
     @Override
     public String toString(){
         if(this.engaged()){
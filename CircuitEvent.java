@@ -0,0 +1,193 @@
+package components;
+
+/**
+ * A structured simulation event: the Msg key, up to two identified
+ * Components and an optional numerical parameter. Each event also carries
+ * the id of its (first) component in its circuit and the sequence number
+ * the EventBus gave it.
+ * <br><br>
+ * Instances are reused. The Reporter fills one event per thread and hands
+ * it to the current EventSink, so a sink that keeps an event around for
+ * later must copy the fields it needs before publish returns.
+ *
+ * @author Yutong Wu
+ */
+public final class CircuitEvent {
+    Reporter.Msg msg;
+    long sequence;
+
+    int id;
+    Component component;
+    CircuitModel model;
+
+    Reporter.Kind kind;
+    String name;
+    boolean on;
+    int draw;
+    int aux;
+
+    Reporter.Kind otherKind;
+    String otherName;
+    boolean otherOn;
+    int otherDraw;
+    int otherAux;
+
+    int param;
+    boolean hasParam;
+
+    /**
+     * Fill in the identity of the first Component from its current state.
+     * @param comp the Component involved
+     */
+    void first(Component comp){
+        this.id = comp.getId();
+        this.component = comp;
+        this.model = null;
+        this.kind = comp.getKind();
+        this.name = comp.getName();
+        this.on = comp.isSwitchOn();
+        this.draw = comp.getDraw();
+        this.aux = Reporter.auxValue(comp);
+    }
+
+    /**
+     * Fill in the identity of the second Component from its current state.
+     * @param comp the Component involved
+     */
+    void second(Component comp){
+        this.otherKind = comp.getKind();
+        this.otherName = comp.getName();
+        this.otherOn = comp.isSwitchOn();
+        this.otherDraw = comp.getDraw();
+        this.otherAux = Reporter.auxValue(comp);
+    }
+
+    /**
+     * Fill in the identity of the first component from a compact model.
+     * @param model the model holding the component
+     * @param id the node id of the component
+     */
+    void first(CircuitModel model, int id){
+        this.id = id;
+        this.component = null;
+        this.model = model;
+        this.kind = model.getKind(id);
+        this.name = model.getName(id);
+        this.on = model.isSwitchOn(id);
+        this.draw = model.getDraw(id);
+        this.aux = model.getValue(id);
+    }
+
+    /**
+     * Fill in the identity of the second component from a compact model.
+     * @param model the model holding the component
+     * @param id the node id of the component
+     */
+    void second(CircuitModel model, int id){
+        this.otherKind = model.getKind(id);
+        this.otherName = model.getName(id);
+        this.otherOn = model.isSwitchOn(id);
+        this.otherDraw = model.getDraw(id);
+        this.otherAux = model.getValue(id);
+    }
+
+    /**
+     * Make this event a copy of another one.
+     * @param from the event to copy
+     */
+    void copy(CircuitEvent from){
+        this.msg = from.msg;
+        this.sequence = from.sequence;
+        this.id = from.id;
+        this.component = from.component;
+        this.model = from.model;
+        this.kind = from.kind;
+        this.name = from.name;
+        this.on = from.on;
+        this.draw = from.draw;
+        this.aux = from.aux;
+        this.otherKind = from.otherKind;
+        this.otherName = from.otherName;
+        this.otherOn = from.otherOn;
+        this.otherDraw = from.otherDraw;
+        this.otherAux = from.otherAux;
+        this.param = from.param;
+        this.hasParam = from.hasParam;
+    }
+
+    /**
+     * @return the event key.
+     */
+    public Reporter.Msg getMsg(){
+        return this.msg;
+    }
+
+    /**
+     * @return the number of the event: events are numbered from 1 in the
+     *         order the EventBus hands them out.
+     */
+    public long getSequence(){
+        return this.sequence;
+    }
+
+    /**
+     * @return the id of the (first) Component involved in its circuit,
+     *         or -1 if it is not in a circuit yet.
+     */
+    public int getId(){
+        return this.id;
+    }
+
+    /**
+     * @return the kind of the (first) Component involved.
+     */
+    public Reporter.Kind getKind(){
+        return this.kind;
+    }
+
+    /**
+     * @return the draw of the (first) Component involved when the event
+     *         happened.
+     */
+    public int getDraw(){
+        return this.draw;
+    }
+
+    /**
+     * @return the name of the (first) Component involved.
+     */
+    public String getName(){
+        return this.name;
+    }
+
+    /**
+     * @return the name of the second Component, or null if there is none.
+     */
+    public String getOtherName(){
+        return this.otherName;
+    }
+
+    /**
+     * @return the numerical quantity of interest, 0 if the event has none.
+     */
+    public int getParam(){
+        return this.param;
+    }
+
+    /**
+     * @return whether the event has a numerical quantity of interest.
+     */
+    public boolean hasParam(){
+        return this.hasParam;
+    }
+
+    /**
+     * @return the event as the Reporter would print it.
+     */
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        Reporter.format(this, sb);
+        return sb.toString();
+    }
+}
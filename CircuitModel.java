@@ -0,0 +1,796 @@
+package components;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact Circuit for very large topologies. Instead of one object per
+ * component, every component is a node id and its state lives in primitive
+ * arrays indexed by that id: kind, parent, first child / next sibling,
+ * draw, limit or rating, and bit sets for the engaged, switched-on and
+ * drawing states. Names are interned into dense ids by a ComponentRegistry,
+ * which also keeps the power sources, so node ids are registry ids.
+ * <br><br>
+ * The simulation follows the same rules, and reports the same events,
+ * as PowerSource, CircuitBreaker, Outlet and Appliance.
+ *
+ * @author Yutong Wu
+ */
+public class CircuitModel implements Circuit {
+    public static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final Reporter.Kind[] KINDS = Reporter.Kind.values();
+
+    private final ComponentRegistry registry = new ComponentRegistry();
+    private int count;
+    private long trips;
+
+    private byte[] kind;
+    private int[] parent;
+    private int[] firstChild;
+    private int[] lastChild;
+    private int[] nextSibling;
+    private int[] draw;
+    private int[] value;
+    private long[] engaged;
+    private long[] switchedOn;
+    private long[] drawing;
+    private int[] pending;
+    private final HeadroomCache headroom = new HeadroomCache(new HeadroomCache.Tree(){
+        @Override
+        public int source(int id){
+            return CircuitModel.this.parent[id];
+        }
+
+        @Override
+        public int capacity(int id){
+            if(CircuitModel.this.getKind(id) != Reporter.Kind.CIRCUIT_BREAKER){
+                return HeadroomCache.UNLIMITED;
+            }
+            if(!CircuitModel.this.isSwitchOn(id)){
+                return HeadroomCache.OPEN;
+            }
+            return CircuitModel.this.value[id] - CircuitModel.this.draw[id];
+        }
+
+        @Override
+        public boolean engaged(int id){
+            return CircuitModel.this.isEngaged(id);
+        }
+    });
+
+    /**
+     * Create an empty model.
+     */
+    public CircuitModel(){
+        this.kind = new byte[INITIAL_CAPACITY];
+        this.parent = new int[INITIAL_CAPACITY];
+        this.firstChild = new int[INITIAL_CAPACITY];
+        this.lastChild = new int[INITIAL_CAPACITY];
+        this.nextSibling = new int[INITIAL_CAPACITY];
+        this.draw = new int[INITIAL_CAPACITY];
+        this.value = new int[INITIAL_CAPACITY];
+        this.pending = new int[INITIAL_CAPACITY];
+        this.engaged = new long[1];
+        this.switchedOn = new long[1];
+        this.drawing = new long[1];
+    }
+
+    /**
+     * @return The names and kinds of every node, by node id.
+     */
+    ComponentRegistry registry(){
+        return this.registry;
+    }
+
+    @Override
+    public boolean contains(String name){
+        return this.registry.id(name) != NONE;
+    }
+
+    @Override
+    public int size(){
+        return this.count;
+    }
+
+    /**
+     * @param name Name of a component.
+     * @return Its node id, or NONE if there is no such component.
+     */
+    public int id(String name){
+        return this.registry.id(name);
+    }
+
+    /**
+     * @param id A node id.
+     * @return The name of the component.
+     */
+    public String getName(int id){
+        return this.registry.name(id);
+    }
+
+    /**
+     * @param id A node id.
+     * @return The kind of the component.
+     */
+    public Reporter.Kind getKind(int id){
+        return KINDS[this.kind[id]];
+    }
+
+    /**
+     * @param id A node id.
+     * @return The id of its source, or NONE for a power source.
+     */
+    public int getParent(int id){
+        return this.parent[id];
+    }
+
+    /**
+     * @param id A node id.
+     * @return The draw of the component, including everything below it.
+     */
+    public int getDraw(int id){
+        return this.draw[id];
+    }
+
+    /**
+     * @param id A node id.
+     * @return The limit of a circuit breaker or the rating of an appliance, 0 otherwise.
+     */
+    public int getValue(int id){
+        return this.value[id];
+    }
+
+    /**
+     * @param id A node id.
+     * @return Whether the switch of a circuit breaker or an appliance is on.
+     */
+    public boolean isSwitchOn(int id){
+        return test(this.switchedOn, id);
+    }
+
+    /**
+     * @param id A node id.
+     * @return Whether the component is engaged.
+     */
+    public boolean isEngaged(int id){
+        return test(this.engaged, id);
+    }
+
+    /**
+     * @param id A node id.
+     * @return Whether an appliance is currently drawing its rating.
+     */
+    public boolean isDrawing(int id){
+        return test(this.drawing, id);
+    }
+
+    /**
+     * @param id A node id.
+     * @return The id of its first load, or NONE if it has none.
+     */
+    public int getFirstLoad(int id){
+        return this.firstChild[id];
+    }
+
+    /**
+     * @param id A node id.
+     * @return The id of the next load of the same source, or NONE after the last one.
+     */
+    public int getNextLoad(int id){
+        return this.nextSibling[id];
+    }
+
+    /**
+     * Put an existing node back into an earlier state, without reporting
+     * or propagating anything. Used when a command is undone.
+     * @param id The node id.
+     * @param engaged Whether the component is engaged.
+     * @param on Whether its switch is on.
+     * @param draw Its draw, including everything below it.
+     * @param isDrawing Whether an appliance draws its rating.
+     */
+    void restore(int id, boolean engaged, boolean on, int draw, boolean isDrawing){
+        this.headroom.invalidate();
+        this.draw[id] = draw;
+        set(this.engaged, id, engaged);
+        set(this.switchedOn, id, on);
+        set(this.drawing, id, isDrawing);
+    }
+
+    /**
+     * Add a node in a saved state, without reporting or propagating
+     * anything. Used when loading a snapshot; sources come before their loads.
+     * @param k Kind of the component.
+     * @param name Name of the component.
+     * @param source Node id of its source, or NONE for a power source.
+     * @param value Its limit or rating.
+     * @param engaged Whether it is engaged.
+     * @param on Whether its switch is on.
+     * @param draw Its draw, including everything below it.
+     * @param isDrawing Whether an appliance is drawing its rating.
+     * @return The node id.
+     */
+    int restore(Reporter.Kind k, String name, int source, int value,
+                boolean engaged, boolean on, int draw, boolean isDrawing){
+        if(this.count == this.kind.length){
+            this.grow();
+        }
+        int id = this.count++;
+        this.registry.add(name, k);
+        this.kind[id] = (byte) k.ordinal();
+        this.parent[id] = source;
+        this.firstChild[id] = NONE;
+        this.lastChild[id] = NONE;
+        this.nextSibling[id] = NONE;
+        this.value[id] = value;
+        this.draw[id] = draw;
+        set(this.engaged, id, engaged);
+        set(this.switchedOn, id, on);
+        set(this.drawing, id, isDrawing);
+        if(source == NONE){
+            return id;
+        }
+        if(this.firstChild[source] == NONE){
+            this.firstChild[source] = id;
+            this.lastChild[source] = id;
+        }else{
+            this.nextSibling[this.lastChild[source]] = id;
+            this.lastChild[source] = id;
+        }
+        return id;
+    }
+
+    @Override
+    public void addPowerSource(String name){
+        this.create(Reporter.Kind.POWER_SOURCE, name, NONE);
+    }
+
+    @Override
+    public void addCircuitBreaker(String name, String source, int limit){
+        int id = this.create(Reporter.Kind.CIRCUIT_BREAKER, name, this.source(source));
+        this.attach(this.parent[id], id);
+        this.value[id] = limit;
+    }
+
+    @Override
+    public void addOutlet(String name, String source){
+        int id = this.create(Reporter.Kind.OUTLET, name, this.source(source));
+        this.attach(this.parent[id], id);
+    }
+
+    @Override
+    public void addAppliance(String name, String source, int rating){
+        int id = this.create(Reporter.Kind.APPLIANCE, name, this.source(source));
+        this.attach(this.parent[id], id);
+        this.value[id] = rating;
+    }
+
+    @Override
+    public void initialize(){
+        this.headroom.invalidate();
+        for(int r = 0; r < this.registry.rootCount(); r++){
+            int root = this.registry.root(r);
+            Reporter.flush();
+            System.out.println(this.describe(root) + ": powering up");
+            this.engage(root);
+        }
+    }
+
+    @Override
+    public void toggle(String name){
+        this.headroom.invalidate();
+        int id = this.id(name);
+        Reporter.Kind k = id == NONE ? null : this.getKind(id);
+        if(k == Reporter.Kind.CIRCUIT_BREAKER){
+            if(!this.isSwitchOn(id)){
+                this.turnOnBreaker(id);
+            }else{
+                this.turnOffBreaker(id);
+            }
+        }else if(k == Reporter.Kind.APPLIANCE){
+            if(!this.isSwitchOn(id)){
+                this.turnOnAppliance(id);
+            }else{
+                this.turnOffAppliance(id);
+            }
+        }else{
+            throw new CommandException(Overload.UNSWITCHABLE_COMPONENT, name);
+        }
+    }
+
+    /**
+     * Same as ComponentCircuit.commit: switch the appliances, then pass the
+     * net changes up level by level, deepest first. The net change waiting
+     * at each node is kept in the pending array, which is all zeros between
+     * commits, and the nodes waiting at each depth in a list of ids.
+     */
+    @Override
+    public void commit(Transaction transaction){
+        this.headroom.invalidate();
+        HashSet<String> connected = new HashSet<>();
+        for(int i = 0; i < transaction.count; i++){
+            String name = transaction.name[i];
+            if(transaction.op[i] == Transaction.CONNECT){
+                if(this.id(transaction.source[i]) == NONE && !connected.contains(transaction.source[i])){
+                    throw new CommandException(Overload.UNKNOWN_COMPONENT, transaction.source[i]);
+                }
+                connected.add(name);
+            }else{
+                int id = this.id(name);
+                if((id == NONE || this.getKind(id) != Reporter.Kind.APPLIANCE) && !connected.contains(name)){
+                    throw new CommandException(Overload.UNSWITCHABLE_COMPONENT, name);
+                }
+            }
+        }
+        LinkedHashMap<String, Boolean> switches = new LinkedHashMap<>();
+        for(int i = 0; i < transaction.count; i++){
+            if(transaction.op[i] == Transaction.CONNECT){
+                this.addAppliance(transaction.name[i], transaction.source[i], transaction.rating[i]);
+            }else{
+                switches.put(transaction.name[i], transaction.op[i] == Transaction.TURN_ON);
+            }
+        }
+        int[][] levels = new int[4][];
+        int[] levelSize = new int[4];
+        for(Map.Entry<String, Boolean> e: switches.entrySet()){
+            int id = this.id(e.getKey());
+            int delta = this.switchTo(id, e.getValue());
+            if(delta != 0){
+                int depth = this.depth(id);
+                if(depth >= levels.length){
+                    levels = Arrays.copyOf(levels, depth * 2);
+                    levelSize = Arrays.copyOf(levelSize, depth * 2);
+                }
+                this.pend(levels, levelSize, depth, id, delta);
+            }
+        }
+        for(int d = levels.length - 1; d >= 0; d--){
+            for(int k = 0; k < levelSize[d]; k++){
+                int id = levels[d][k];
+                int delta = this.pending[id];
+                this.pending[id] = 0;
+                int up = delta == 0 ? 0 : this.absorbNet(id, delta);
+                if(up != 0 && this.parent[id] != NONE){
+                    this.pend(levels, levelSize, d - 1, this.parent[id], up);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void display(){
+        Reporter.flush();
+        for(int r = 0; r < this.registry.rootCount(); r++){
+            this.display(this.registry.root(r), Integer.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public List<String> getPowerSources(){
+        ArrayList<String> names = new ArrayList<>(this.registry.rootCount());
+        for(int r = 0; r < this.registry.rootCount(); r++){
+            names.add(this.registry.name(this.registry.root(r)));
+        }
+        return names;
+    }
+
+    @Override
+    public List<String> find(String pattern, EnumSet<Reporter.Kind> kinds){
+        ArrayList<String> names = new ArrayList<>();
+        for(int id: this.registry.find(pattern)){
+            if(kinds.contains(this.getKind(id))){
+                names.add(this.registry.name(id));
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public int getDraw(String name){
+        int id = this.id(name);
+        if(id == NONE){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        return this.draw[id];
+    }
+
+    @Override
+    public long getTrips(){
+        return this.trips;
+    }
+
+    @Override
+    public int headroom(String name){
+        int id = this.id(name);
+        if(id == NONE){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        return this.headroom.headroom(id);
+    }
+
+    @Override
+    public void display(String name, int levels){
+        int id = this.id(name);
+        if(id == NONE){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        Reporter.flush();
+        this.display(id, levels);
+    }
+
+    /**
+     * Print a node and its loads down to a number of levels, as
+     * Component.display does, with the ids and depths still to print
+     * kept on a stack.
+     */
+    private void display(int id, int levels){
+        TreeWriter out = new TreeWriter();
+        int[] stack = new int[16];
+        int[] depths = new int[16];
+        int top = 0;
+        stack[top++] = id;
+        while(top > 0){
+            top--;
+            int node = stack[top];
+            int depth = depths[top];
+            out.line(depth, this.describe(node));
+            if(depth >= levels){
+                continue;
+            }
+            int first = top;
+            for(int c = this.firstChild[node]; c != NONE; c = this.nextSibling[c]){
+                if(top == stack.length){
+                    stack = Arrays.copyOf(stack, top * 2);
+                    depths = Arrays.copyOf(depths, top * 2);
+                }
+                stack[top] = c;
+                depths[top++] = depth + 1;
+            }
+            for(int i = first, j = top - 1; i < j; i++, j--){
+                int t = stack[i];
+                stack[i] = stack[j];
+                stack[j] = t;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return The same text as the toString of the matching Component class.
+     */
+    private String describe(int id){
+        switch(this.getKind(id)){
+            case POWER_SOURCE:
+                return "PowerSource" + this.getName(id) + "(draw " + this.draw[id] + ")";
+            case CIRCUIT_BREAKER:
+                return "CircuitBreaker " + this.getName(id) + (this.isEngaged(id) ? "(on" : "(off")
+                        + "; draw" + this.draw[id] + "; " + this.value[id] + ")";
+            case OUTLET:
+                return "Outlet " + this.getName(id) + (this.isEngaged(id) ? "(on" : "(off")
+                        + "; draw" + this.draw[id] + ")";
+            default:
+                if(this.isEngaged(id)){
+                    return "Appliance" + this.getName(id) + "(on; draw " + this.value[id] + ")";
+                }
+                return "Appliance " + this.getName(id) + "(off; rating " + this.value[id] + ")";
+        }
+    }
+
+    /**
+     * Allocate a node and report its creation, like the Component constructor.
+     */
+    private int create(Reporter.Kind k, String name, int source){
+        if(this.count == this.kind.length){
+            this.grow();
+        }
+        int id = this.count++;
+        this.registry.add(name, k);
+        this.kind[id] = (byte) k.ordinal();
+        this.parent[id] = source;
+        this.firstChild[id] = NONE;
+        this.lastChild[id] = NONE;
+        this.nextSibling[id] = NONE;
+        if(Reporter.enabled(Reporter.Msg.CREATING)){
+            Reporter.report(this, id, Reporter.Msg.CREATING);
+        }
+        return id;
+    }
+
+    /**
+     * Add a load to a source, engaging it if the source is engaged.
+     */
+    private void attach(int source, int load){
+        if(this.isEngaged(source)){
+            this.engage(load);
+        }
+        if(this.firstChild[source] == NONE){
+            this.firstChild[source] = load;
+        }else{
+            this.nextSibling[this.lastChild[source]] = load;
+        }
+        this.lastChild[source] = load;
+        if(Reporter.enabled(Reporter.Msg.ATTACHING)){
+            Reporter.report(this, source, load, Reporter.Msg.ATTACHING);
+        }
+    }
+
+    /**
+     * Engage a node, following the rules of its Component class.
+     */
+    private void engage(int id){
+        Reporter.Kind k = this.getKind(id);
+        if(Reporter.enabled(Reporter.Msg.ENGAGING)){
+            Reporter.report(this, id, Reporter.Msg.ENGAGING);
+        }
+        set(this.engaged, id, true);
+        if(k == Reporter.Kind.APPLIANCE){
+            if(this.isSwitchOn(id)){
+                this.turnOnAppliance(id);
+            }
+        }else if(k != Reporter.Kind.CIRCUIT_BREAKER){
+            this.engageLoads(id);
+        }
+    }
+
+    /**
+     * Disengage a node, following the rules of its Component class.
+     */
+    private void disengage(int id){
+        if(Reporter.enabled(Reporter.Msg.DISENGAGING)){
+            Reporter.report(this, id, Reporter.Msg.DISENGAGING);
+        }
+        Reporter.Kind k = this.getKind(id);
+        if(k == Reporter.Kind.APPLIANCE){
+            if(test(this.drawing, id)){
+                this.changeDraw(id, -this.value[id]);
+            }
+            return;
+        }
+        if(k != Reporter.Kind.POWER_SOURCE){
+            set(this.engaged, id, false);
+        }
+        this.disengageLoads(id);
+    }
+
+    private void engageLoads(int id){
+        for(int c = this.firstChild[id]; c != NONE; c = this.nextSibling[c]){
+            this.engage(c);
+        }
+    }
+
+    private void disengageLoads(int id){
+        for(int c = this.firstChild[id]; c != NONE; c = this.nextSibling[c]){
+            this.disengage(c);
+        }
+    }
+
+    private void turnOnBreaker(int id){
+        Reporter.report(this, id, Reporter.Msg.SWITCHING_ON);
+        int held = this.isSwitchOn(id) ? 0 : this.draw[id];
+        set(this.switchedOn, id, true);
+        long cause = Trace.enter(Trace.SWITCH_ON, this.registry.name(id), held, this.value[id]);
+        if(held > this.value[id]){
+            this.trip(id, 0);
+            Trace.leave(cause);
+            return;
+        }
+        if(this.parent[id] != NONE){
+            this.propagateDraw(this.parent[id], held);
+        }
+        for(int c = this.firstChild[id]; c != NONE && this.isSwitchOn(id); c = this.nextSibling[c]){
+            this.engage(c);
+        }
+        Trace.leave(cause);
+    }
+
+    private void turnOffBreaker(int id){
+        this.shutOff(id, this.isSwitchOn(id) ? this.draw[id] : 0);
+    }
+
+    /**
+     * Switch a breaker off, as CircuitBreaker does.
+     */
+    private void shutOff(int id, int passedOn){
+        Reporter.report(this, id, Reporter.Msg.SWITCHING_OFF);
+        set(this.switchedOn, id, false);
+        if(this.parent[id] != NONE){
+            this.propagateDraw(this.parent[id], -passedOn);
+        }
+        this.disengageLoads(id);
+    }
+
+    private void turnOnAppliance(int id){
+        int source = this.parent[id];
+        boolean on = this.isSwitchOn(id);
+        if(this.isEngaged(source) && on){
+            if(!test(this.drawing, id)){
+                this.changeDraw(id, this.value[id]);
+            }
+        }else if(!on && this.isEngaged(source)){
+            set(this.switchedOn, id, true);
+            Reporter.report(this, id, Reporter.Msg.SWITCHING_ON);
+            this.changeDraw(id, this.value[id]);
+        }else{
+            set(this.switchedOn, id, true);
+        }
+    }
+
+    private void turnOffAppliance(int id){
+        Reporter.report(this, id, Reporter.Msg.SWITCHING_OFF);
+        set(this.switchedOn, id, false);
+        if(test(this.drawing, id)){
+            this.changeDraw(id, -this.value[id]);
+        }
+    }
+
+    /**
+     * Change the draw of an appliance itself and pass it up.
+     */
+    private void changeDraw(int id, int delta){
+        set(this.drawing, id, delta > 0);
+        this.propagateDraw(id, delta);
+    }
+
+    /**
+     * Add delta to the draw of a node and its sources, one level at a time,
+     * stopping at a breaker that is off, which holds it without reporting
+     * it, or blows.
+     */
+    private void propagateDraw(int id, int delta){
+        if(delta == 0){
+            return;
+        }
+        long cause = Trace.enter(Trace.PROPAGATION, this.registry.name(id), delta, 0);
+        int walked = 0;
+        while(id != NONE){
+            walked++;
+            this.draw[id] += delta;
+            boolean breaker = this.kind[id] == Reporter.Kind.CIRCUIT_BREAKER.ordinal();
+            if(breaker && !this.isSwitchOn(id)){
+                break;
+            }
+            if(Reporter.enabled(Reporter.Msg.DRAW_CHANGE)){
+                Reporter.report(this, id, Reporter.Msg.DRAW_CHANGE, delta);
+            }
+            if(breaker && this.draw[id] > this.value[id]){
+                this.trip(id, this.draw[id] - delta);
+                break;
+            }
+            id = this.parent[id];
+        }
+        Metrics.propagation(walked);
+        Trace.leave(cause);
+    }
+
+    /**
+     * A breaker is over its limit: count the trip, here and in the Metrics,
+     * report it and switch the breaker off, as CircuitBreaker.trip does.
+     */
+    private void trip(int id, int passedOn){
+        this.trips++;
+        Metrics.trip(this.registry.name(id));
+        Reporter.report(this, id, Reporter.Msg.BLOWN, this.draw[id]);
+        long cause = Trace.enter(Trace.TRIP, this.registry.name(id), this.draw[id], this.value[id]);
+        this.shutOff(id, passedOn);
+        Trace.leave(cause);
+    }
+
+    /**
+     * Put the switch of an appliance where a transaction wants it, as
+     * Appliance.switchTo does.
+     * @return The change in the draw of the appliance.
+     */
+    private int switchTo(int id, boolean on){
+        boolean powered = this.isEngaged(this.parent[id]);
+        if(on && !this.isSwitchOn(id) && powered){
+            Reporter.report(this, id, Reporter.Msg.SWITCHING_ON);
+        }else if(!on){
+            Reporter.report(this, id, Reporter.Msg.SWITCHING_OFF);
+        }
+        set(this.switchedOn, id, on);
+        int own = on && powered ? this.value[id] : 0;
+        int delta = own - (test(this.drawing, id) ? this.value[id] : 0);
+        set(this.drawing, id, own != 0);
+        return delta;
+    }
+
+    /**
+     * Take the net change of a transaction at one node, as Component.absorbNet
+     * and CircuitBreaker.absorbNet do.
+     * @return The change to pass on to the source.
+     */
+    private int absorbNet(int id, int delta){
+        int before = this.draw[id];
+        this.draw[id] += delta;
+        boolean breaker = this.kind[id] == Reporter.Kind.CIRCUIT_BREAKER.ordinal();
+        if(breaker && !this.isSwitchOn(id)){
+            return 0;
+        }
+        if(Reporter.enabled(Reporter.Msg.DRAW_CHANGE)){
+            Reporter.report(this, id, Reporter.Msg.DRAW_CHANGE, delta);
+        }
+        if(!breaker){
+            return delta;
+        }
+        if(this.draw[id] > this.value[id]){
+            this.trip(id, 0);
+            return -before;
+        }
+        return delta;
+    }
+
+    /**
+     * Add to the net change waiting at a node, listing the node under its
+     * depth the first time.
+     */
+    private void pend(int[][] levels, int[] levelSize, int depth, int id, int delta){
+        if(this.pending[id] == 0){
+            if(levels[depth] == null){
+                levels[depth] = new int[8];
+            }else if(levelSize[depth] == levels[depth].length){
+                levels[depth] = Arrays.copyOf(levels[depth], levelSize[depth] * 2);
+            }
+            levels[depth][levelSize[depth]++] = id;
+        }
+        this.pending[id] += delta;
+    }
+
+    /**
+     * @return How many sources there are above a node.
+     */
+    private int depth(int id){
+        int depth = 0;
+        for(int p = this.parent[id]; p != NONE; p = this.parent[p]){
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Look up the source of a new component.
+     */
+    private int source(String name){
+        int id = this.id(name);
+        if(id == NONE){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        return id;
+    }
+
+    /**
+     * Double the capacity of every per-node array.
+     */
+    private void grow(){
+        int capacity = this.kind.length * 2;
+        this.kind = Arrays.copyOf(this.kind, capacity);
+        this.parent = Arrays.copyOf(this.parent, capacity);
+        this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+        this.lastChild = Arrays.copyOf(this.lastChild, capacity);
+        this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+        this.draw = Arrays.copyOf(this.draw, capacity);
+        this.value = Arrays.copyOf(this.value, capacity);
+        this.pending = Arrays.copyOf(this.pending, capacity);
+        int words = (capacity + 63) >>> 6;
+        this.engaged = Arrays.copyOf(this.engaged, words);
+        this.switchedOn = Arrays.copyOf(this.switchedOn, words);
+        this.drawing = Arrays.copyOf(this.drawing, words);
+    }
+
+    private static boolean test(long[] bits, int id){
+        return (bits[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private static void set(long[] bits, int id, boolean b){
+        if(b){
+            bits[id >>> 6] |= 1L << id;
+        }else{
+            bits[id >>> 6] &= ~(1L << id);
+        }
+    }
+}
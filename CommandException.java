@@ -0,0 +1,41 @@
+package components;
+
+/**
+ * A user command that cannot be carried out. It carries the Overload
+ * error code and the arguments to show, so that the caller decides
+ * whether it is fatal (the interactive prompt) or is reported against
+ * its line and skipped (batch mode).
+ *
+ * @author Yutong Wu
+ */
+public class CommandException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int errNum;
+    private final String[] arguments;
+
+    /**
+     * Create the exception.
+     * @param errNum The Overload error code.
+     * @param arguments The values of interest to print with the error.
+     */
+    public CommandException(int errNum, String... arguments){
+        super("error " + errNum);
+        this.errNum = errNum;
+        this.arguments = arguments;
+    }
+
+    /**
+     * @return The Overload error code.
+     */
+    public int getErrorNumber(){
+        return this.errNum;
+    }
+
+    /**
+     * @return The values of interest to print with the error.
+     */
+    public String[] getArguments(){
+        return this.arguments;
+    }
+}
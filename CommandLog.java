@@ -0,0 +1,480 @@
+package components;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the commands that changed a circuit, kept in a
+ * directory next to checkpoints of the whole circuit, so that a run that
+ * stopped for any reason can be picked up where it was.
+ * <br><br>
+ * Every command that was carried out and changed something (toggle,
+ * connect, switch) is appended as one record: its length, its sequence
+ * number, a CRC32 of both, then the words of the command separated by
+ * spaces. Appending only copies the record into a buffer; a background
+ * thread writes whatever has built up and forces it to disk with one
+ * fsync, so commands that arrive close together share a single fsync
+ * (group commit). Anyone who needs a command to be on disk before going
+ * on waits for it with sync().
+ * <br><br>
+ * A checkpoint is a Snapshot of the circuit named after the sequence
+ * number of the last command in it. It is written to a temporary file,
+ * forced, and renamed, so a checkpoint either exists whole or not at all.
+ * Each checkpoint starts a new log segment named after the same number;
+ * older checkpoints and segments are then deleted. To recover, the newest
+ * checkpoint is loaded and its segment is replayed with nothing reported
+ * and nothing printed,
+ * up to the first record that is cut short or does not match its CRC,
+ * which is where the last run stopped writing; the segment is cut back
+ * to there and the log carries on from it.
+ * <br><br>
+ * Appends may come from several threads at once, as when feeds are
+ * replayed concurrently. Checkpoints and recovery come from the thread
+ * that runs the commands.
+ *
+ * @author Yutong Wu
+ */
+public class CommandLog {
+    private static final String CHECKPOINT = "checkpoint-";
+    private static final String SNAPSHOT = ".snap";
+    private static final String SEGMENT = "log-";
+    private static final String LOG = ".wal";
+    private static final String TEMPORARY = ".tmp";
+    private static final int HEADER = 16;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final int MAX_PENDING = 1 << 22;
+    private static final long GROUP_MILLIS = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path dir;
+    private final long checkpointEvery;
+    private final CRC32 crc = new CRC32();
+    private final Thread flusher;
+
+    private FileChannel channel;
+    private byte[] pending = new byte[BUFFER_SIZE];
+    private byte[] writing = new byte[BUFFER_SIZE];
+    private int size;
+    private long appended;
+    private long durable;
+    private long checkpointed;
+    private int waiting;
+    private boolean closed;
+    private IOException failure;
+
+    private long replayed;
+    private long rejected;
+    private double recoveryMillis;
+
+    /**
+     * Open the log in a directory, creating the directory if needed. No
+     * segment is open until recover or checkpoint is called.
+     * @param dir The directory.
+     * @param checkpointEvery How many commands to log between two checkpoints.
+     * @throws IOException if the directory cannot be created.
+     */
+    public CommandLog(Path dir, long checkpointEvery) throws IOException{
+        this.dir = Files.createDirectories(dir);
+        this.checkpointEvery = checkpointEvery;
+        this.flusher = new Thread(this::flushLoop, "overload-wal");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "overload-wal-exit"));
+    }
+
+    /**
+     * Rebuild the circuit from the newest checkpoint and the commands
+     * logged after it. Nothing is reported or printed while they are
+     * replayed.
+     * @param compact Whether to rebuild it as a CircuitModel rather than Components.
+     * @return The recovered circuit, or null if there is no checkpoint yet.
+     * @throws IOException if the checkpoint or the log cannot be read.
+     */
+    public Circuit recover(boolean compact) throws IOException{
+        long start = System.nanoTime();
+        long newest = -1;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)){
+            for(Path file: files){
+                String name = file.getFileName().toString();
+                if(name.endsWith(TEMPORARY)){
+                    Files.deleteIfExists(file);
+                }else if(name.startsWith(CHECKPOINT) && name.endsWith(SNAPSHOT)){
+                    newest = Math.max(newest, sequence(name, CHECKPOINT, SNAPSHOT));
+                }
+            }
+        }
+        if(newest < 0){
+            return null;
+        }
+        Circuit circuit = Snapshot.load(this.dir.resolve(checkpointName(newest)), compact);
+        Path segment = this.dir.resolve(segmentName(newest));
+        long end = 0;
+        long last = newest;
+        if(Files.exists(segment)){
+            String[] words = new String[8];
+            PrintStream out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Reporter.mute();
+            try(DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(segment), BUFFER_SIZE))){
+                byte[] body = new byte[256];
+                while(true){
+                    int length;
+                    long seq;
+                    int sum;
+                    try{
+                        length = in.readInt();
+                        seq = in.readLong();
+                        sum = in.readInt();
+                        if(length < 0 || length > MAX_RECORD || seq != last + 1){
+                            break;
+                        }
+                        if(length > body.length){
+                            body = new byte[Math.max(length, body.length * 2)];
+                        }
+                        in.readFully(body, 0, length);
+                    }catch(EOFException eof){
+                        break;
+                    }
+                    if(checksum(seq, body, length) != sum){
+                        break;
+                    }
+                    int count = 0;
+                    int from = 0;
+                    for(int i = 0; i <= length; i++){
+                        if(i == length || body[i] == ' '){
+                            if(count == words.length){
+                                words = Arrays.copyOf(words, count * 2);
+                            }
+                            words[count++] = new String(body, from, i - from, StandardCharsets.UTF_8);
+                            from = i + 1;
+                        }
+                    }
+                    try{
+                        circuit = Overload.execute(circuit, words, count);
+                    }catch(CommandException ce){
+                        this.rejected++;
+                    }
+                    this.replayed++;
+                    last = seq;
+                    end += HEADER + length;
+                }
+            }finally{
+                Reporter.unmute();
+                System.setOut(out);
+            }
+        }
+        this.channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(end);
+        this.channel.position(end);
+        this.channel.force(true);
+        synchronized(this){
+            this.appended = last;
+            this.durable = last;
+        }
+        this.checkpointed = newest;
+        this.recoveryMillis = (System.nanoTime() - start) / 1e6;
+        return circuit;
+    }
+
+    /**
+     * Log a command that was carried out. It is on disk once the next
+     * group is written; call sync to wait for that.
+     * @param words The words of the command.
+     * @param count How many of the words are used.
+     * @return Its sequence number.
+     * @throws UncheckedIOException if the log can no longer be written.
+     */
+    public long append(String[] words, int count){
+        StringBuilder line = new StringBuilder();
+        for(int i = 0; i < count; i++){
+            if(i > 0){
+                line.append(' ');
+            }
+            line.append(words[i]);
+        }
+        byte[] body = line.toString().getBytes(StandardCharsets.UTF_8);
+        int at = body.length;
+        synchronized(this){
+            if(this.channel == null){
+                throw new IllegalStateException("recover or checkpoint the command log first");
+            }
+            this.check();
+            while(this.size > MAX_PENDING && this.failure == null){
+                this.notifyAll();
+                this.await();
+            }
+            this.check();
+            long seq = this.appended + 1;
+            int sum = checksum(seq, body, at);
+            int needed = this.size + HEADER + at;
+            if(needed > this.pending.length){
+                this.pending = Arrays.copyOf(this.pending, Math.max(needed, this.pending.length * 2));
+            }
+            ByteBuffer record = ByteBuffer.wrap(this.pending, this.size, HEADER);
+            record.putInt(at).putLong(seq).putInt(sum);
+            System.arraycopy(body, 0, this.pending, this.size + HEADER, at);
+            if(this.size == 0){
+                this.notifyAll();
+            }
+            this.size = needed;
+            this.appended = seq;
+            return seq;
+        }
+    }
+
+    /**
+     * Wait until every command logged so far is on disk.
+     * @throws UncheckedIOException if the log can no longer be written.
+     */
+    public synchronized void sync(){
+        this.waiting++;
+        try{
+            this.notifyAll();
+            while(this.durable < this.appended && this.failure == null){
+                this.await();
+            }
+        }finally{
+            this.waiting--;
+        }
+        this.check();
+    }
+
+    /**
+     * @return Whether enough commands were logged since the last
+     *         checkpoint that it is time for another one.
+     */
+    public synchronized boolean isCheckpointDue(){
+        return this.appended - this.checkpointed >= this.checkpointEvery;
+    }
+
+    /**
+     * Save the circuit as a new checkpoint, start a new segment after it,
+     * and delete the older checkpoints and segments.
+     * @param circuit The circuit, with every logged command carried out.
+     * @throws IOException if the checkpoint cannot be written.
+     */
+    public void checkpoint(Circuit circuit) throws IOException{
+        this.sync();
+        long seq;
+        synchronized(this){
+            seq = this.appended;
+        }
+        Path temporary = this.dir.resolve(checkpointName(seq) + TEMPORARY);
+        Snapshot.save(circuit, temporary);
+        try(FileChannel saved = FileChannel.open(temporary, StandardOpenOption.WRITE)){
+            saved.force(true);
+        }
+        Files.move(temporary, this.dir.resolve(checkpointName(seq)), StandardCopyOption.ATOMIC_MOVE);
+        FileChannel segment = FileChannel.open(this.dir.resolve(segmentName(seq)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        forceDirectory();
+        synchronized(this){
+            if(this.channel != null){
+                this.channel.close();
+            }
+            this.channel = segment;
+        }
+        this.checkpointed = seq;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)){
+            for(Path file: files){
+                String name = file.getFileName().toString();
+                if((name.startsWith(CHECKPOINT) && name.endsWith(SNAPSHOT) && sequence(name, CHECKPOINT, SNAPSHOT) < seq)
+                        || (name.startsWith(SEGMENT) && name.endsWith(LOG) && sequence(name, SEGMENT, LOG) < seq)){
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write out and force whatever is still buffered, and stop the
+     * background thread. Safe to call more than once.
+     */
+    public void close(){
+        synchronized(this){
+            if(this.closed){
+                return;
+            }
+            if(this.failure == null && this.channel != null){
+                this.sync();
+            }
+            this.closed = true;
+            this.notifyAll();
+        }
+        try{
+            this.flusher.join();
+            if(this.channel != null){
+                this.channel.close();
+            }
+        }catch(InterruptedException | IOException e){
+            // the log is already on disk
+        }
+    }
+
+    /**
+     * @return The sequence number of the last command logged.
+     */
+    public synchronized long getSequence(){
+        return this.appended;
+    }
+
+    /**
+     * @return The sequence number of the newest checkpoint.
+     */
+    public long getCheckpoint(){
+        return this.checkpointed;
+    }
+
+    /**
+     * @return How many commands the last recovery replayed.
+     */
+    public long getReplayed(){
+        return this.replayed;
+    }
+
+    /**
+     * @return How many of them could not be carried out again.
+     */
+    public long getRejected(){
+        return this.rejected;
+    }
+
+    /**
+     * @return How long the last recovery took, in milliseconds.
+     */
+    public double getRecoveryMillis(){
+        return this.recoveryMillis;
+    }
+
+    /**
+     * Writes out the buffered records a group at a time. After the first
+     * record of a group comes in, it waits a little for more, unless
+     * someone is already waiting for them to be on disk or the buffer is
+     * full.
+     */
+    private void flushLoop(){
+        while(true){
+            byte[] group;
+            int length;
+            long upTo;
+            FileChannel out;
+            synchronized(this){
+                while(this.size == 0 && !this.closed){
+                    this.await();
+                }
+                if(this.size == 0 || this.failure != null){
+                    return;
+                }
+                if(this.waiting == 0 && !this.closed && this.size < MAX_PENDING){
+                    this.await(GROUP_MILLIS);
+                }
+                group = this.pending;
+                length = this.size;
+                upTo = this.appended;
+                out = this.channel;
+                this.pending = this.writing;
+                this.writing = group;
+                this.size = 0;
+                this.notifyAll();
+            }
+            try{
+                ByteBuffer buffer = ByteBuffer.wrap(group, 0, length);
+                while(buffer.hasRemaining()){
+                    out.write(buffer);
+                }
+                out.force(false);
+            }catch(IOException ioe){
+                synchronized(this){
+                    this.failure = ioe;
+                    this.notifyAll();
+                }
+                return;
+            }
+            synchronized(this){
+                this.durable = upTo;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait on this log until notified, keeping the interrupt for later.
+     */
+    private void await(){
+        this.await(0);
+    }
+
+    private void await(long millis){
+        try{
+            this.wait(millis);
+        }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException if the background thread could not write.
+     */
+    private void check(){
+        if(this.failure != null){
+            throw new UncheckedIOException("cannot write the command log in " + this.dir, this.failure);
+        }
+    }
+
+    /**
+     * Force the directory itself, so that renames and new files survive
+     * a crash. Not every platform can open a directory; those that cannot
+     * are left to the file system.
+     */
+    private void forceDirectory(){
+        try(FileChannel d = FileChannel.open(this.dir, StandardOpenOption.READ)){
+            d.force(true);
+        }catch(IOException ioe){
+            // not supported here
+        }
+    }
+
+    private int checksum(long seq, byte[] body, int length){
+        this.crc.reset();
+        for(int shift = 56; shift >= 0; shift -= 8){
+            this.crc.update((int) (seq >>> shift));
+        }
+        this.crc.update(body, 0, length);
+        return (int) this.crc.getValue();
+    }
+
+    private static String checkpointName(long seq){
+        return String.format("%s%020d%s", CHECKPOINT, seq, SNAPSHOT);
+    }
+
+    private static String segmentName(long seq){
+        return String.format("%s%020d%s", SEGMENT, seq, LOG);
+    }
+
+    /**
+     * @return The sequence number in a file name, or -1 if it has none.
+     */
+    private static long sequence(String name, String prefix, String suffix){
+        try{
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        }catch(NumberFormatException | IndexOutOfBoundsException e){
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package components;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Serves the user commands to any number of clients over a TCP socket on
+ * the loopback address, so that several operators or programs can drive
+ * the same circuit at once.
+ * <br><br>
+ * A client sends commands one per line, as they would be typed at the
+ * prompt, and may send as many as it likes without waiting for the
+ * replies (pipelining). Replies come back in the order of the commands:
+ * whatever the command printed, events included, then a line "OK", or
+ * "ERR code message" and the arguments if it could not be carried out.
+ * Blank lines are skipped. "subscribe" makes the connection receive every
+ * event reported from then on, whoever caused it, as "EVENT text" lines
+ * between its replies; "unsubscribe" stops that. "quit" closes the
+ * connection and "shutdown" stops the server.
+ * <br><br>
+ * One thread runs a Selector over every connection and carries out every
+ * command itself, so the circuit keeps a single writer and the commands
+ * of different clients never interleave. Each round it reads whatever has
+ * come in, carries out up to BATCH complete lines of each connection, and
+ * only then writes the replies; with a CommandLog, the commands of the
+ * whole round are synced with one fsync before any reply goes out. While
+ * a command runs, System.out goes into the reply of its connection.
+ * <br><br>
+ * A client that does not read its replies is no longer read from once
+ * MAX_OUTPUT bytes are waiting for it. A subscriber that falls that far
+ * behind misses events instead, and is told how many with a "DROPPED n"
+ * line before the next event it gets.
+ *
+ * @author Yutong Wu
+ */
+public class CommandServer {
+    private static final int BATCH = 64;
+    private static final int IN_SIZE = 1 << 16;
+    private static final int MAX_OUTPUT = 1 << 20;
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final long ACCEPT_PAUSE_MILLIS = 100;
+    private static final String WHITESPACE_REGEX = "\\s+";
+    private static final byte[] OK = "OK\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final CommandLog log;
+    private final ArrayList<Connection> subscribers = new ArrayList<>();
+    private final ArrayDeque<Connection> ready = new ArrayDeque<>();
+    private final ArrayList<Connection> dirty = new ArrayList<>();
+    private final StringBuilder line = new StringBuilder(128);
+    private Circuit circuit;
+    private Selector selector;
+    private SelectionKey acceptKey;
+    private PrintStream console;
+    private Connection current;
+    private boolean stopping;
+    private long acceptPausedUntil;
+    private int port;
+    private long commands;
+    private long rejected;
+    private long connections;
+
+    /**
+     * Get ready to serve commands on a circuit.
+     * @param circuit The circuit, already started up.
+     * @param log Where to log the commands that change it, or null.
+     */
+    public CommandServer(Circuit circuit, CommandLog log){
+        this.circuit = circuit;
+        this.log = log;
+    }
+
+    /**
+     * Serve clients until one of them sends "shutdown".
+     * @param port The TCP port to listen on, on the loopback address;
+     *             0 for any free one.
+     * @throws IOException if the port cannot be listened on.
+     */
+    public void run(int port) throws IOException{
+        this.console = System.out;
+        EventSink previous = Reporter.getSink();
+        try(Selector selector = Selector.open();
+                ServerSocketChannel server = ServerSocketChannel.open()){
+            this.selector = selector;
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), ACCEPT_BACKLOG);
+            server.configureBlocking(false);
+            this.acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+            this.port = server.socket().getLocalPort();
+            Reporter.flush();
+            this.console.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + this.port + ".");
+            this.console.flush();
+            System.setOut(new PrintStream(new ReplyStream(), false));
+            Reporter.setSink(new Broadcast());
+            while(!this.stopping){
+                this.round(server);
+            }
+            for(SelectionKey key: selector.keys()){
+                if(key.attachment() instanceof Connection){
+                    this.close((Connection) key.attachment());
+                }
+            }
+        }finally{
+            System.setOut(this.console);
+            Reporter.setSink(previous);
+        }
+    }
+
+    /**
+     * @return The port the server listened on.
+     */
+    public int getPort(){
+        return this.port;
+    }
+
+    /**
+     * @return The circuit the commands ran on; a load replaces it.
+     */
+    public Circuit getCircuit(){
+        return this.circuit;
+    }
+
+    /**
+     * @return The number of commands carried out, rejected ones included.
+     */
+    public long getCommands(){
+        return this.commands;
+    }
+
+    /**
+     * @return The number of commands that could not be carried out.
+     */
+    public long getRejected(){
+        return this.rejected;
+    }
+
+    /**
+     * @return The number of connections accepted.
+     */
+    public long getConnections(){
+        return this.connections;
+    }
+
+    /**
+     * Read, run the complete lines, sync the log, write the replies.
+     */
+    private void round(ServerSocketChannel server) throws IOException{
+        if(this.acceptPausedUntil != 0 && System.currentTimeMillis() >= this.acceptPausedUntil){
+            this.acceptPausedUntil = 0;
+            this.acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+        if(this.ready.isEmpty()){
+            this.selector.select(this.acceptPausedUntil == 0 ? 0 : ACCEPT_PAUSE_MILLIS);
+        }else{
+            this.selector.selectNow();
+        }
+        Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while(keys.hasNext()){
+            SelectionKey key = keys.next();
+            keys.remove();
+            if(!key.isValid()){
+                continue;
+            }
+            if(key.isAcceptable()){
+                this.accept(server);
+                continue;
+            }
+            Connection c = (Connection) key.attachment();
+            if(key.isWritable()){
+                this.flush(c);
+            }
+            if(key.isValid() && key.isReadable()){
+                this.read(c);
+            }
+        }
+        boolean ran = false;
+        for(int n = this.ready.size(); n > 0 && !this.stopping; n--){
+            Connection c = this.ready.poll();
+            c.queued = false;
+            ran |= this.runLines(c);
+        }
+        if(ran && this.log != null){
+            this.log.sync();
+        }
+        for(Connection c: this.dirty){
+            c.dirty = false;
+            this.flush(c);
+        }
+        this.dirty.clear();
+    }
+
+    private void accept(ServerSocketChannel server){
+        while(true){
+            SocketChannel channel;
+            try{
+                channel = server.accept();
+                if(channel == null){
+                    return;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            }catch(IOException ioe){
+                System.err.println("cannot accept a connection: " + ioe.getMessage());
+                this.acceptKey.interestOps(0);
+                this.acceptPausedUntil = System.currentTimeMillis() + ACCEPT_PAUSE_MILLIS;
+                return;
+            }
+            Connection c = new Connection(channel);
+            try{
+                c.key = channel.register(this.selector, SelectionKey.OP_READ, c);
+            }catch(IOException ioe){
+                this.close(c);
+                continue;
+            }
+            this.connections++;
+        }
+    }
+
+    /**
+     * Take in whatever a connection sent.
+     */
+    private void read(Connection c){
+        int n;
+        try{
+            n = c.channel.read(c.in);
+        }catch(IOException ioe){
+            n = -1;
+        }
+        if(n < 0){
+            this.close(c);
+            return;
+        }
+        if(!c.in.hasRemaining() && !c.hasLine()){
+            this.append(c, ("ERR " + Overload.UNKNOWN_USER_COMMAND + " " + Reporter.errorMessage(Overload.UNKNOWN_USER_COMMAND)
+                    + ": line longer than " + IN_SIZE + " bytes\n").getBytes(StandardCharsets.UTF_8));
+            c.closing = true;
+            c.in.clear();
+            c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        this.enqueue(c);
+    }
+
+    private void enqueue(Connection c){
+        if(!c.queued && !c.closing && c.hasLine()){
+            c.queued = true;
+            this.ready.add(c);
+        }
+    }
+
+    /**
+     * Carry out up to BATCH complete lines of a connection, stopping early
+     * if its replies pile up.
+     * @return Whether any command was carried out.
+     */
+    private boolean runLines(Connection c){
+        ByteBuffer in = c.in;
+        byte[] bytes = in.array();
+        int start = 0;
+        int ran = 0;
+        boolean any = false;
+        for(int i = 0; i < in.position() && ran < BATCH && !c.closing && !this.stopping; i++){
+            if(bytes[i] != '\n'){
+                continue;
+            }
+            int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+            String text = new String(bytes, start, end - start, StandardCharsets.UTF_8).trim();
+            start = i + 1;
+            if(!text.isEmpty()){
+                any |= this.command(c, text.split(WHITESPACE_REGEX));
+                ran++;
+            }
+            if(c.pending() > MAX_OUTPUT){
+                c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+                c.blocked = true;
+                break;
+            }
+        }
+        in.flip();
+        in.position(start);
+        in.compact();
+        if(!c.blocked){
+            this.enqueue(c);
+        }
+        return any;
+    }
+
+    /**
+     * Carry out one command of a connection and put its reply in the output.
+     * @return Whether it was passed on to Overload.
+     */
+    private boolean command(Connection c, String[] words){
+        this.mark(c);
+        if(words.length == 1){
+            switch(words[0]){
+                case "quit":
+                    this.append(c, OK);
+                    c.closing = true;
+                    return false;
+                case "shutdown":
+                    this.append(c, OK);
+                    c.closing = true;
+                    this.stopping = true;
+                    return false;
+                case "subscribe":
+                    if(!c.subscribed){
+                        c.subscribed = true;
+                        this.subscribers.add(c);
+                    }
+                    this.append(c, OK);
+                    return false;
+                case "unsubscribe":
+                    if(c.subscribed){
+                        c.subscribed = false;
+                        this.subscribers.remove(c);
+                    }
+                    this.append(c, OK);
+                    return false;
+                default:
+                    break;
+            }
+        }
+        this.commands++;
+        this.current = c;
+        try{
+            this.circuit = Overload.execute(this.circuit, words, words.length);
+            if(this.circuit instanceof PartitionedCircuit){
+                ((PartitionedCircuit) this.circuit).drain();
+            }
+            Reporter.flush();
+            System.out.flush();
+            this.append(c, OK);
+        }catch(CommandException ce){
+            this.settle();
+            Reporter.flush();
+            System.out.flush();
+            this.rejected++;
+            StringBuilder err = new StringBuilder("ERR ").append(ce.getErrorNumber())
+                    .append(' ').append(Reporter.errorMessage(ce.getErrorNumber()));
+            String[] arguments = ce.getArguments();
+            for(int i = 0; i < arguments.length; i++){
+                err.append(i == 0 ? ": " : " ").append(arguments[i]);
+            }
+            this.append(c, err.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        }finally{
+            this.current = null;
+        }
+        return true;
+    }
+
+    /**
+     * Let a partitioned circuit finish what a rejected command gave it
+     * before the rejection, so that its events come before the error in
+     * the reply. Only the first rejection is told.
+     */
+    private void settle(){
+        if(this.circuit instanceof PartitionedCircuit){
+            try{
+                ((PartitionedCircuit) this.circuit).drain();
+            }catch(CommandException ce){
+                // the command is rejected already
+            }
+        }
+    }
+
+    /**
+     * Write as much of a connection's output as the socket takes.
+     */
+    private void flush(Connection c){
+        if(!c.channel.isOpen()){
+            return;
+        }
+        try{
+            if(c.sent < c.length){
+                c.sent += c.channel.write(ByteBuffer.wrap(c.out, c.sent, c.length - c.sent));
+            }
+        }catch(IOException ioe){
+            this.close(c);
+            return;
+        }
+        if(c.sent == c.length){
+            c.sent = 0;
+            c.length = 0;
+            if(c.closing){
+                this.close(c);
+                return;
+            }
+        }
+        int ops = c.key.interestOps();
+        if(c.sent < c.length){
+            ops |= SelectionKey.OP_WRITE;
+        }else{
+            ops &= ~SelectionKey.OP_WRITE;
+        }
+        if(c.blocked && c.pending() <= MAX_OUTPUT / 2){
+            c.blocked = false;
+            ops |= SelectionKey.OP_READ;
+            this.enqueue(c);
+        }
+        c.key.interestOps(ops);
+    }
+
+    private void close(Connection c){
+        if(c.subscribed){
+            c.subscribed = false;
+            this.subscribers.remove(c);
+        }
+        c.closing = true;
+        if(c.key != null){
+            c.key.cancel();
+        }
+        try{
+            c.channel.close();
+        }catch(IOException ioe){
+            // already gone
+        }
+    }
+
+    /**
+     * Remember to write a connection's output at the end of the round.
+     */
+    private void mark(Connection c){
+        if(!c.dirty){
+            c.dirty = true;
+            this.dirty.add(c);
+        }
+    }
+
+    private void append(Connection c, byte[] bytes){
+        this.append(c, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Add bytes to the output of a connection. Events of a partitioned
+     * circuit come from its worker threads while the command that caused
+     * them prints, so this and Broadcast.publish hold the same lock.
+     */
+    private synchronized void append(Connection c, byte[] bytes, int offset, int count){
+        if(c.length + count > c.out.length){
+            if(c.sent > 0){
+                System.arraycopy(c.out, c.sent, c.out, 0, c.length - c.sent);
+                c.length -= c.sent;
+                c.sent = 0;
+            }
+            if(c.length + count > c.out.length){
+                c.out = Arrays.copyOf(c.out, Math.max(c.length + count, c.out.length * 2));
+            }
+        }
+        System.arraycopy(bytes, offset, c.out, c.length, count);
+        c.length += count;
+        this.mark(c);
+    }
+
+    /**
+     * One client: what it sent that was not carried out yet, and the
+     * replies and events it was not sent yet.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(IN_SIZE);
+        SelectionKey key;
+        byte[] out = new byte[256];
+        int sent;
+        int length;
+        long dropped;
+        boolean subscribed;
+        boolean queued;
+        boolean dirty;
+        boolean blocked;
+        boolean closing;
+
+        Connection(SocketChannel channel){
+            this.channel = channel;
+        }
+
+        int pending(){
+            return this.length - this.sent;
+        }
+
+        boolean hasLine(){
+            byte[] bytes = this.in.array();
+            for(int i = 0; i < this.in.position(); i++){
+                if(bytes[i] == '\n'){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stands in for System.out while the server runs: what a command
+     * prints goes into the reply of its connection, and anything printed
+     * between commands goes to the console.
+     */
+    private final class ReplyStream extends OutputStream {
+
+        @Override
+        public void write(int b){
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count){
+            Connection c = CommandServer.this.current;
+            if(c == null){
+                CommandServer.this.console.write(bytes, offset, count);
+            }else{
+                CommandServer.this.append(c, bytes, offset, count);
+            }
+        }
+
+        @Override
+        public void flush(){
+            if(CommandServer.this.current == null){
+                CommandServer.this.console.flush();
+            }
+        }
+    }
+
+    /**
+     * Puts every event in the reply of the command that caused it, as the
+     * prompt would print it, and sends it to every subscriber.
+     */
+    private final class Broadcast implements EventSink {
+
+        @Override
+        public void publish(CircuitEvent event){
+            synchronized(CommandServer.this){
+                this.send(event);
+            }
+        }
+
+        private void send(CircuitEvent event){
+            StringBuilder text = CommandServer.this.line;
+            text.setLength(0);
+            text.append("EVENT ");
+            Reporter.format(event, text);
+            text.append('\n');
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            System.out.write(bytes, 6, bytes.length - 6);
+            for(Connection s: CommandServer.this.subscribers){
+                if(s.pending() > MAX_OUTPUT){
+                    s.dropped++;
+                    continue;
+                }
+                if(s.dropped > 0){
+                    CommandServer.this.append(s, ("DROPPED " + s.dropped + "\n").getBytes(StandardCharsets.US_ASCII));
+                    s.dropped = 0;
+                }
+                CommandServer.this.append(s, bytes);
+            }
+        }
+    }
+}
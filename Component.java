@@ -1,7 +1,10 @@
 package components;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -11,6 +14,21 @@ abstract class Component {
      private Component Source_of_power;
      private ArrayList<Component> load;
      private int draw;
+     private int ownDraw;
+     private int id = -1;
+
+    /**
+     * Draws are added atomically, so that branches simulated on different
+     * threads can share the components above them.
+     */
+     private static final VarHandle DRAW;
+     static {
+         try{
+             DRAW = MethodHandles.lookup().findVarHandle(Component.class, "draw", int.class);
+         }catch(ReflectiveOperationException roe){
+             throw new ExceptionInInitializerError(roe);
+         }
+     }
 
     /**
      * Constructor of the Component class.
@@ -18,12 +36,25 @@ abstract class Component {
      * @param source Source(another component) of the Component.
      */
      public Component(String name,Component source){
+         this(name, source, true);
+     }
+
+    /**
+     * Constructor used when loading a snapshot, which rebuilds the circuit
+     * without reporting it.
+     * @param name Name of the component.
+     * @param source Source(another component) of the Component.
+     * @param report Whether to report that the component is created.
+     */
+     Component(String name, Component source, boolean report){
          this.Name = name;
          this.Switch = false;
          this.Source_of_power = source;
          this.draw = 0;
          this.load = new ArrayList<Component>();
-         Reporter.report(this,Reporter.Msg.CREATING);
+         if(report && Reporter.enabled(Reporter.Msg.CREATING)){
+             Reporter.report(this,Reporter.Msg.CREATING);
+         }
      }
 
     /**
@@ -33,6 +64,20 @@ abstract class Component {
          return this.Name;
      }
 
+    /**
+     * @return the id of the component in its circuit, or -1 if it is not in one.
+     */
+     int getId(){
+         return this.id;
+     }
+
+    /**
+     * @param id the id the circuit gave the component.
+     */
+     void setId(int id){
+         this.id = id;
+     }
+
     /**
      * Change the state that indicates whether this component is engaged.
      * @param b True or false, if true then the component is engaged. Vice versa.
@@ -45,7 +90,9 @@ abstract class Component {
      * Engage the component. Also engage its load.
      */
     public void engage(){
-         Reporter.report(this,Reporter.Msg.ENGAGING);
+         if(Reporter.enabled(Reporter.Msg.ENGAGING)){
+             Reporter.report(this,Reporter.Msg.ENGAGING);
+         }
          this.Switch = true;
          if(this.load.size()>0){
              this.engageLoads();
@@ -56,7 +103,9 @@ abstract class Component {
      * Disengage the component and its loads(if it has any)
      */
     public void disengage(){
-         Reporter.report(this,Reporter.Msg.DISENGAGING);
+         if(Reporter.enabled(Reporter.Msg.DISENGAGING)){
+             Reporter.report(this,Reporter.Msg.DISENGAGING);
+         }
          this.Switch = false;
          if(this.load.size()>0){
              this.disengageLoads();
@@ -64,25 +113,64 @@ abstract class Component {
      }
 
     /**
-     * Change the draw of the component.
-     * If delta > 0: change draw to all of its source also.
-     * If delta < 0: change draw to all of its source unless the source of its current is 0.
+     * Change the draw of the component itself, e.g. an appliance being switched on.
+     * The cached draw of this component and of every component up to the power
+     * source is updated by the same amount.
      * @param delta The draw to be changed.
      */
      protected void changeDraw(int delta){
-         this.setDraw(delta);
-         Reporter.report(this,Reporter.Msg.DRAW_CHANGE,delta);
-         if(delta>0){
-             if(this.getSource() != null) {
-                 this.getSource().changeDraw(delta);
-             }
-         }else{
-             if(this.getSource()!=null && this.getSource().getDraw()>0){
-                 this.getSource().changeDraw(delta);
-             }
+         this.ownDraw += delta;
+         this.propagateDraw(delta);
+     }
+
+    /**
+     * Add delta to the cached draw of this component and of its sources, one
+     * level at a time. Only the components on the path to the power source are
+     * touched, and the walk stops early where a component does not pass the
+     * change on (e.g. a circuit breaker that is off or has just blown).
+     * @param delta The change in the draw of the subtree below this component.
+     */
+     protected void propagateDraw(int delta){
+         if(delta == 0){
+             return;
          }
+         long cause = Trace.enter(Trace.PROPAGATION, this.Name, delta, 0);
+         Component node = this;
+         int walked = 0;
+         while(node != null){
+             node = node.absorbDraw(delta);
+             walked++;
+         }
+         Metrics.propagation(walked);
+         Trace.leave(cause);
+     }
 
+    /**
+     * Take one step of a draw propagation: add delta to the cached draw of this
+     * component and decide where the change goes next.
+     * @param delta The change in the draw of the subtree below this component.
+     * @return The component the change moves on to, or null to stop here.
+     */
+     protected Component absorbDraw(int delta){
+         this.setDraw(delta);
+         if(Reporter.enabled(Reporter.Msg.DRAW_CHANGE)){
+             Reporter.report(this,Reporter.Msg.DRAW_CHANGE,delta);
+         }
+         return this.getSource();
+     }
 
+    /**
+     * Take the net change in draw that a transaction brings to this
+     * component from below, all at once.
+     * @param delta The net change in the draw of the subtree below this component.
+     * @return The change to pass on to the source, 0 for none.
+     */
+     int absorbNet(int delta){
+         this.setDraw(delta);
+         if(Reporter.enabled(Reporter.Msg.DRAW_CHANGE)){
+             Reporter.report(this,Reporter.Msg.DRAW_CHANGE,delta);
+         }
+         return delta;
      }
 
     /**
@@ -97,7 +185,9 @@ abstract class Component {
             load.engage();
         }
          this.addLoad(load);
-         Reporter.report(this, load, Reporter.Msg.ATTACHING);
+         if(Reporter.enabled(Reporter.Msg.ATTACHING)){
+             Reporter.report(this, load, Reporter.Msg.ATTACHING);
+         }
      }
 
     /**
@@ -105,16 +195,32 @@ abstract class Component {
      * @param draw A positive or negative integer.
      */
      protected void setDraw(int draw){
-         this.draw += draw;
+         DRAW.getAndAdd(this, draw);
      }
 
     /**
-     * @return the draw of the component.
+     * @return the draw of the component, including everything below it.
      */
      protected int getDraw(){
          return this.draw;
      }
 
+    /**
+     * @return the draw of the component itself, not counting its loads.
+     */
+     protected int getOwnDraw(){
+         return this.ownDraw;
+     }
+
+    /**
+     * Set the draw of the component itself without passing anything on;
+     * a transaction passes the change on later.
+     * @param own The new own draw.
+     */
+     void setOwnDraw(int own){
+         this.ownDraw = own;
+     }
+
     /**
      * @return the source of the component.
      */
@@ -138,18 +244,26 @@ abstract class Component {
      }
 
     /**
-     * Engage all the load of this component.
+     * Engage all the load of this component, in parallel if ParallelPower is on.
      */
     protected void engageLoads(){
+         if(ParallelPower.isEnabled()){
+             ParallelPower.engageLoads(this);
+             return;
+         }
          for(Component c: this.getLoads()){
              c.engage();
          }
      }
 
     /**
-     * Disengage all of its loads.
+     * Disengage all of its loads, in parallel if ParallelPower is on.
      */
     protected void disengageLoads(){
+         if(ParallelPower.isEnabled()){
+             ParallelPower.disengageLoads(this);
+             return;
+         }
          for(Component c: this.getLoads()){
              c.disengage();
          }
@@ -159,23 +273,36 @@ abstract class Component {
      * Prints out nicely the component itself and all of its loads.
      */
     public void display(){
-         System.out.println("+ "+ this.toString());
-         if(this.load.size()>0){
-             for(Component c: this.load){
-                 this.helper();
-                 c.display();
-             }
-         }
+         this.display(Integer.MAX_VALUE);
      }
 
-     public void helper(){
-        if(this.getSource() == null){
-            System.out.print("\t");
-        }else if(this.getSource().getSource() == null){
-            System.out.print("\t\t");
-        }else{
-            System.out.print("\t\t\t");
-        }
+    /**
+     * Prints out nicely the component itself and its loads, down to a number
+     * of levels below it. The tree is walked with a stack instead of recursion,
+     * so any depth can be shown, and every line goes through one buffer.
+     * @param levels How many levels of loads to show; 0 shows the component alone.
+     */
+    public void display(int levels){
+         TreeWriter out = new TreeWriter();
+         ArrayList<Component> stack = new ArrayList<>();
+         int[] depths = new int[16];
+         stack.add(this);
+         while(!stack.isEmpty()){
+             int top = stack.size() - 1;
+             Component c = stack.remove(top);
+             int depth = depths[top];
+             out.line(depth, c.toString());
+             if(depth < levels){
+                 for(int i = c.load.size() - 1; i >= 0; i--){
+                     if(stack.size() == depths.length){
+                         depths = Arrays.copyOf(depths, depths.length * 2);
+                     }
+                     depths[stack.size()] = depth + 1;
+                     stack.add(c.load.get(i));
+                 }
+             }
+         }
+         out.flush();
      }
 
     /**
@@ -186,5 +313,32 @@ abstract class Component {
      }
 
     public abstract boolean isSwitchOn();
+
+    /**
+     * @return What kind of component this is, used when reporting.
+     */
+    abstract Reporter.Kind getKind();
+
+    /**
+     * Put the component back into a saved state, without reporting or
+     * propagating anything. Used when loading a snapshot.
+     * @param engaged Whether the component is engaged.
+     * @param on Whether its switch is on, for switchable components.
+     * @param draw Its draw, including everything below it.
+     * @param own Its own draw.
+     */
+     void restore(boolean engaged, boolean on, int draw, int own){
+         this.Switch = engaged;
+         this.draw = draw;
+         this.ownDraw = own;
+         this.restoreSwitch(on);
+     }
+
+    /**
+     * Set the switch of a switchable component when loading a snapshot.
+     * @param on Whether the switch is on.
+     */
+     void restoreSwitch(boolean on){
+     }
     };
 
@@ -0,0 +1,305 @@
+package components;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Circuit made of Component objects, found by name through a
+ * ComponentRegistry and kept in a list by id.
+ *
+ * @author Yutong Wu
+ */
+public class ComponentCircuit implements Circuit {
+    private final ComponentRegistry registry = new ComponentRegistry();
+    private final ArrayList<Component> byId = new ArrayList<>();
+    private final HeadroomCache headroom = new HeadroomCache(new HeadroomCache.Tree(){
+        @Override
+        public int source(int id){
+            Component source = ComponentCircuit.this.byId.get(id).getSource();
+            return source == null ? ComponentRegistry.NONE : ComponentCircuit.this.registry.id(source.getName());
+        }
+
+        @Override
+        public int capacity(int id){
+            Component c = ComponentCircuit.this.byId.get(id);
+            if(!(c instanceof CircuitBreaker)){
+                return HeadroomCache.UNLIMITED;
+            }
+            CircuitBreaker cb = (CircuitBreaker) c;
+            return cb.isSwitchOn() ? cb.getLimit() - cb.getDraw() : HeadroomCache.OPEN;
+        }
+
+        @Override
+        public boolean engaged(int id){
+            return ComponentCircuit.this.byId.get(id).engaged();
+        }
+    });
+
+    /**
+     * Create an empty circuit.
+     */
+    public ComponentCircuit(){
+    }
+
+    /**
+     * @return The registry of the component names.
+     */
+    ComponentRegistry registry(){
+        return this.registry;
+    }
+
+    /**
+     * Add a component that has already been created.
+     * @param c The component.
+     */
+    void put(Component c){
+        c.setId(this.registry.add(c.getName(), c.getKind()));
+        this.byId.add(c);
+    }
+
+    /**
+     * Note that draws or switches have been changed without going through
+     * the circuit, as the ConcurrentSimulator does.
+     */
+    void changed(){
+        this.headroom.invalidate();
+    }
+
+    /**
+     * @param id An id from the registry.
+     * @return The component with that id.
+     */
+    Component get(int id){
+        return this.byId.get(id);
+    }
+
+    /**
+     * @param name Name of a component.
+     * @return The component, or null if there is no such component.
+     */
+    Component get(String name){
+        int id = this.registry.id(name);
+        return id == ComponentRegistry.NONE ? null : this.byId.get(id);
+    }
+
+    @Override
+    public boolean contains(String name){
+        return this.registry.id(name) != ComponentRegistry.NONE;
+    }
+
+    @Override
+    public int size(){
+        return this.registry.size();
+    }
+
+    @Override
+    public void addPowerSource(String name){
+        this.put(new PowerSource(name));
+    }
+
+    @Override
+    public void addCircuitBreaker(String name, String source, int limit){
+        this.put(new CircuitBreaker(name, this.source(source), limit));
+    }
+
+    @Override
+    public void addOutlet(String name, String source){
+        this.put(new Outlet(name, this.source(source)));
+    }
+
+    @Override
+    public void addAppliance(String name, String source, int rating){
+        this.put(new Appliance(name, this.source(source), rating));
+    }
+
+    @Override
+    public void initialize(){
+        this.headroom.invalidate();
+        for(int r = 0; r < this.registry.rootCount(); r++){
+            Component c = this.byId.get(this.registry.root(r));
+            Reporter.flush();
+            System.out.println(c.toString() + ": powering up");
+            c.engage();
+        }
+    }
+
+    @Override
+    public void toggle(String name){
+        this.headroom.invalidate();
+        Component c = this.get(name);
+        if(c instanceof CircuitBreaker){
+            CircuitBreaker cb = (CircuitBreaker) c;
+            if(!cb.isSwitchOn()){
+                cb.turnOn();
+            }else{
+                cb.turnOff();
+            }
+        }else if(c instanceof Appliance){
+            Appliance app = (Appliance) c;
+            if(!app.isSwitchOn()){
+                app.turnOn();
+            }else{
+                app.turnOff();
+            }
+        }else{
+            throw new CommandException(Overload.UNSWITCHABLE_COMPONENT, name);
+        }
+    }
+
+    @Override
+    public List<String> find(String pattern, EnumSet<Reporter.Kind> kinds){
+        ArrayList<String> names = new ArrayList<>();
+        for(int id: this.registry.find(pattern)){
+            if(kinds.contains(this.registry.kind(id))){
+                names.add(this.registry.name(id));
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void commit(Transaction transaction){
+        this.headroom.invalidate();
+        HashSet<String> connected = new HashSet<>();
+        for(int i = 0; i < transaction.count; i++){
+            String name = transaction.name[i];
+            if(transaction.op[i] == Transaction.CONNECT){
+                if(!this.contains(transaction.source[i]) && !connected.contains(transaction.source[i])){
+                    throw new CommandException(Overload.UNKNOWN_COMPONENT, transaction.source[i]);
+                }
+                connected.add(name);
+            }else if(!(this.get(name) instanceof Appliance) && !connected.contains(name)){
+                throw new CommandException(Overload.UNSWITCHABLE_COMPONENT, name);
+            }
+        }
+        LinkedHashMap<String, Boolean> switches = new LinkedHashMap<>();
+        for(int i = 0; i < transaction.count; i++){
+            if(transaction.op[i] == Transaction.CONNECT){
+                this.addAppliance(transaction.name[i], transaction.source[i], transaction.rating[i]);
+            }else{
+                switches.put(transaction.name[i], transaction.op[i] == Transaction.TURN_ON);
+            }
+        }
+        ArrayList<ArrayList<Component>> levels = new ArrayList<>();
+        IdentityHashMap<Component, Integer> pending = new IdentityHashMap<>();
+        for(Map.Entry<String, Boolean> e: switches.entrySet()){
+            Appliance app = (Appliance) this.get(e.getKey());
+            int delta = app.switchTo(e.getValue());
+            if(delta != 0){
+                pend(levels, pending, app, depth(app), delta);
+            }
+        }
+        for(int d = levels.size() - 1; d >= 0; d--){
+            for(Component c: levels.get(d)){
+                int delta = pending.remove(c);
+                int up = delta == 0 ? 0 : c.absorbNet(delta);
+                if(up != 0 && c.getSource() != null){
+                    pend(levels, pending, c.getSource(), d - 1, up);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void display(){
+        Reporter.flush();
+        for(int r = 0; r < this.registry.rootCount(); r++){
+            this.byId.get(this.registry.root(r)).display();
+        }
+    }
+
+    @Override
+    public void display(String name, int levels){
+        Component c = this.get(name);
+        if(c == null){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        Reporter.flush();
+        c.display(levels);
+    }
+
+    @Override
+    public List<String> getPowerSources(){
+        ArrayList<String> names = new ArrayList<>(this.registry.rootCount());
+        for(int r = 0; r < this.registry.rootCount(); r++){
+            names.add(this.registry.name(this.registry.root(r)));
+        }
+        return names;
+    }
+
+    @Override
+    public int getDraw(String name){
+        Component c = this.get(name);
+        if(c == null){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        return c.getDraw();
+    }
+
+    @Override
+    public long getTrips(){
+        long trips = 0;
+        for(int i = 0; i < this.registry.count(Reporter.Kind.CIRCUIT_BREAKER); i++){
+            Component c = this.byId.get(this.registry.ofKind(Reporter.Kind.CIRCUIT_BREAKER, i));
+            trips += ((CircuitBreaker) c).getTrips();
+        }
+        return trips;
+    }
+
+    @Override
+    public int headroom(String name){
+        int id = this.registry.id(name);
+        if(id == ComponentRegistry.NONE){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        return this.headroom.headroom(id);
+    }
+
+    /**
+     * Add to the net change waiting at a component, listing the component
+     * under its depth the first time.
+     */
+    private static void pend(ArrayList<ArrayList<Component>> levels, IdentityHashMap<Component, Integer> pending,
+                             Component c, int depth, int delta){
+        Integer waiting = pending.get(c);
+        if(waiting == null){
+            while(levels.size() <= depth){
+                levels.add(new ArrayList<>());
+            }
+            levels.get(depth).add(c);
+            pending.put(c, delta);
+        }else{
+            pending.put(c, waiting + delta);
+        }
+    }
+
+    /**
+     * @return How many sources there are above a component.
+     */
+    private static int depth(Component c){
+        int depth = 0;
+        for(Component s = c.getSource(); s != null; s = s.getSource()){
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Look up the source of a new component.
+     * @param name Name of the source.
+     * @return The source.
+     * @throws CommandException if there is no such component.
+     */
+    private Component source(String name){
+        Component source = this.get(name);
+        if(source == null){
+            throw new CommandException(Overload.UNKNOWN_COMPONENT, name);
+        }
+        return source;
+    }
+}
@@ -0,0 +1,260 @@
+package components;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The names of the components of a circuit, interned to dense integer ids
+ * in the order the components are added.
+ * <br><br>
+ * Besides looking a name up, the registry keeps the power sources (the
+ * roots of the main circuits) and one list of ids per kind of component,
+ * so that nothing has to scan every component to find them. Names can
+ * also be looked up by pattern: '*' matches any run of characters and
+ * '?' any one character, as in "kitchen.*". The part of the pattern
+ * before its first wildcard is found by binary search in a sorted index
+ * of the names, which is only rebuilt when components were added since
+ * the last pattern lookup.
+ * <br><br>
+ * Adding a name that is already there gives it a new id; the name then
+ * refers to the new component, as a map would.
+ *
+ * @author Yutong Wu
+ */
+public class ComponentRegistry {
+    public static final int NONE = -1;
+    private static final Reporter.Kind[] KINDS = Reporter.Kind.values();
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[16];
+    private byte[] kinds = new byte[16];
+    private int count;
+    private final int[][] byKind = new int[KINDS.length][];
+    private final int[] kindCount = new int[KINDS.length];
+    private int[] sorted = new int[0];
+    private int sortedCount;
+
+    /**
+     * Create an empty registry.
+     */
+    public ComponentRegistry(){
+        for(int k = 0; k < KINDS.length; k++){
+            this.byKind[k] = new int[4];
+        }
+    }
+
+    /**
+     * Give a new component the next id.
+     * @param name Name of the component.
+     * @param kind Kind of the component.
+     * @return Its id.
+     */
+    public int add(String name, Reporter.Kind kind){
+        if(this.count == this.names.length){
+            this.names = Arrays.copyOf(this.names, this.count * 2);
+            this.kinds = Arrays.copyOf(this.kinds, this.count * 2);
+        }
+        int id = this.count++;
+        this.names[id] = name;
+        this.kinds[id] = (byte) kind.ordinal();
+        this.ids.put(name, id);
+        int k = kind.ordinal();
+        if(this.kindCount[k] == this.byKind[k].length){
+            this.byKind[k] = Arrays.copyOf(this.byKind[k], this.kindCount[k] * 2);
+        }
+        this.byKind[k][this.kindCount[k]++] = id;
+        return id;
+    }
+
+    /**
+     * @return The number of ids given out.
+     */
+    public int size(){
+        return this.count;
+    }
+
+    /**
+     * @param name Name of a component.
+     * @return Its id, or NONE if there is no such component.
+     */
+    public int id(String name){
+        Integer id = this.ids.get(name);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * @param id An id.
+     * @return The name it was given for.
+     */
+    public String name(int id){
+        return this.names[id];
+    }
+
+    /**
+     * @param id An id.
+     * @return The kind of the component.
+     */
+    public Reporter.Kind kind(int id){
+        return KINDS[this.kinds[id]];
+    }
+
+    /**
+     * @param kind A kind of component.
+     * @return How many components of that kind there are.
+     */
+    public int count(Reporter.Kind kind){
+        return this.kindCount[kind.ordinal()];
+    }
+
+    /**
+     * @param kind A kind of component.
+     * @param i Index among the components of that kind, in the order they were added.
+     * @return The id of that component.
+     */
+    public int ofKind(Reporter.Kind kind, int i){
+        return this.byKind[kind.ordinal()][i];
+    }
+
+    /**
+     * @return How many power sources there are.
+     */
+    public int rootCount(){
+        return this.count(Reporter.Kind.POWER_SOURCE);
+    }
+
+    /**
+     * @param r Index of a power source, in the order they were added.
+     * @return Its id.
+     */
+    public int root(int r){
+        return this.ofKind(Reporter.Kind.POWER_SOURCE, r);
+    }
+
+    /**
+     * @param pattern A name, possibly with wildcards.
+     * @return Whether the pattern has any wildcard in it.
+     */
+    public static boolean isPattern(String pattern){
+        return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0;
+    }
+
+    /**
+     * Find the current components whose names match a pattern.
+     * @param pattern A name, possibly with wildcards.
+     * @return Their ids, in name order.
+     */
+    public int[] find(String pattern){
+        if(!isPattern(pattern)){
+            int id = this.id(pattern);
+            return id == NONE ? new int[0] : new int[]{id};
+        }
+        if(this.sortedCount != this.count){
+            this.sortIndex();
+        }
+        int wild = pattern.length();
+        for(int i = 0; i < pattern.length(); i++){
+            char c = pattern.charAt(i);
+            if(c == '*' || c == '?'){
+                wild = i;
+                break;
+            }
+        }
+        String prefix = pattern.substring(0, wild);
+        int[] found = new int[8];
+        int n = 0;
+        for(int i = this.lowerBound(prefix); i < this.sortedCount; i++){
+            int id = this.sorted[i];
+            String name = this.names[id];
+            if(!name.startsWith(prefix)){
+                break;
+            }
+            if(this.ids.get(name) == id && matches(pattern, wild, name, wild)){
+                if(n == found.length){
+                    found = Arrays.copyOf(found, n * 2);
+                }
+                found[n++] = id;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Sort the ids given out since the last sort by their names, and merge
+     * them into the sorted index, so that a few new names between two
+     * searches do not cost a sort of every name.
+     */
+    private void sortIndex(){
+        Integer[] added = new Integer[this.count - this.sortedCount];
+        for(int i = 0; i < added.length; i++){
+            added[i] = this.sortedCount + i;
+        }
+        Arrays.sort(added, (a, b) -> this.names[a].compareTo(this.names[b]));
+        int[] merged = new int[this.count];
+        int a = 0;
+        int b = 0;
+        int m = 0;
+        while(a < this.sortedCount && b < added.length){
+            if(this.names[this.sorted[a]].compareTo(this.names[added[b]]) <= 0){
+                merged[m++] = this.sorted[a++];
+            }else{
+                merged[m++] = added[b++];
+            }
+        }
+        while(a < this.sortedCount){
+            merged[m++] = this.sorted[a++];
+        }
+        while(b < added.length){
+            merged[m++] = added[b++];
+        }
+        this.sorted = merged;
+        this.sortedCount = this.count;
+    }
+
+    /**
+     * @return The first position in the sorted index whose name is not before the prefix.
+     */
+    private int lowerBound(String prefix){
+        int low = 0;
+        int high = this.sortedCount;
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(this.names[this.sorted[middle]].compareTo(prefix) < 0){
+                low = middle + 1;
+            }else{
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Match the rest of a name against the rest of a pattern.
+     * @param p The pattern.
+     * @param i Where to go on in the pattern.
+     * @param s The name.
+     * @param j Where to go on in the name.
+     * @return Whether they match.
+     */
+    static boolean matches(String p, int i, String s, int j){
+        int star = -1;
+        int mark = 0;
+        while(j < s.length()){
+            if(i < p.length() && (p.charAt(i) == '?' || p.charAt(i) == s.charAt(j))){
+                i++;
+                j++;
+            }else if(i < p.length() && p.charAt(i) == '*'){
+                star = i++;
+                mark = j;
+            }else if(star >= 0){
+                i = star + 1;
+                j = ++mark;
+            }else{
+                return false;
+            }
+        }
+        while(i < p.length() && p.charAt(i) == '*'){
+            i++;
+        }
+        return i == p.length();
+    }
+}
@@ -0,0 +1,260 @@
+package components;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Applies toggle and connect commands to a circuit of Components from
+ * many threads at once.
+ * <br><br>
+ * A command only changes the branch of the circuit it is in: the subtree
+ * of the highest CircuitBreaker on its path to the PowerSource. Every
+ * breaker whose limit it can reach is inside that branch, so holding the
+ * branch's lock keeps trip decisions exact. Above the branches there are
+ * no limits, and the draws there are added atomically (see Component.setDraw).
+ * Commands on different branches therefore run in parallel. Branches map
+ * onto a fixed set of striped locks; components that are not under any
+ * breaker share the stripe of their PowerSource.
+ *
+ * @author Yutong Wu
+ */
+public class ConcurrentSimulator {
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int STRIPES_PER_CORE = 16;
+
+    private final ComponentCircuit circuit;
+    private final ConcurrentHashMap<String, Component> components;
+    private final ReentrantLock[] stripes;
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Get ready to simulate a circuit. The circuit should be initialized already,
+     * and should not be used directly until replay returns.
+     * @param circuit The circuit.
+     */
+    public ConcurrentSimulator(ComponentCircuit circuit){
+        this.circuit = circuit;
+        this.components = new ConcurrentHashMap<>(circuit.size() * 2);
+        ComponentRegistry registry = circuit.registry();
+        for(int id = 0; id < registry.size(); id++){
+            if(registry.id(registry.name(id)) == id){
+                this.components.put(registry.name(id), circuit.get(id));
+            }
+        }
+        int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * STRIPES_PER_CORE - 1) << 1;
+        this.stripes = new ReentrantLock[n];
+        for(int i = 0; i < n; i++){
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @return The number of commands applied so far.
+     */
+    public long getApplied(){
+        return this.applied.get();
+    }
+
+    /**
+     * @return The number of commands rejected so far.
+     */
+    public long getRejected(){
+        return this.rejected.get();
+    }
+
+    /**
+     * Toggle a circuit breaker or an appliance. Safe to call from any thread.
+     * If there is a command log, the toggle is logged before the branch is
+     * unlocked.
+     * @param name Name of the component.
+     * @return false if there is no such switchable component.
+     */
+    public boolean toggle(String name){
+        Component c = this.components.get(name);
+        if(!(c instanceof CircuitBreaker) && !(c instanceof Appliance)){
+            return false;
+        }
+        ReentrantLock lock = this.lockFor(c);
+        lock.lock();
+        try{
+            if(c instanceof CircuitBreaker){
+                CircuitBreaker cb = (CircuitBreaker) c;
+                if(!cb.isSwitchOn()){
+                    cb.turnOn();
+                }else{
+                    cb.turnOff();
+                }
+            }else{
+                Appliance app = (Appliance) c;
+                if(!app.isSwitchOn()){
+                    app.turnOn();
+                }else{
+                    app.turnOff();
+                }
+            }
+            Overload.journal("toggle", name);
+        }finally{
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Connect a new appliance. Safe to call from any thread. It is logged
+     * as toggles are.
+     * @param name Name of the appliance.
+     * @param source Name of its source.
+     * @param rating Rating of the appliance.
+     * @return false if the source does not exist or the name is taken.
+     */
+    public boolean connect(String name, String source, int rating){
+        Component s = this.components.get(source);
+        if(s == null || this.components.containsKey(name)){
+            return false;
+        }
+        ReentrantLock lock = this.lockFor(s);
+        lock.lock();
+        try{
+            Appliance[] created = new Appliance[1];
+            this.components.computeIfAbsent(name, n -> created[0] = new Appliance(n, s, rating));
+            if(created[0] == null){
+                return false;
+            }
+            Overload.journal("connect", "Appliance", name, source, Integer.toString(rating));
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Print every main circuit, with all branches locked so that the
+     * picture is consistent.
+     */
+    public void display(){
+        for(ReentrantLock lock: this.stripes){
+            lock.lock();
+        }
+        try{
+            this.circuit.display();
+        }finally{
+            for(int i = this.stripes.length - 1; i >= 0; i--){
+                this.stripes[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Apply one command line: toggle, connect or display. It is counted
+     * and timed in the Metrics as Overload.execute does.
+     * @param line The command.
+     * @return false if it was not a valid command.
+     */
+    public boolean apply(String line){
+        String[] command = WHITESPACE.split(line.trim());
+        if(command[0].isEmpty()){
+            return true;
+        }
+        long start = Overload.begin(command, command.length);
+        boolean ok;
+        try{
+            if(command[0].equals("toggle") && command.length == 2){
+                ok = this.toggle(command[1]);
+            }else if(command[0].equals("connect") && command.length == 5){
+                try{
+                    ok = this.connect(command[2], command[3], Integer.parseInt(command[4]));
+                }catch(NumberFormatException nfe){
+                    ok = false;
+                }
+            }else if(command[0].equals("display") && command.length == 1){
+                this.display();
+                ok = true;
+            }else{
+                ok = false;
+            }
+        }finally{
+            Overload.done(command, start);
+        }
+        (ok ? this.applied : this.rejected).incrementAndGet();
+        return ok;
+    }
+
+    /**
+     * Replay command files at the same time, one thread per file.
+     * Bad commands are reported on System.err with their file and line
+     * and skipped. Appliances connected on the way are added to the circuit
+     * once every file is done.
+     * @param feeds The command files.
+     * @throws IOException if a file cannot be read.
+     */
+    public void replay(List<Path> feeds) throws IOException{
+        Thread[] threads = new Thread[feeds.size()];
+        IOException[] failures = new IOException[feeds.size()];
+        for(int f = 0; f < threads.length; f++){
+            final int feed = f;
+            threads[f] = new Thread(() -> {
+                try(BufferedReader in = Files.newBufferedReader(feeds.get(feed))){
+                    int lineNumber = 0;
+                    for(String line = in.readLine(); line != null; line = in.readLine()){
+                        lineNumber++;
+                        if(!this.apply(line)){
+                            System.err.println(feeds.get(feed) + ":" + lineNumber + ": cannot apply \"" + line + "\"");
+                        }
+                    }
+                }catch(IOException ioe){
+                    failures[feed] = ioe;
+                }
+            }, "overload-feed-" + f);
+            threads[f].start();
+        }
+        for(Thread t: threads){
+            try{
+                t.join();
+            }catch(InterruptedException ie){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for(Component c: this.components.values()){
+            if(this.circuit.get(c.getName()) != c){
+                this.circuit.put(c);
+            }
+        }
+        this.circuit.changed();
+        for(IOException failure: failures){
+            if(failure != null){
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Find the lock of the branch a component is in: the stripe of the
+     * highest circuit breaker above it (or itself), or of its power source
+     * if there is no breaker on the way.
+     */
+    private ReentrantLock lockFor(Component c){
+        Component key = null;
+        Component root = c;
+        for(Component node = c; node != null; node = node.getSource()){
+            if(node instanceof CircuitBreaker){
+                key = node;
+            }
+            root = node;
+        }
+        if(key == null){
+            key = root;
+        }
+        int h = System.identityHashCode(key);
+        h ^= h >>> 16;
+        return this.stripes[h & (this.stripes.length - 1)];
+    }
+}
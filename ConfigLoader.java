@@ -0,0 +1,385 @@
+package components;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads a configuration file into a Circuit.
+ * <br><br>
+ * The file is streamed through a fixed size buffer and every line is
+ * split by a hand written tokenizer. Parsing only records the lines; the
+ * components are built in a second pass, so a component may appear in the
+ * file before its source does.
+ * <br><br>
+ * In parallel mode the file is memory mapped instead, cut into chunks
+ * that end on line boundaries, and the chunks are tokenized at the same
+ * time on a fork-join pool. The records are then put back in file order,
+ * so the components are built exactly as the sequential mode builds them.
+ *
+ * @author Yutong Wu
+ */
+public class ConfigLoader {
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final boolean parallel;
+    private final ForkJoinPool pool;
+    private long lines;
+    private long parseNanos;
+
+    /**
+     * Create a loader.
+     * @param parallel Whether to map the file and parse it in parallel.
+     */
+    public ConfigLoader(boolean parallel){
+        this.parallel = parallel;
+        this.pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Read a configuration file and add its components to a circuit,
+     * one line after another.
+     * @param configFileName Name of the file.
+     * @param circuit The circuit to fill.
+     * @return The circuit.
+     */
+    public static Circuit load(String configFileName, Circuit circuit){
+        return new ConfigLoader(false).read(configFileName, circuit);
+    }
+
+    /**
+     * Read a configuration file and add its components to a circuit.
+     * @param configFileName Name of the file.
+     * @param circuit The circuit to fill.
+     * @return The circuit.
+     */
+    public Circuit read(String configFileName, Circuit circuit){
+        Path path = Paths.get(configFileName);
+        long start = System.nanoTime();
+        ConfigRecords records = this.parallel ? this.parseParallel(path) : this.parse(path);
+        this.parseNanos = System.nanoTime() - start;
+        resolve(records, circuit);
+        return circuit;
+    }
+
+    /**
+     * @return The number of lines in the last file read.
+     */
+    public long getLines(){
+        return this.lines;
+    }
+
+    /**
+     * @return How many lines per second the last file was parsed at,
+     *         not counting building the components.
+     */
+    public double getLinesPerSecond(){
+        return this.parseNanos == 0 ? 0 : this.lines * 1e9 / this.parseNanos;
+    }
+
+    /**
+     * @return How long parsing the last file took, in milliseconds.
+     */
+    public double getParseMillis(){
+        return this.parseNanos / 1e6;
+    }
+
+    /**
+     * @return The number of threads the parallel mode parses on.
+     */
+    public int getParallelism(){
+        return this.parallel ? this.pool.getParallelism() : 1;
+    }
+
+    /**
+     * Stream the file and parse every line of it.
+     * @param path The configuration file.
+     * @return The component lines, in file order.
+     */
+    private ConfigRecords parse(Path path){
+        ConfigRecords records = new ConfigRecords(1024);
+        int lineNumber = 0;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            int scanFrom = 0;
+            while(true){
+                int read = channel.read(buffer);
+                int filled = buffer.position();
+                int lineFrom = 0;
+                for(int i = scanFrom; i < filled; i++){
+                    if(buffer.get(i) == '\n'){
+                        records.parseLine(buffer, lineFrom, i, ++lineNumber);
+                        lineFrom = i + 1;
+                    }
+                }
+                if(read < 0){
+                    if(lineFrom < filled){
+                        records.parseLine(buffer, lineFrom, filled, ++lineNumber);
+                    }
+                    break;
+                }
+                buffer.limit(filled).position(lineFrom);
+                buffer.compact();
+                scanFrom = buffer.position();
+                if(!buffer.hasRemaining()){
+                    ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+            }
+        }catch(NoSuchFileException nsfe){
+            Reporter.usageError(Overload.FILE_NOT_FOUND, path.toString());
+        }catch(IOException ioe){
+            Reporter.usageError(Overload.BAD_FILE_FORMAT, path.toString(), ioe.getMessage());
+        }
+        this.lines = lineNumber;
+        return records;
+    }
+
+    /**
+     * Map the file, parse its chunks in parallel and join the results in file order.
+     * @param path The configuration file.
+     * @return The component lines, in file order.
+     */
+    private ConfigRecords parseParallel(Path path){
+        ConfigRecords records = null;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            long[] bounds = chunkBounds(channel, this.pool.getParallelism() * CHUNKS_PER_THREAD);
+            int chunks = bounds.length - 1;
+            ChunkParse[] parsed = new ChunkParse[chunks];
+            for(int c = 0; c < chunks; c++){
+                parsed[c] = new ChunkParse(channel, bounds[c], bounds[c + 1]);
+            }
+            this.pool.invoke(new ParseRange(parsed, 0, chunks));
+            int total = 0;
+            for(ChunkParse chunk: parsed){
+                if(chunk.failure != null){
+                    throw chunk.failure;
+                }
+                total += chunk.records.count;
+            }
+            records = new ConfigRecords(total);
+            int lineOffset = 0;
+            for(ChunkParse chunk: parsed){
+                chunk.records.reportError(lineOffset);
+                records.addAll(chunk.records, lineOffset);
+                lineOffset += chunk.lines;
+            }
+            this.lines = lineOffset;
+        }catch(NoSuchFileException nsfe){
+            Reporter.usageError(Overload.FILE_NOT_FOUND, path.toString());
+        }catch(IOException ioe){
+            Reporter.usageError(Overload.BAD_FILE_FORMAT, path.toString(), ioe.getMessage());
+        }
+        return records;
+    }
+
+    /**
+     * Cut the file into about the wanted number of chunks, each one
+     * starting right after a newline.
+     * @return The chunk boundaries, from 0 to the file size.
+     */
+    private static long[] chunkBounds(FileChannel channel, int wanted) throws IOException{
+        long size = channel.size();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, (size + wanted - 1) / Math.max(wanted, 1));
+        chunkSize = Math.min(chunkSize, Integer.MAX_VALUE);
+        long[] bounds = new long[(int) ((size + chunkSize - 1) / chunkSize) + 2];
+        int n = 1;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long previous = 0;
+        while(previous + chunkSize < size){
+            long next = nextLineStart(channel, previous + chunkSize, probe);
+            if(next - previous > Integer.MAX_VALUE){
+                throw new IOException("line too long");
+            }
+            if(next >= size){
+                break;
+            }
+            bounds[n++] = next;
+            previous = next;
+        }
+        bounds[n++] = size;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /**
+     * @return The position just after the first newline at or after from,
+     *         or the file size if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long from, ByteBuffer probe) throws IOException{
+        long position = from;
+        while(true){
+            probe.clear();
+            int read = channel.read(probe, position);
+            if(read <= 0){
+                return channel.size();
+            }
+            for(int i = 0; i < read; i++){
+                if(probe.get(i) == '\n'){
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * One chunk of the file and what parsing it produced.
+     */
+    private static class ChunkParse {
+        final FileChannel channel;
+        final long start;
+        final long end;
+        ConfigRecords records;
+        int lines;
+        IOException failure;
+
+        ChunkParse(FileChannel channel, long start, long end){
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Map the chunk and parse its lines, numbering them from 1 within the chunk.
+         */
+        void run(){
+            int length = (int) (this.end - this.start);
+            this.records = new ConfigRecords(Math.max(16, length / 32), true);
+            try{
+                ByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.start, length);
+                int lineFrom = 0;
+                int lineNumber = 0;
+                for(int i = 0; i < length && !this.records.failed(); i++){
+                    if(buffer.get(i) == '\n'){
+                        this.records.parseLine(buffer, lineFrom, i, ++lineNumber);
+                        lineFrom = i + 1;
+                    }
+                }
+                if(lineFrom < length && !this.records.failed()){
+                    this.records.parseLine(buffer, lineFrom, length, ++lineNumber);
+                }
+                this.lines = lineNumber;
+            }catch(IOException ioe){
+                this.failure = ioe;
+            }
+        }
+    }
+
+    /**
+     * Parse a range of chunks, splitting it in two until one chunk is left.
+     */
+    private static class ParseRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ChunkParse[] chunks;
+        private final int from;
+        private final int to;
+
+        ParseRange(ChunkParse[] chunks, int from, int to){
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if(this.to - this.from == 1){
+                this.chunks[this.from].run();
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new ParseRange(this.chunks, this.from, middle),
+                      new ParseRange(this.chunks, middle, this.to));
+        }
+    }
+
+    /**
+     * Build the parsed components. A component is built as soon as its
+     * source exists; until then it waits on its source's name and is built
+     * right after that source. Components whose source never appears are
+     * reported with the line they were on.
+     * @param records The parsed component lines.
+     * @param circuit The circuit to add them to.
+     */
+    static void resolve(ConfigRecords records, Circuit circuit){
+        int n = records.count;
+        HashMap<String, Integer> waitHead = new HashMap<>();
+        HashMap<String, Integer> waitTail = new HashMap<>();
+        int[] nextWaiting = new int[n];
+        boolean[] built = new boolean[n];
+        int[] queue = new int[n];
+        int builtCount = 0;
+        for(int i = 0; i < n; i++){
+            String source = records.source[i];
+            if(source != null && !circuit.contains(source)){
+                nextWaiting[i] = -1;
+                Integer tail = waitTail.put(source, i);
+                if(tail == null){
+                    waitHead.put(source, i);
+                }else{
+                    nextWaiting[tail] = i;
+                }
+                continue;
+            }
+            int head = 0;
+            int end = 0;
+            queue[end++] = i;
+            while(head < end){
+                int j = queue[head++];
+                build(records, j, circuit);
+                built[j] = true;
+                builtCount++;
+                Integer w = waitHead.remove(records.name[j]);
+                if(w != null){
+                    waitTail.remove(records.name[j]);
+                    for(int k = w; k != -1; k = nextWaiting[k]){
+                        queue[end++] = k;
+                    }
+                }
+            }
+        }
+        if(builtCount < n){
+            for(int i = 0; i < n; i++){
+                if(!built[i]){
+                    Reporter.usageError(Overload.UNKNOWN_COMPONENT,
+                            "line " + records.line[i] + ":", records.source[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add one parsed component to the circuit.
+     */
+    private static void build(ConfigRecords records, int i, Circuit circuit){
+        String name = records.name[i];
+        if(circuit.contains(name)){
+            Reporter.usageError(Overload.REPEAT_NAME, "line " + records.line[i] + ":", name);
+        }
+        switch(records.kindOf(i)){
+            case POWER_SOURCE:
+                circuit.addPowerSource(name);
+                break;
+            case CIRCUIT_BREAKER:
+                circuit.addCircuitBreaker(name, records.source[i], records.value[i]);
+                break;
+            case OUTLET:
+                circuit.addOutlet(name, records.source[i]);
+                break;
+            default:
+                circuit.addAppliance(name, records.source[i], records.value[i]);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package components;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The component lines of a configuration file, parsed but not yet built,
+ * kept as parallel arrays: kind, name, source name, limit or rating, and
+ * the line number the component came from.
+ *
+ * @author Yutong Wu
+ */
+class ConfigRecords {
+    private static final byte[] POWER_SOURCE = bytes("PowerSource");
+    private static final byte[] CIRCUIT_BREAKER = bytes("CircuitBreaker");
+    private static final byte[] OUTLET = bytes("Outlet");
+    private static final byte[] APPLIANCE = bytes("Appliance");
+    private static final Reporter.Kind[] KINDS = Reporter.Kind.values();
+
+    private final LineTokenizer tokenizer = new LineTokenizer();
+    private final boolean deferErrors;
+    private int errorCode;
+    private int errorLine;
+    private String errorText;
+    int count;
+    byte[] kind;
+    String[] name;
+    String[] source;
+    int[] value;
+    int[] line;
+
+    /**
+     * Create an empty set of records.
+     * @param capacity How many records to make room for at first.
+     */
+    ConfigRecords(int capacity){
+        this(capacity, false);
+    }
+
+    /**
+     * Create an empty set of records.
+     * @param capacity How many records to make room for at first.
+     * @param deferErrors If true, a bad line is remembered instead of being
+     *                    reported right away, so that it can be reported later
+     *                    with its real line number; see failed().
+     */
+    ConfigRecords(int capacity, boolean deferErrors){
+        this.deferErrors = deferErrors;
+        capacity = Math.max(capacity, 16);
+        this.kind = new byte[capacity];
+        this.name = new String[capacity];
+        this.source = new String[capacity];
+        this.value = new int[capacity];
+        this.line = new int[capacity];
+    }
+
+    /**
+     * @param i Index of a record.
+     * @return The kind of component it describes.
+     */
+    Reporter.Kind kindOf(int i){
+        return KINDS[this.kind[i]];
+    }
+
+    /**
+     * Parse one line of the file. Blank lines are skipped, and so are
+     * any words after the ones a component needs, as they always were;
+     * a line that is too short or not well formed is a fatal error that
+     * names the line.
+     * @param buffer The bytes holding the line.
+     * @param from Index of the first byte of the line.
+     * @param to Index just past its last byte, the newline excluded.
+     * @param lineNumber Line number in the file, counting from 1.
+     */
+    void parseLine(ByteBuffer buffer, int from, int to, int lineNumber){
+        LineTokenizer tok = this.tokenizer;
+        tok.reset(buffer, from, to);
+        if(!tok.next()){
+            return;
+        }
+        Reporter.Kind k;
+        if(tok.is(POWER_SOURCE)){
+            k = Reporter.Kind.POWER_SOURCE;
+        }else if(tok.is(CIRCUIT_BREAKER)){
+            k = Reporter.Kind.CIRCUIT_BREAKER;
+        }else if(tok.is(OUTLET)){
+            k = Reporter.Kind.OUTLET;
+        }else if(tok.is(APPLIANCE)){
+            k = Reporter.Kind.APPLIANCE;
+        }else{
+            this.error(Overload.UNKNOWN_COMPONENT_TYPE, lineNumber);
+            return;
+        }
+        if(!tok.next()){
+            this.error(Overload.BAD_FILE_FORMAT, lineNumber);
+            return;
+        }
+        String n = tok.text();
+        String s = null;
+        int v = 0;
+        if(k != Reporter.Kind.POWER_SOURCE){
+            if(!tok.next()){
+                this.error(Overload.BAD_FILE_FORMAT, lineNumber);
+                return;
+            }
+            s = tok.text();
+            if(k != Reporter.Kind.OUTLET){
+                if(!tok.next()){
+                    this.error(Overload.BAD_FILE_FORMAT, lineNumber);
+                    return;
+                }
+                try{
+                    v = tok.number();
+                }catch(NumberFormatException nfe){
+                    this.error(Overload.BAD_FILE_FORMAT, lineNumber);
+                    return;
+                }
+            }
+        }
+        this.add(k, n, s, v, lineNumber);
+    }
+
+    /**
+     * Append a record.
+     */
+    void add(Reporter.Kind k, String n, String s, int v, int lineNumber){
+        if(this.count == this.kind.length){
+            int capacity = this.count * 2;
+            this.kind = Arrays.copyOf(this.kind, capacity);
+            this.name = Arrays.copyOf(this.name, capacity);
+            this.source = Arrays.copyOf(this.source, capacity);
+            this.value = Arrays.copyOf(this.value, capacity);
+            this.line = Arrays.copyOf(this.line, capacity);
+        }
+        int i = this.count++;
+        this.kind[i] = (byte) k.ordinal();
+        this.name[i] = n;
+        this.source[i] = s;
+        this.value[i] = v;
+        this.line[i] = lineNumber;
+    }
+
+    /**
+     * Append every record of another set, moving their line numbers along.
+     * @param other Records parsed from a later part of the file.
+     * @param lineOffset Number of lines in the file before that part.
+     */
+    void addAll(ConfigRecords other, int lineOffset){
+        for(int i = 0; i < other.count; i++){
+            this.add(other.kindOf(i), other.name[i], other.source[i],
+                    other.value[i], other.line[i] + lineOffset);
+        }
+    }
+
+    /**
+     * @return Whether a bad line was found while errors were deferred.
+     */
+    boolean failed(){
+        return this.errorText != null;
+    }
+
+    /**
+     * Report the deferred error, if there is one, and stop.
+     * @param lineOffset Number of lines in the file before the parsed part.
+     */
+    void reportError(int lineOffset){
+        if(this.failed()){
+            Reporter.usageError(this.errorCode,
+                    "line " + (this.errorLine + lineOffset) + ":", this.errorText);
+        }
+    }
+
+    /**
+     * A line of the file has a problem: report it and stop, or remember it.
+     * @param errNum The Overload error code.
+     * @param lineNumber The line with the problem.
+     */
+    private void error(int errNum, int lineNumber){
+        if(!this.deferErrors){
+            Reporter.usageError(errNum, "line " + lineNumber + ":", this.tokenizer.line());
+        }else if(!this.failed()){
+            this.errorCode = errNum;
+            this.errorLine = lineNumber;
+            this.errorText = this.tokenizer.line();
+        }
+    }
+
+    private static byte[] bytes(String s){
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,72 @@
+package components;
+
+import java.util.Arrays;
+
+/**
+ * An EventSink that keeps copies of the events it is given, in order,
+ * so that they can be published somewhere else later. The copies are
+ * reused when the buffer is cleared.
+ *
+ * @author Yutong Wu
+ */
+class EventBuffer implements EventSink {
+    private CircuitEvent[] events = new CircuitEvent[16];
+    private int count;
+
+    @Override
+    public void publish(CircuitEvent event){
+        this.slot().copy(event);
+    }
+
+    /**
+     * @return The number of events kept.
+     */
+    int size(){
+        return this.count;
+    }
+
+    /**
+     * Forget every event kept.
+     */
+    void clear(){
+        this.count = 0;
+    }
+
+    /**
+     * Append some of the events of another buffer.
+     * @param other The other buffer.
+     * @param from Index of the first event to append.
+     * @param to Index just past the last one.
+     */
+    void append(EventBuffer other, int from, int to){
+        for(int i = from; i < to; i++){
+            this.slot().copy(other.events[i]);
+        }
+    }
+
+    /**
+     * Publish every event kept, in order.
+     * @param sink Where they go.
+     */
+    void replay(EventSink sink){
+        for(int i = 0; i < this.count; i++){
+            sink.publish(this.events[i]);
+        }
+    }
+
+    /**
+     * @return The next free event, made room for if needed.
+     */
+    private CircuitEvent slot(){
+        if(this.count == this.events.length){
+            this.events = Arrays.copyOf(this.events, this.count * 2);
+        }
+        CircuitEvent e = this.events[this.count];
+        if(e == null){
+            e = new CircuitEvent();
+            this.events[this.count] = e;
+        }
+        this.count++;
+        return e;
+    }
+}
@@ -0,0 +1,255 @@
+package components;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands every event to the listeners that asked for it, and to no other.
+ * <br><br>
+ * A listener is any EventSink, registered with the keys it wants and,
+ * optionally, the name of a component: it then only gets the events of
+ * that component and of the components below it. Printing on System.out
+ * is just the listener the Reporter registers for itself.
+ * <br><br>
+ * Registering and unregistering rebuild, under a lock, a table of
+ * listener arrays by key, and one such table per subtree by the name of
+ * its top component; the tables are then swapped in whole. Publishing
+ * reads the current tables without locking and walks plain arrays, so it
+ * allocates nothing: an event goes to the listeners of its key, then, if
+ * any subtree listener is registered, the component and each of its
+ * sources are looked up by name, which costs one hash lookup per level.
+ * Every event is given the next sequence number on its way through.
+ *
+ * @author Yutong Wu
+ */
+public class EventBus implements EventSink {
+    private static final Reporter.Msg[] MSGS = Reporter.Msg.values();
+    private static final EventSink[] NO_SINKS = new EventSink[0];
+
+    private final ArrayList<Registration> registrations = new ArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile EventSink[][] everywhere = table();
+    private volatile HashMap<String, EventSink[][]> subtrees = new HashMap<>();
+    private volatile boolean[] wanted = new boolean[MSGS.length];
+
+    /**
+     * One listener and what it asked for.
+     */
+    public static final class Registration {
+        private final EventSink listener;
+        private final String subtree;
+        private volatile EnumSet<Reporter.Msg> msgs;
+
+        private Registration(EventSink listener, Set<Reporter.Msg> msgs, String subtree){
+            this.listener = listener;
+            this.msgs = copy(msgs);
+            this.subtree = subtree;
+        }
+
+        /**
+         * @return The listener.
+         */
+        public EventSink getListener(){
+            return this.listener;
+        }
+
+        /**
+         * @return The keys it gets.
+         */
+        public Set<Reporter.Msg> getMsgs(){
+            return Collections.unmodifiableSet(this.msgs);
+        }
+
+        /**
+         * @return The name of the top of the subtree it gets the events
+         *         of, or null for the whole circuit.
+         */
+        public String getSubtree(){
+            return this.subtree;
+        }
+    }
+
+    /**
+     * Register a listener for some keys, wherever the events happen.
+     * @param listener The listener.
+     * @param msgs The keys it gets.
+     * @return Its registration, to unsubscribe with.
+     */
+    public Registration subscribe(EventSink listener, Set<Reporter.Msg> msgs){
+        return this.subscribe(listener, msgs, null);
+    }
+
+    /**
+     * Register a listener for some keys, in one part of the circuit.
+     * @param listener The listener.
+     * @param msgs The keys it gets.
+     * @param subtree Name of a component: the listener only gets the
+     *                events of it and of the components below it. Null
+     *                for the whole circuit.
+     * @return Its registration, to unsubscribe with.
+     */
+    public synchronized Registration subscribe(EventSink listener, Set<Reporter.Msg> msgs, String subtree){
+        Registration r = new Registration(listener, msgs, subtree);
+        this.registrations.add(r);
+        this.rebuild();
+        return r;
+    }
+
+    /**
+     * Stop sending events to a listener. It is not flushed.
+     * @param r Its registration.
+     */
+    public synchronized void unsubscribe(Registration r){
+        if(this.registrations.remove(r)){
+            this.rebuild();
+        }
+    }
+
+    /**
+     * Change the keys a listener gets.
+     * @param r Its registration.
+     * @param msgs The keys it gets from now on.
+     */
+    public synchronized void setMsgs(Registration r, Set<Reporter.Msg> msgs){
+        r.msgs = copy(msgs);
+        this.rebuild();
+    }
+
+    /**
+     * @param msg An event key.
+     * @return Whether any listener gets events with this key.
+     */
+    public boolean wants(Reporter.Msg msg){
+        return this.wanted[msg.ordinal()];
+    }
+
+    /**
+     * @return The sequence number of the last event published.
+     */
+    public long getSequence(){
+        return this.sequence.get();
+    }
+
+    @Override
+    public void publish(CircuitEvent event){
+        int m = event.msg.ordinal();
+        event.sequence = this.sequence.incrementAndGet();
+        for(EventSink listener: this.everywhere[m]){
+            listener.publish(event);
+        }
+        HashMap<String, EventSink[][]> subtrees = this.subtrees;
+        if(subtrees.isEmpty()){
+            return;
+        }
+        if(event.component != null){
+            for(Component c = event.component; c != null; c = c.getSource()){
+                publish(subtrees.get(c.getName()), m, event);
+            }
+        }else if(event.model != null){
+            CircuitModel model = event.model;
+            for(int id = event.id; id != CircuitModel.NONE; id = model.getParent(id)){
+                publish(subtrees.get(model.getName(id)), m, event);
+            }
+        }
+    }
+
+    private static void publish(EventSink[][] table, int m, CircuitEvent event){
+        if(table != null){
+            for(EventSink listener: table[m]){
+                listener.publish(event);
+            }
+        }
+    }
+
+    /**
+     * Flush every listener.
+     */
+    @Override
+    public void flush(){
+        for(EventSink listener: this.listeners()){
+            listener.flush();
+        }
+    }
+
+    /**
+     * Close every listener.
+     */
+    @Override
+    public void close(){
+        for(EventSink listener: this.listeners()){
+            listener.close();
+        }
+    }
+
+    /**
+     * @return Every listener once, even if it is registered more than once.
+     */
+    private synchronized Set<EventSink> listeners(){
+        Set<EventSink> listeners = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Registration r: this.registrations){
+            listeners.add(r.listener);
+        }
+        return listeners;
+    }
+
+    /**
+     * Build new tables from the registrations and swap them in.
+     */
+    private void rebuild(){
+        ArrayList<ArrayList<EventSink>> all = new ArrayList<>();
+        HashMap<String, ArrayList<ArrayList<EventSink>>> parts = new HashMap<>();
+        for(int m = 0; m < MSGS.length; m++){
+            all.add(new ArrayList<>());
+        }
+        boolean[] wanted = new boolean[MSGS.length];
+        for(Registration r: this.registrations){
+            ArrayList<ArrayList<EventSink>> lists = all;
+            if(r.subtree != null){
+                lists = parts.get(r.subtree);
+                if(lists == null){
+                    lists = new ArrayList<>();
+                    for(int m = 0; m < MSGS.length; m++){
+                        lists.add(new ArrayList<>());
+                    }
+                    parts.put(r.subtree, lists);
+                }
+            }
+            for(Reporter.Msg msg: r.msgs){
+                lists.get(msg.ordinal()).add(r.listener);
+                wanted[msg.ordinal()] = true;
+            }
+        }
+        HashMap<String, EventSink[][]> subtrees = new HashMap<>();
+        for(String name: parts.keySet()){
+            subtrees.put(name, table(parts.get(name)));
+        }
+        this.everywhere = table(all);
+        this.subtrees = subtrees;
+        this.wanted = wanted;
+    }
+
+    private static EventSink[][] table(){
+        EventSink[][] table = new EventSink[MSGS.length][];
+        for(int m = 0; m < MSGS.length; m++){
+            table[m] = NO_SINKS;
+        }
+        return table;
+    }
+
+    private static EventSink[][] table(ArrayList<ArrayList<EventSink>> lists){
+        EventSink[][] table = new EventSink[MSGS.length][];
+        for(int m = 0; m < MSGS.length; m++){
+            table[m] = lists.get(m).toArray(NO_SINKS);
+        }
+        return table;
+    }
+
+    private static EnumSet<Reporter.Msg> copy(Set<Reporter.Msg> msgs){
+        return msgs.isEmpty() ? EnumSet.noneOf(Reporter.Msg.class) : EnumSet.copyOf(msgs);
+    }
+}
@@ -0,0 +1,29 @@
+package components;
+
+/**
+ * Destination of the events the Reporter receives from the Components.
+ *
+ * @author Yutong Wu
+ */
+public interface EventSink {
+
+    /**
+     * Accept one event. The event object is reused by the caller,
+     * so it must not be kept after this method returns.
+     * @param event the event to take in.
+     */
+    void publish(CircuitEvent event);
+
+    /**
+     * Block until every event published so far has been written out.
+     */
+    default void flush(){
+    }
+
+    /**
+     * Flush and release whatever the sink holds on to.
+     */
+    default void close(){
+        flush();
+    }
+}
@@ -0,0 +1,106 @@
+package components;
+
+import java.util.Arrays;
+
+/**
+ * Remembers, for each component id, how much more draw could be added at
+ * that component before a circuit breaker between it and its power source
+ * blows: the smallest limit minus draw of the breakers on the way up.
+ * <br><br>
+ * A breaker that is off keeps any change of its loads to itself without
+ * checking its limit, so the breakers above it do not count. The figure
+ * of a component is worked out from the one of its source, so after a
+ * change each query only walks up to the first component whose figure is
+ * still known, and a batch of queries in the same part of the circuit
+ * walks each part of the path once.
+ * <br><br>
+ * Every figure is stamped with the draw epoch it was worked out in. The
+ * circuit moves on to a new epoch whenever a draw or a switch may have
+ * changed, which drops every figure at once without touching them.
+ *
+ * @author Yutong Wu
+ */
+class HeadroomCache {
+    static final int UNLIMITED = Integer.MAX_VALUE;
+    static final int OPEN = Integer.MIN_VALUE;
+    private static final int NONE = ComponentRegistry.NONE;
+
+    /**
+     * What the cache needs to know about the components of a circuit.
+     */
+    interface Tree {
+
+        /**
+         * @param id A component id.
+         * @return The id of its source, or NONE for a power source.
+         */
+        int source(int id);
+
+        /**
+         * @param id A component id.
+         * @return Limit minus draw for a circuit breaker that is on, OPEN for
+         *         one that is off, UNLIMITED for any other component.
+         */
+        int capacity(int id);
+
+        /**
+         * @param id A component id.
+         * @return Whether it is engaged, so that a new load would draw.
+         */
+        boolean engaged(int id);
+    }
+
+    private final Tree tree;
+    private long epoch = 1;
+    private int[] headroom = new int[16];
+    private long[] stamp = new long[16];
+    private int[] path = new int[16];
+
+    /**
+     * @param tree The components of the circuit.
+     */
+    HeadroomCache(Tree tree){
+        this.tree = tree;
+    }
+
+    /**
+     * Move on to a new draw epoch, forgetting every figure.
+     */
+    void invalidate(){
+        this.epoch++;
+    }
+
+    /**
+     * @param id A component id.
+     * @return How much more draw it could take, or UNLIMITED if it is not
+     *         engaged, since a new appliance there would not draw anything.
+     */
+    int headroom(int id){
+        if(!this.tree.engaged(id)){
+            return UNLIMITED;
+        }
+        int top = 0;
+        int x = id;
+        while(x != NONE && (x >= this.stamp.length || this.stamp[x] != this.epoch)){
+            if(top == this.path.length){
+                this.path = Arrays.copyOf(this.path, top * 2);
+            }
+            this.path[top++] = x;
+            x = this.tree.source(x);
+        }
+        int above = x == NONE ? UNLIMITED : this.headroom[x];
+        while(top > 0){
+            int y = this.path[--top];
+            int c = this.tree.capacity(y);
+            above = c == OPEN ? UNLIMITED : Math.min(c, above);
+            if(y >= this.stamp.length){
+                int size = Math.max(y + 1, this.stamp.length * 2);
+                this.headroom = Arrays.copyOf(this.headroom, size);
+                this.stamp = Arrays.copyOf(this.stamp, size);
+            }
+            this.headroom[y] = above;
+            this.stamp[y] = this.epoch;
+        }
+        return above;
+    }
+}
@@ -0,0 +1,597 @@
+package components;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps the recent states of the switches and draws of a circuit as
+ * versions, one per command that changed them, so that commands can be
+ * undone and redone and any two versions compared.
+ * <br><br>
+ * The state of a component is packed in a long: its draw, and whether it
+ * is engaged, switched on, and drawing its rating. A version is a
+ * persistent array of these longs, a tree of 32-wide nodes: a new version
+ * copies only the nodes on the paths to the components that changed and
+ * shares every other node with the version before, so it costs memory in
+ * proportion to what the command changed, not to the circuit. Two versions
+ * are compared by walking both trees and skipping every node they share.
+ * <br><br>
+ * After a command, only the components it could have changed are compared
+ * with the last version: the ones it switched and every component above
+ * them, whose draws change, and the subtree of the highest of these whose
+ * switch or engagement changed, since a switch or a blown circuit breaker
+ * engages or disengages everything below it. The subtree of a component
+ * that was switched is always compared, since a circuit breaker may blow
+ * as soon as it is switched on and end up as it was, with its loads
+ * changed all the same.
+ * <br><br>
+ * An undo puts the components that differ back as they were, without
+ * reporting events. A connect adds a component, which an undo cannot take
+ * away, so undoing stops at the last connect. Only the latest versions
+ * are kept.
+ *
+ * @author Yutong Wu
+ */
+class History {
+    static final int NONE = ComponentRegistry.NONE;
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final long ABSENT = Long.MIN_VALUE;
+    private static final long DRAW = 0xFFFFFFFFL;
+    private static final long ENGAGED = 1L << 32;
+    private static final long ON = 1L << 33;
+    private static final long DRAWING = 1L << 34;
+
+    /**
+     * What the history needs to know about the components of a circuit.
+     */
+    interface Tree {
+
+        /**
+         * @return The number of component ids.
+         */
+        int size();
+
+        /**
+         * @param name Name of a component.
+         * @return Its id, or NONE if there is no such component.
+         */
+        int id(String name);
+
+        /**
+         * @param id A component id.
+         * @return Its name.
+         */
+        String name(int id);
+
+        /**
+         * @param id A component id.
+         * @return What kind of component it is.
+         */
+        Reporter.Kind kind(int id);
+
+        /**
+         * @param id A component id.
+         * @return The id of its source, or NONE for a power source.
+         */
+        int source(int id);
+
+        /**
+         * Push the ids of the loads of a component.
+         * @param id A component id.
+         * @param stack Where to push them.
+         */
+        void loads(int id, IntStack stack);
+
+        /**
+         * @param id A component id.
+         * @return Its packed state.
+         */
+        long state(int id);
+
+        /**
+         * Put a component back into a packed state, without reporting anything.
+         * @param id A component id.
+         * @param state The packed state.
+         */
+        void restore(int id, long state);
+    }
+
+    /**
+     * A growable stack of ints.
+     */
+    static final class IntStack {
+        int[] items = new int[16];
+        int size;
+
+        void push(int i){
+            if(this.size == this.items.length){
+                this.items = Arrays.copyOf(this.items, this.size * 2);
+            }
+            this.items[this.size++] = i;
+        }
+
+        int pop(){
+            return this.items[--this.size];
+        }
+    }
+
+    /**
+     * One version: the root of its tree and how many components it holds.
+     */
+    private static final class Version {
+        final long number;
+        final Object root;
+        final int shift;
+        final int size;
+
+        Version(long number, Object root, int shift, int size){
+            this.number = number;
+            this.root = root;
+            this.shift = shift;
+            this.size = size;
+        }
+    }
+
+    private final Circuit circuit;
+    private final Tree tree;
+    private final int capacity;
+    private final ArrayList<Version> versions = new ArrayList<>();
+    private int current;
+    private long latest;
+    private long edit;
+    private Long editMark;
+    private final IntStack changed = new IntStack();
+    private final IntStack stack = new IntStack();
+    private int[] mark = new int[16];
+    private int stamp;
+
+    /**
+     * Start a history of a circuit with its current state as version 0.
+     * @param circuit The circuit, either backend.
+     * @param tree Its components.
+     * @param capacity How many versions to keep, at least 2.
+     */
+    private History(Circuit circuit, Tree tree, int capacity){
+        this.circuit = circuit;
+        this.tree = tree;
+        this.capacity = Math.max(2, capacity);
+        this.nextEdit();
+        int n = tree.size();
+        Object root = this.newLeaf();
+        int shift = 0;
+        for(int id = 0; id < n; id++){
+            while(id >= 1 << (shift + BITS)){
+                root = this.grow(root);
+                shift += BITS;
+            }
+            root = this.set(root, shift, id, tree.state(id));
+        }
+        this.versions.add(new Version(0, root, shift, n));
+    }
+
+    /**
+     * @param circuit A circuit.
+     * @param capacity How many versions to keep.
+     * @return A history of it starting now, or null if it cannot keep one,
+     *         as for a partitioned circuit.
+     */
+    static History of(Circuit circuit, int capacity){
+        if(circuit instanceof CircuitModel){
+            return new History(circuit, new ModelTree((CircuitModel) circuit), capacity);
+        }
+        if(circuit instanceof ComponentCircuit){
+            return new History(circuit, new ComponentTree((ComponentCircuit) circuit), capacity);
+        }
+        return null;
+    }
+
+    /**
+     * @return The circuit this is the history of.
+     */
+    Circuit getCircuit(){
+        return this.circuit;
+    }
+
+    /**
+     * @return The number of the current version.
+     */
+    long getVersion(){
+        return this.versions.get(this.current).number;
+    }
+
+    /**
+     * @param name Name of a component.
+     * @return Its id, or NONE if there is no such component.
+     */
+    int id(String name){
+        return this.tree.id(name);
+    }
+
+    /**
+     * Make a new version after a command, numbered after every version
+     * made so far. Versions that had been undone are dropped, and so is
+     * the oldest one if there are too many.
+     * @param touched The ids of the components the command switched or added.
+     * @param count How many of them there are.
+     */
+    void record(int[] touched, int count){
+        Version last = this.versions.get(this.current);
+        int n = this.tree.size();
+        if(this.mark.length < n){
+            this.mark = Arrays.copyOf(this.mark, Math.max(n, this.mark.length * 2));
+        }
+        if(++this.stamp == 0){
+            Arrays.fill(this.mark, 0);
+            this.stamp = 1;
+        }
+        this.changed.size = 0;
+        for(int i = 0; i < count; i++){
+            int top = touched[i];
+            for(int id = top; id != NONE; id = this.tree.source(id)){
+                long was = get(last, id);
+                long now = this.tree.state(id);
+                if(was != now && (was == ABSENT || (was & ~DRAW) != (now & ~DRAW))){
+                    top = id;
+                }
+                this.compare(last, id);
+            }
+            this.stack.size = 0;
+            this.tree.loads(top, this.stack);
+            while(this.stack.size > 0){
+                int id = this.stack.pop();
+                this.compare(last, id);
+                this.tree.loads(id, this.stack);
+            }
+        }
+        this.nextEdit();
+        Object root = last.root;
+        int shift = last.shift;
+        while(n > 1 << (shift + BITS)){
+            root = this.grow(root);
+            shift += BITS;
+        }
+        for(int i = 0; i < this.changed.size; i++){
+            int id = this.changed.items[i];
+            root = this.set(root, shift, id, this.tree.state(id));
+        }
+        while(this.versions.size() > this.current + 1){
+            this.versions.remove(this.versions.size() - 1);
+        }
+        this.versions.add(new Version(++this.latest, root, shift, n));
+        if(this.versions.size() > this.capacity){
+            this.versions.remove(0);
+        }
+        this.current = this.versions.size() - 1;
+    }
+
+    /**
+     * Go back to the version before the current one.
+     * @return The number of components put back.
+     * @throws CommandException if there is nothing to undo, or the last
+     *         change added a component.
+     */
+    int undo(){
+        if(this.current == 0 || this.versions.get(this.current - 1).size < this.tree.size()){
+            throw new CommandException(Overload.NOTHING_TO_UNDO, "undo");
+        }
+        return this.move(this.current - 1);
+    }
+
+    /**
+     * Go forward to the version after the current one, after an undo.
+     * @return The number of components put back.
+     * @throws CommandException if nothing has been undone since the last change.
+     */
+    int redo(){
+        if(this.current == this.versions.size() - 1){
+            throw new CommandException(Overload.NOTHING_TO_REDO, "redo");
+        }
+        return this.move(this.current + 1);
+    }
+
+    /**
+     * Find the components whose states differ between two kept versions.
+     * @param from The number of a version.
+     * @param to The number of another version.
+     * @return Their ids, each once.
+     * @throws CommandException if a version is not kept.
+     */
+    IntStack diff(long from, long to){
+        Version a = this.find(from);
+        Version b = this.find(to);
+        if(a == null || b == null){
+            throw new CommandException(Overload.VERSION_NOT_KEPT, "diff", Long.toString(from), Long.toString(to));
+        }
+        IntStack ids = new IntStack();
+        diff(a.root, a.shift, b.root, b.shift, Math.max(a.shift, b.shift), 0, ids);
+        return ids;
+    }
+
+    /**
+     * Describe the state of a component in a version.
+     * @param number The number of a kept version.
+     * @param id A component id.
+     * @return Its switch, engagement and draw, or "absent".
+     */
+    String describe(long number, int id){
+        long state = get(this.find(number), id);
+        if(state == ABSENT){
+            return "absent";
+        }
+        StringBuilder text = new StringBuilder();
+        Reporter.Kind k = this.tree.kind(id);
+        if(k == Reporter.Kind.CIRCUIT_BREAKER || k == Reporter.Kind.APPLIANCE){
+            text.append((state & ON) != 0 ? "on, " : "off, ");
+        }
+        text.append((state & ENGAGED) != 0 ? "engaged" : "disengaged");
+        return text.append(", draw ").append((int) (state & DRAW)).toString();
+    }
+
+    /**
+     * @param id A component id.
+     * @return Its name.
+     */
+    String name(int id){
+        return this.tree.name(id);
+    }
+
+    /**
+     * Put every component that differs back as it is in another version.
+     */
+    private int move(int target){
+        Version from = this.versions.get(this.current);
+        Version to = this.versions.get(target);
+        IntStack ids = new IntStack();
+        diff(from.root, from.shift, to.root, to.shift, Math.max(from.shift, to.shift), 0, ids);
+        for(int i = 0; i < ids.size; i++){
+            this.tree.restore(ids.items[i], get(to, ids.items[i]));
+        }
+        this.current = target;
+        return ids.size;
+    }
+
+    private Version find(long number){
+        for(Version v: this.versions){
+            if(v.number == number){
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Note a component as changed if its state differs from the last version.
+     */
+    private void compare(Version last, int id){
+        if(this.mark[id] == this.stamp){
+            return;
+        }
+        this.mark[id] = this.stamp;
+        if(get(last, id) != this.tree.state(id)){
+            this.changed.push(id);
+        }
+    }
+
+    private static long get(Version v, int id){
+        if(id >= v.size){
+            return ABSENT;
+        }
+        Object node = v.root;
+        for(int shift = v.shift; shift > 0; shift -= BITS){
+            node = ((Object[]) node)[(id >>> shift) & MASK];
+        }
+        return ((long[]) node)[id & MASK];
+    }
+
+    /**
+     * Start a new version: nodes copied from now on belong to it and are
+     * changed in place until the next one.
+     */
+    private void nextEdit(){
+        this.edit++;
+        this.editMark = this.edit;
+    }
+
+    /**
+     * @return The root with one value changed, copying the nodes on its
+     *         path that belong to earlier versions.
+     */
+    private Object set(Object node, int shift, int id, long value){
+        if(shift == 0){
+            long[] leaf = (long[]) node;
+            if(leaf[WIDTH] != this.edit){
+                leaf = leaf.clone();
+                leaf[WIDTH] = this.edit;
+            }
+            leaf[id & MASK] = value;
+            return leaf;
+        }
+        Object[] inner = (Object[]) node;
+        if(inner[WIDTH] != this.editMark){
+            inner = inner.clone();
+            inner[WIDTH] = this.editMark;
+        }
+        int k = (id >>> shift) & MASK;
+        Object child = inner[k];
+        if(child == null){
+            child = shift == BITS ? this.newLeaf() : this.newInner();
+        }
+        inner[k] = this.set(child, shift - BITS, id, value);
+        return inner;
+    }
+
+    /**
+     * @return A new root one level higher, with the old root as its first node.
+     */
+    private Object grow(Object root){
+        Object[] inner = this.newInner();
+        inner[0] = root;
+        return inner;
+    }
+
+    /**
+     * @return A node of the version being made, with every value absent.
+     */
+    private long[] newLeaf(){
+        long[] leaf = new long[WIDTH + 1];
+        Arrays.fill(leaf, 0, WIDTH, ABSENT);
+        leaf[WIDTH] = this.edit;
+        return leaf;
+    }
+
+    private Object[] newInner(){
+        Object[] inner = new Object[WIDTH + 1];
+        inner[WIDTH] = this.editMark;
+        return inner;
+    }
+
+    /**
+     * Add the ids whose values differ between two trees, skipping the
+     * nodes they share. A tree lower than the other stands for the first
+     * node of each missing level.
+     */
+    private static void diff(Object x, int xs, Object y, int ys, int shift, int base, IntStack out){
+        if(x == y && xs == ys){
+            return;
+        }
+        if(shift == 0){
+            long[] a = (long[]) x;
+            long[] b = (long[]) y;
+            for(int i = 0; i < WIDTH; i++){
+                long va = a == null ? ABSENT : a[i];
+                long vb = b == null ? ABSENT : b[i];
+                if(va != vb){
+                    out.push(base + i);
+                }
+            }
+            return;
+        }
+        for(int k = 0; k < WIDTH; k++){
+            Object cx = x == null ? null : xs == shift ? ((Object[]) x)[k] : k == 0 ? x : null;
+            Object cy = y == null ? null : ys == shift ? ((Object[]) y)[k] : k == 0 ? y : null;
+            if(cx != null || cy != null){
+                diff(cx, xs == shift ? xs - BITS : xs, cy, ys == shift ? ys - BITS : ys,
+                        shift - BITS, base + (k << shift), out);
+            }
+        }
+    }
+
+    private static long pack(boolean engaged, boolean on, boolean drawing, int draw){
+        return (draw & DRAW) | (engaged ? ENGAGED : 0) | (on ? ON : 0) | (drawing ? DRAWING : 0);
+    }
+
+    /**
+     * The nodes of a compact model.
+     */
+    private static final class ModelTree implements Tree {
+        private final CircuitModel model;
+
+        ModelTree(CircuitModel model){
+            this.model = model;
+        }
+
+        @Override
+        public int size(){
+            return this.model.size();
+        }
+
+        @Override
+        public int id(String name){
+            return this.model.registry().id(name);
+        }
+
+        @Override
+        public String name(int id){
+            return this.model.getName(id);
+        }
+
+        @Override
+        public Reporter.Kind kind(int id){
+            return this.model.getKind(id);
+        }
+
+        @Override
+        public int source(int id){
+            return this.model.getParent(id);
+        }
+
+        @Override
+        public void loads(int id, IntStack stack){
+            for(int c = this.model.getFirstLoad(id); c != CircuitModel.NONE; c = this.model.getNextLoad(c)){
+                stack.push(c);
+            }
+        }
+
+        @Override
+        public long state(int id){
+            return pack(this.model.isEngaged(id), this.model.isSwitchOn(id),
+                    this.model.isDrawing(id), this.model.getDraw(id));
+        }
+
+        @Override
+        public void restore(int id, long state){
+            this.model.restore(id, (state & ENGAGED) != 0, (state & ON) != 0,
+                    (int) (state & DRAW), (state & DRAWING) != 0);
+        }
+    }
+
+    /**
+     * The Components of a circuit, by the ids of its registry.
+     */
+    private static final class ComponentTree implements Tree {
+        private final ComponentCircuit circuit;
+
+        ComponentTree(ComponentCircuit circuit){
+            this.circuit = circuit;
+        }
+
+        @Override
+        public int size(){
+            return this.circuit.size();
+        }
+
+        @Override
+        public int id(String name){
+            return this.circuit.registry().id(name);
+        }
+
+        @Override
+        public String name(int id){
+            return this.circuit.get(id).getName();
+        }
+
+        @Override
+        public Reporter.Kind kind(int id){
+            return this.circuit.get(id).getKind();
+        }
+
+        @Override
+        public int source(int id){
+            Component source = this.circuit.get(id).getSource();
+            return source == null ? NONE : source.getId();
+        }
+
+        @Override
+        public void loads(int id, IntStack stack){
+            for(Component c: this.circuit.get(id).getLoads()){
+                stack.push(c.getId());
+            }
+        }
+
+        @Override
+        public long state(int id){
+            Component c = this.circuit.get(id);
+            return pack(c.engaged(), c.isSwitchOn(), c.getOwnDraw() != 0, c.getDraw());
+        }
+
+        @Override
+        public void restore(int id, long state){
+            Component c = this.circuit.get(id);
+            int own = (state & DRAWING) != 0 ? Reporter.auxValue(c) : 0;
+            c.restore((state & ENGAGED) != 0, (state & ON) != 0, (int) (state & DRAW), own);
+            this.circuit.changed();
+        }
+    }
+}
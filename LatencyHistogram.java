@@ -0,0 +1,111 @@
+package components;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with a fixed relative precision,
+ * in the manner of HdrHistogram: values are counted in buckets that double
+ * in width from one power of two to the next, each power of two cut into
+ * the same number of sub-buckets, so any value from 1 ns to centuries is
+ * recorded in O(1) with an error of at most 1/32 of itself.
+ * <br><br>
+ * Recording is safe from any number of threads and takes no lock.
+ *
+ * @author Yutong Wu
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT >> 1;
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Count one duration.
+     * @param nanos The duration, in nanoseconds; negative ones count as 0.
+     */
+    public void record(long nanos){
+        long v = Math.max(0, nanos);
+        this.counts.incrementAndGet(index(v));
+        this.total.increment();
+        this.sum.add(v);
+        long m = this.max.get();
+        while(v > m && !this.max.compareAndSet(m, v)){
+            m = this.max.get();
+        }
+    }
+
+    /**
+     * @return How many durations were counted.
+     */
+    public long getCount(){
+        return this.total.sum();
+    }
+
+    /**
+     * @return The mean duration, in nanoseconds.
+     */
+    public double getMean(){
+        long n = this.total.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * @return The longest duration, in nanoseconds.
+     */
+    public long getMax(){
+        return this.max.get();
+    }
+
+    /**
+     * @param share A share of the durations, between 0 and 1.
+     * @return The duration that share of them stayed within, in
+     *         nanoseconds, rounded up to the end of its bucket.
+     */
+    public long getPercentile(double share){
+        long n = this.total.sum();
+        if(n == 0){
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(share * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += this.counts.get(i);
+            if(seen >= wanted){
+                return Math.min(highest(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * @return The bucket of a value.
+     */
+    private static int index(long v){
+        if(v < SUB_COUNT){
+            return (int) v;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        int top = (int) (v >>> shift);
+        return SUB_COUNT + (shift - 1) * HALF + (top - HALF);
+    }
+
+    /**
+     * @return The largest value that falls in a bucket.
+     */
+    private static long highest(int i){
+        if(i < SUB_COUNT){
+            return i;
+        }
+        int k = i - SUB_COUNT;
+        int shift = k / HALF + 1;
+        long top = k % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,146 @@
+package components;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits one line of bytes into whitespace separated tokens without
+ * regular expressions and without creating a String per token unless
+ * one is asked for.
+ *
+ * @author Yutong Wu
+ */
+public class LineTokenizer {
+    private ByteBuffer buffer;
+    private int lineStart;
+    private int position;
+    private int end;
+    private int start;
+    private int length;
+    private byte[] scratch = new byte[64];
+
+    /**
+     * Point the tokenizer at a line.
+     * @param buffer Bytes holding the line; read with absolute gets only.
+     * @param from Index of the first byte of the line.
+     * @param to Index just past the last byte, line terminator excluded.
+     */
+    public void reset(ByteBuffer buffer, int from, int to){
+        this.buffer = buffer;
+        this.lineStart = from;
+        this.position = from;
+        this.end = to;
+        this.start = from;
+        this.length = 0;
+    }
+
+    /**
+     * Move on to the next token.
+     * @return false if the line has no more tokens.
+     */
+    public boolean next(){
+        int i = this.position;
+        while(i < this.end && isSpace(this.buffer.get(i))){
+            i++;
+        }
+        if(i == this.end){
+            this.position = i;
+            this.length = 0;
+            return false;
+        }
+        this.start = i;
+        while(i < this.end && !isSpace(this.buffer.get(i))){
+            i++;
+        }
+        this.length = i - this.start;
+        this.position = i;
+        return true;
+    }
+
+    /**
+     * @param keyword The bytes of a word.
+     * @return Whether the current token is exactly that word.
+     */
+    public boolean is(byte[] keyword){
+        if(keyword.length != this.length){
+            return false;
+        }
+        for(int i = 0; i < this.length; i++){
+            if(this.buffer.get(this.start + i) != keyword[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The current token as a String.
+     */
+    public String text(){
+        if(this.scratch.length < this.length){
+            this.scratch = new byte[Math.max(this.length, this.scratch.length * 2)];
+        }
+        for(int i = 0; i < this.length; i++){
+            this.scratch[i] = this.buffer.get(this.start + i);
+        }
+        return new String(this.scratch, 0, this.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the current token as a decimal number, with an optional sign,
+     * as Integer.parseInt does.
+     * @return The number.
+     * @throws NumberFormatException if the token is not one, or does not fit in an int.
+     */
+    public int number(){
+        int i = 0;
+        boolean negative = false;
+        if(this.length > 0){
+            byte sign = this.buffer.get(this.start);
+            if(sign == '-' || sign == '+'){
+                negative = sign == '-';
+                i = 1;
+            }
+        }
+        if(i == this.length){
+            throw new NumberFormatException(this.length == 0 ? "empty token" : this.text());
+        }
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long n = 0;
+        for(; i < this.length; i++){
+            int digit = this.buffer.get(this.start + i) - '0';
+            if(digit < 0 || digit > 9){
+                throw new NumberFormatException(this.text());
+            }
+            n = n * 10 + digit;
+            if(n > limit){
+                throw new NumberFormatException(this.text());
+            }
+        }
+        return (int) (negative ? -n : n);
+    }
+
+    /**
+     * @return The whole line the tokenizer was pointed at, for error messages.
+     */
+    public String line(){
+        int from = this.lineStart;
+        int to = this.end;
+        while(to > from && isSpace(this.buffer.get(to - 1))){
+            to--;
+        }
+        byte[] bytes = new byte[to - from];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = this.buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param b A byte.
+     * @return Whether it is ASCII white space.
+     */
+    static boolean isSpace(byte b){
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+}
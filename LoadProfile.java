@@ -0,0 +1,115 @@
+package components;
+
+/**
+ * How the draw of an appliance changes over time in a LoadStudy.
+ * <br><br>
+ * A profile is shared by many appliances; each appliance brings its own
+ * rating and phase, the number of ticks its profile is shifted by, so that
+ * appliances with the same profile do not all switch at the same tick.
+ *
+ * @author Yutong Wu
+ */
+public interface LoadProfile {
+
+    /**
+     * @param rating Rating of the appliance.
+     * @param phase Phase of the appliance.
+     * @param tick A tick of the study.
+     * @return The draw of the appliance during that tick.
+     */
+    int level(int rating, int phase, long tick);
+
+    /**
+     * @param phase Phase of the appliance.
+     * @param tick A tick of the study.
+     * @return The next tick after this one at which the draw may change,
+     *         or Long.MAX_VALUE if it never does.
+     */
+    long nextChange(int phase, long tick);
+
+    /**
+     * @return The number of ticks after which the profile repeats itself,
+     *         the range phases are picked from.
+     */
+    int period();
+
+    /**
+     * Full rating for some ticks, then nothing for the rest of the period.
+     */
+    final class DutyCycle implements LoadProfile {
+        private final int period;
+        private final int on;
+
+        /**
+         * @param period Length of a cycle, in ticks.
+         * @param on How many ticks of each cycle the appliance draws its rating.
+         */
+        public DutyCycle(int period, int on){
+            if(period <= 0 || on < 0){
+                throw new IllegalArgumentException("bad duty cycle " + on + "/" + period);
+            }
+            this.period = period;
+            this.on = Math.min(on, period);
+        }
+
+        @Override
+        public int level(int rating, int phase, long tick){
+            return Math.floorMod(tick + phase, (long) this.period) < this.on ? rating : 0;
+        }
+
+        @Override
+        public long nextChange(int phase, long tick){
+            if(this.on == 0 || this.on == this.period){
+                return Long.MAX_VALUE;
+            }
+            long position = Math.floorMod(tick + phase, (long) this.period);
+            return tick + (position < this.on ? this.on - position : this.period - position);
+        }
+
+        @Override
+        public int period(){
+            return this.period;
+        }
+    }
+
+    /**
+     * A repeating series of levels, each a percentage of the rating held
+     * for the same number of ticks.
+     */
+    final class TimeSeries implements LoadProfile {
+        private final int step;
+        private final int[] percent;
+
+        /**
+         * @param step How many ticks each level lasts.
+         * @param percent The levels, in percent of the rating.
+         */
+        public TimeSeries(int step, int[] percent){
+            if(step <= 0 || percent.length == 0){
+                throw new IllegalArgumentException("bad time series");
+            }
+            this.step = step;
+            this.percent = percent.clone();
+        }
+
+        @Override
+        public int level(int rating, int phase, long tick){
+            long u = tick + phase;
+            int i = (int) Math.floorMod(Math.floorDiv(u, (long) this.step), (long) this.percent.length);
+            return (int) ((long) rating * this.percent[i] / 100);
+        }
+
+        @Override
+        public long nextChange(int phase, long tick){
+            if(this.percent.length == 1){
+                return Long.MAX_VALUE;
+            }
+            return tick + (this.step - Math.floorMod(tick + phase, (long) this.step));
+        }
+
+        @Override
+        public int period(){
+            return this.step * this.percent.length;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package components;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A day-long (or any length) load study on the topology of a compact model.
+ * <br><br>
+ * Time goes in ticks. Appliances are given LoadProfiles; an appliance
+ * without one keeps drawing what it draws in the model. The study keeps
+ * its own draws and never changes the model.
+ * <br><br>
+ * Only appliances whose draw changes are visited: each one is filed under
+ * the next tick its profile may change at, in a calendar of per-tick lists
+ * threaded through one int array, so filing it again is O(1). At each tick
+ * the changes are added up level by level, deepest first, the way a
+ * Transaction does, so every component above them is updated once and
+ * every circuit breaker checks its limit once, against its draw at the end
+ * of the tick. A breaker trips as its TripCurve says, at once by default,
+ * and stays open for the rest of the study; its sources lose what they
+ * were getting through it. Breakers that are off in the model are open
+ * from the start.
+ * <br><br>
+ * A breaker that is over its limit but under the instantaneous threshold
+ * of its curve is not checked again at every tick: its heat is brought up
+ * to date whenever its draw changes, and it is put on a TimerWheel for the
+ * tick its curve says it will trip at. A change of draw before then moves
+ * or cancels the timer.
+ * <br><br>
+ * For every breaker the study keeps its peak draw, its draw averaged over
+ * time and how many times it tripped. The average is kept as an area,
+ * draw times ticks, added to whenever the draw changes.
+ *
+ * @author Yutong Wu
+ */
+public class LoadStudy {
+    private static final int NONE = CircuitModel.NONE;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int WHEEL_SLOTS = 1 << 12;
+
+    private final CircuitModel model;
+    private final int n;
+    private final int[] parent;
+    private final int[] depth;
+    private final int[] value;
+    private final boolean[] breaker;
+    private final boolean[] appliance;
+    private final boolean[] drawing;
+    private int maxDepth;
+
+    private final LoadProfile[] profile;
+    private final int[] phase;
+    private final int[] level;
+    private final int[] load;
+    private final boolean[] open;
+
+    private final int[] peak;
+    private final long[] area;
+    private final int[] lastChange;
+    private final int[] trips;
+    private final TripCurve[] curve;
+    private final double[] heat;
+    private final TimerWheel timers;
+
+    private final int[] pending;
+    private final boolean[] listed;
+    private int[][] byDepth;
+    private int[] depthCount;
+
+    private int[] bucketHead;
+    private final int[] nextInBucket;
+
+    private int ticks;
+    private long changes;
+    private long nanos;
+
+    /**
+     * Get ready to study a circuit. Its topology, limits, ratings and
+     * switches are copied; the model itself is only read.
+     * @param model The circuit.
+     */
+    public LoadStudy(CircuitModel model){
+        this.model = model;
+        this.n = model.size();
+        this.parent = new int[this.n];
+        this.depth = new int[this.n];
+        this.value = new int[this.n];
+        this.breaker = new boolean[this.n];
+        this.appliance = new boolean[this.n];
+        this.drawing = new boolean[this.n];
+        this.profile = new LoadProfile[this.n];
+        this.phase = new int[this.n];
+        this.level = new int[this.n];
+        this.load = new int[this.n];
+        this.open = new boolean[this.n];
+        this.peak = new int[this.n];
+        this.area = new long[this.n];
+        this.lastChange = new int[this.n];
+        this.trips = new int[this.n];
+        this.curve = new TripCurve[this.n];
+        this.heat = new double[this.n];
+        this.timers = new TimerWheel(WHEEL_SLOTS, this.n);
+        this.pending = new int[this.n];
+        this.listed = new boolean[this.n];
+        this.nextInBucket = new int[this.n];
+        for(int id = 0; id < this.n; id++){
+            Reporter.Kind k = model.getKind(id);
+            int p = model.getParent(id);
+            this.parent[id] = p;
+            this.depth[id] = p == NONE ? 0 : this.depth[p] + 1;
+            this.maxDepth = Math.max(this.maxDepth, this.depth[id]);
+            this.value[id] = model.getValue(id);
+            this.breaker[id] = k == Reporter.Kind.CIRCUIT_BREAKER;
+            this.appliance[id] = k == Reporter.Kind.APPLIANCE;
+            this.drawing[id] = this.appliance[id] && model.isDrawing(id);
+            this.curve[id] = TripCurve.INSTANTANEOUS;
+        }
+        this.byDepth = new int[this.maxDepth + 1][];
+        this.depthCount = new int[this.maxDepth + 1];
+        for(int d = 0; d <= this.maxDepth; d++){
+            this.byDepth[d] = new int[16];
+        }
+    }
+
+    /**
+     * Give a profile to every appliance whose name matches a pattern.
+     * @param pattern A name, or a pattern with '*' and '?' wildcards.
+     * @param p The profile.
+     * @param shift The phase to give each appliance, or -1 to pick one
+     *              for each appliance from its name, spread over the period.
+     * @return How many appliances got the profile.
+     */
+    public int assign(String pattern, LoadProfile p, int shift){
+        int count = 0;
+        for(int id: this.model.registry().find(pattern)){
+            if(this.appliance[id]){
+                this.profile[id] = p;
+                this.phase[id] = shift >= 0 ? shift : (int) Math.floorMod(mix(this.model.getName(id).hashCode()), (long) p.period());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Give a trip curve to every circuit breaker whose name matches a pattern.
+     * @param pattern A name, or a pattern with '*' and '?' wildcards.
+     * @param c The trip curve.
+     * @return How many breakers got the curve.
+     */
+    public int assign(String pattern, TripCurve c){
+        int count = 0;
+        for(int id: this.model.registry().find(pattern)){
+            if(this.breaker[id]){
+                this.curve[id] = c;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read profiles and trip curves from a file, one per line, applied in order:
+     * <br>"DutyCycle pattern phase period on"
+     * <br>"TimeSeries pattern phase step percent..."
+     * <br>where phase is a number of ticks or "random", and
+     * <br>"TripCurve pattern Instantaneous"
+     * <br>"TripCurve pattern InverseTime constant exponent multiple"
+     * <br>"TripCurve pattern Thermal tau multiple"
+     * <br>where multiple is the instantaneous threshold in times the limit.
+     * @param file The profile file.
+     * @throws CommandException if the file cannot be read, a line is bad,
+     *                          or a pattern matches nothing it could apply to.
+     */
+    public void readProfiles(Path file){
+        List<String> lines;
+        try{
+            lines = Files.readAllLines(file);
+        }catch(NoSuchFileException nsfe){
+            throw new CommandException(Overload.FILE_NOT_FOUND, file.toString());
+        }catch(IOException ioe){
+            throw new CommandException(Overload.FILE_NOT_FOUND, file.toString(), ioe.getMessage());
+        }
+        for(int i = 0; i < lines.size(); i++){
+            String[] words = WHITESPACE.split(lines.get(i).trim());
+            if(words[0].isEmpty()){
+                continue;
+            }
+            int matched;
+            try{
+                if(words[0].equals("TripCurve")){
+                    matched = this.assign(words[1], curve(words));
+                }else{
+                    matched = this.assign(words[1], profile(words), phase(words[2]));
+                }
+            }catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+                throw new CommandException(Overload.BAD_FILE_FORMAT, file + ":" + (i + 1), lines.get(i).trim());
+            }
+            if(matched == 0){
+                throw new CommandException(Overload.UNKNOWN_COMPONENT, file + ":" + (i + 1), words[1]);
+            }
+        }
+    }
+
+    /**
+     * @return The phase of a profile line, -1 for random.
+     */
+    private static int phase(String word){
+        if(word.equals("random")){
+            return -1;
+        }
+        int shift = Integer.parseInt(word);
+        if(shift < 0){
+            throw new IllegalArgumentException(word);
+        }
+        return shift;
+    }
+
+    /**
+     * @return The profile of a profile line.
+     */
+    private static LoadProfile profile(String[] words){
+        if(words[0].equals("DutyCycle") && words.length == 5){
+            return new LoadProfile.DutyCycle(Integer.parseInt(words[3]), Integer.parseInt(words[4]));
+        }
+        if(words[0].equals("TimeSeries") && words.length >= 5){
+            int[] percent = new int[words.length - 4];
+            for(int k = 0; k < percent.length; k++){
+                percent[k] = Integer.parseInt(words[k + 4]);
+            }
+            return new LoadProfile.TimeSeries(Integer.parseInt(words[3]), percent);
+        }
+        throw new IllegalArgumentException(words[0]);
+    }
+
+    /**
+     * @return The trip curve of a TripCurve line.
+     */
+    private static TripCurve curve(String[] words){
+        if(words[2].equals("Instantaneous") && words.length == 3){
+            return TripCurve.INSTANTANEOUS;
+        }
+        if(words[2].equals("InverseTime") && words.length == 6){
+            return new TripCurve.InverseTime(Double.parseDouble(words[3]), Double.parseDouble(words[4]),
+                    Double.parseDouble(words[5]));
+        }
+        if(words[2].equals("Thermal") && words.length == 5){
+            return new TripCurve.Thermal(Double.parseDouble(words[3]), Double.parseDouble(words[4]));
+        }
+        throw new IllegalArgumentException(words[2]);
+    }
+
+    /**
+     * Run the study from tick 0, with every draw starting from nothing.
+     * @param ticks How many ticks to run.
+     */
+    public void run(int ticks){
+        long start = System.nanoTime();
+        this.ticks = ticks;
+        this.changes = 0;
+        Arrays.fill(this.level, 0);
+        Arrays.fill(this.load, 0);
+        Arrays.fill(this.peak, 0);
+        Arrays.fill(this.area, 0);
+        Arrays.fill(this.lastChange, 0);
+        Arrays.fill(this.trips, 0);
+        Arrays.fill(this.heat, 0);
+        this.timers.clear();
+        for(int id = 0; id < this.n; id++){
+            this.open[id] = this.breaker[id] && !this.model.isSwitchOn(id);
+        }
+        this.bucketHead = new int[Math.max(ticks, 1)];
+        Arrays.fill(this.bucketHead, NONE);
+        for(int id = this.n - 1; id >= 0; id--){
+            if(this.appliance[id]){
+                this.schedule(id, 0);
+            }
+        }
+        for(int t = 0; t < ticks; t++){
+            this.tick(t);
+        }
+        for(int id = 0; id < this.n; id++){
+            if(this.breaker[id]){
+                this.area[id] += (long) this.effective(id) * (ticks - this.lastChange[id]);
+            }
+        }
+        this.nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Move every appliance filed under this tick to its new draw, then
+     * pass the changes up and check the breakers that got one.
+     */
+    private void tick(int t){
+        int due = this.timers.advance(t);
+        for(int k = 0; k < due; k++){
+            int id = this.timers.expired(k);
+            int before = this.trip(id, t);
+            if(before != 0 && this.parent[id] != NONE){
+                this.pend(this.parent[id], -before);
+            }
+        }
+        int a = this.bucketHead[t];
+        this.bucketHead[t] = NONE;
+        while(a != NONE){
+            int next = this.nextInBucket[a];
+            LoadProfile p = this.profile[a];
+            int rating = this.value[a];
+            int now = p == null ? (this.drawing[a] ? rating : 0) : p.level(rating, this.phase[a], t);
+            int delta = now - this.level[a];
+            if(delta != 0){
+                this.level[a] = now;
+                this.changes++;
+                this.pend(a, delta);
+            }
+            if(p != null){
+                long later = p.nextChange(this.phase[a], t);
+                if(later < this.ticks){
+                    this.schedule(a, (int) later);
+                }
+            }
+            a = next;
+        }
+        for(int d = this.maxDepth; d >= 0; d--){
+            int[] nodes = this.byDepth[d];
+            for(int k = 0; k < this.depthCount[d]; k++){
+                int id = nodes[k];
+                int delta = this.pending[id];
+                this.pending[id] = 0;
+                this.listed[id] = false;
+                int up = delta == 0 ? 0 : this.absorb(id, delta, t);
+                if(up != 0 && this.parent[id] != NONE){
+                    this.pend(this.parent[id], up);
+                }
+            }
+            this.depthCount[d] = 0;
+        }
+    }
+
+    /**
+     * Take the net change of a tick at one node.
+     * @return The change to pass on to the source.
+     */
+    private int absorb(int id, int delta, int t){
+        if(!this.breaker[id]){
+            this.load[id] += delta;
+            return delta;
+        }
+        int before = this.effective(id);
+        this.settle(id, t);
+        this.load[id] += delta;
+        if(this.open[id]){
+            return 0;
+        }
+        this.peak[id] = Math.max(this.peak[id], this.load[id]);
+        long wait = this.tripIn(id);
+        if(wait == 0){
+            this.trip(id, t);
+            return -before;
+        }
+        if(wait < this.ticks - t){
+            this.timers.schedule(id, t + wait);
+        }else{
+            this.timers.cancel(id);
+        }
+        return delta;
+    }
+
+    /**
+     * Bring the area and heat of a breaker up to a tick, at the draw it
+     * has had since its last change.
+     */
+    private void settle(int id, int t){
+        int since = t - this.lastChange[id];
+        if(since == 0){
+            return;
+        }
+        int draw = this.effective(id);
+        this.area[id] += (long) draw * since;
+        if(!this.open[id]){
+            this.heat[id] = this.curve[id].heat(this.heat[id], this.value[id], draw, since);
+        }
+        this.lastChange[id] = t;
+    }
+
+    /**
+     * @return In how many ticks a closed breaker trips at its draw now,
+     *         0 for at once, Long.MAX_VALUE for never.
+     */
+    private long tripIn(int id){
+        TripCurve c = this.curve[id];
+        int limit = this.value[id];
+        if(this.load[id] > c.instantaneous(limit)){
+            return 0;
+        }
+        return c.ticksToTrip(this.heat[id], limit, this.load[id]);
+    }
+
+    /**
+     * Open a breaker for good.
+     * @return The draw its source was getting through it.
+     */
+    private int trip(int id, int t){
+        this.settle(id, t);
+        int before = this.effective(id);
+        this.trips[id]++;
+        this.open[id] = true;
+        this.timers.cancel(id);
+        return before;
+    }
+
+    /**
+     * @return The draw that actually goes through a node: nothing through an open breaker.
+     */
+    private int effective(int id){
+        return this.open[id] ? 0 : this.load[id];
+    }
+
+    private void pend(int id, int delta){
+        if(!this.listed[id]){
+            int d = this.depth[id];
+            if(this.depthCount[d] == this.byDepth[d].length){
+                this.byDepth[d] = Arrays.copyOf(this.byDepth[d], this.depthCount[d] * 2);
+            }
+            this.byDepth[d][this.depthCount[d]++] = id;
+            this.listed[id] = true;
+        }
+        this.pending[id] += delta;
+    }
+
+    private void schedule(int id, int t){
+        this.nextInBucket[id] = this.bucketHead[t];
+        this.bucketHead[t] = id;
+    }
+
+    /**
+     * @param id Node id of a circuit breaker.
+     * @return Its highest draw at the end of a tick.
+     */
+    public int getPeak(int id){
+        return this.peak[id];
+    }
+
+    /**
+     * @param id Node id of a circuit breaker.
+     * @return The draw that went through it, averaged over the ticks of the study.
+     */
+    public double getAverage(int id){
+        return this.ticks == 0 ? 0 : (double) this.area[id] / this.ticks;
+    }
+
+    /**
+     * @param id Node id of a circuit breaker.
+     * @return How many times it tripped.
+     */
+    public int getTrips(int id){
+        return this.trips[id];
+    }
+
+    /**
+     * @return How many times an appliance changed its draw during the last run.
+     */
+    public long getChanges(){
+        return this.changes;
+    }
+
+    /**
+     * @return How long the last run took, in milliseconds.
+     */
+    public double getMillis(){
+        return this.nanos / 1e6;
+    }
+
+    /**
+     * Print the figures of every breaker on System.out, in name order.
+     */
+    public void print(){
+        ComponentRegistry registry = this.model.registry();
+        int appliances = registry.count(Reporter.Kind.APPLIANCE);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE), false);
+        out.printf("Load study of %d appliances over %d ticks: %d changes in %.1f ms.%n",
+                appliances, this.ticks, this.changes, this.getMillis());
+        for(int id: registry.find("*")){
+            if(!this.breaker[id]){
+                continue;
+            }
+            out.printf("CircuitBreaker %s: peak %d, average %.1f, limit %d, trips %d%n",
+                    registry.name(id), this.peak[id], this.getAverage(id), this.value[id], this.trips[id]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Scramble a name hash into a well spread number, to pick phases from.
+     */
+    private static long mix(long x){
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+}
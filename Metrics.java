@@ -0,0 +1,159 @@
+package components;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the work the simulator does: commands and how long each took,
+ * draw propagations and how many components they walked, events emitted
+ * by key, and trips by circuit breaker.
+ * <br><br>
+ * Every count is a LongAdder, which threads add to without contending, so
+ * counting stays cheap in the concurrent modes. Propagations add up the
+ * components they walk in a local variable and count them once at the
+ * end. The figures are read without stopping anyone, so a snapshot taken
+ * while commands run may be a little behind.
+ *
+ * @author Yutong Wu
+ */
+public class Metrics {
+    private static final Reporter.Msg[] MSGS = Reporter.Msg.values();
+    private static final ConcurrentHashMap<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> trips = new ConcurrentHashMap<>();
+    private static final LongAdder propagations = new LongAdder();
+    private static final LongAdder walked = new LongAdder();
+    private static final LongAdder[] events = new LongAdder[MSGS.length];
+    private static ScheduledExecutorService dumper;
+
+    static {
+        for(int i = 0; i < events.length; i++){
+            events[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Count a command that was carried out or rejected.
+     * @param name The kind of command, e.g. "toggle".
+     * @param nanos How long it took.
+     */
+    public static void command(String name, long nanos){
+        LatencyHistogram h = commands.get(name);
+        if(h == null){
+            h = commands.computeIfAbsent(name, k -> new LatencyHistogram());
+        }
+        h.record(nanos);
+    }
+
+    /**
+     * Count a draw propagation.
+     * @param components How many components it walked.
+     */
+    static void propagation(int components){
+        propagations.increment();
+        walked.add(components);
+    }
+
+    /**
+     * Count an event where it is emitted, whether the reporting level
+     * and sampling let it through or not.
+     * @param msg Its key.
+     */
+    static void event(Reporter.Msg msg){
+        events[msg.ordinal()].increment();
+    }
+
+    /**
+     * Count a circuit breaker blowing.
+     * @param name Name of the breaker.
+     */
+    static void trip(String name){
+        LongAdder count = trips.get(name);
+        if(count == null){
+            count = trips.computeIfAbsent(name, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * Write every figure, commands and breakers in name order.
+     * @param out Where to write them.
+     */
+    public static void print(PrintWriter out){
+        out.println("Commands:");
+        for(Map.Entry<String, LatencyHistogram> e: new TreeMap<>(commands).entrySet()){
+            LatencyHistogram h = e.getValue();
+            out.printf("  %s: %d, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n", e.getKey(), h.getCount(),
+                    h.getMean() / 1e3, h.getPercentile(0.5) / 1e3, h.getPercentile(0.99) / 1e3, h.getMax() / 1e3);
+        }
+        long p = propagations.sum();
+        long w = walked.sum();
+        out.printf("Draw propagations: %d, components walked %d (%.1f each)%n", p, w, p == 0 ? 0 : (double) w / p);
+        out.println("Events:");
+        for(Reporter.Msg msg: MSGS){
+            long n = events[msg.ordinal()].sum();
+            if(n > 0){
+                out.println("  " + msg + ": " + n);
+            }
+        }
+        out.println("Trips:");
+        for(Map.Entry<String, LongAdder> e: new TreeMap<>(trips).entrySet()){
+            out.println("  CircuitBreaker " + e.getKey() + ": " + e.getValue().sum());
+        }
+    }
+
+    /**
+     * Write every figure on System.out.
+     */
+    public static void print(){
+        Reporter.flush();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)), false);
+        print(out);
+        out.flush();
+    }
+
+    /**
+     * Append every figure to a file now and then, and once more when the
+     * program ends.
+     * @param file The file.
+     * @param seconds How long to wait between two dumps.
+     */
+    public static synchronized void dumpEvery(Path file, long seconds){
+        if(dumper != null){
+            dumper.shutdownNow();
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "overload-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), seconds, seconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(file), "overload-metrics-exit"));
+    }
+
+    /**
+     * Append every figure to a file, under the time they were taken.
+     */
+    private static synchronized void dump(Path file){
+        try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE))){
+            out.println("Metrics at " + Instant.now() + ":");
+            print(out);
+            out.println();
+        }catch(IOException ioe){
+            System.err.println("cannot write metrics to " + file + ": " + ioe.getMessage());
+        }
+    }
+}
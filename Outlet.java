@@ -7,8 +7,26 @@ public class Outlet extends Component {
      * @param source Source of the outlet.
      */
     public Outlet(String name, Component source) {
-        super(name, source);
-        this.getSource().attach(this);
+        this(name, source, true);
+    }
+
+    /**
+     * Constructor of an outlet that may be created and attached to its
+     * source without reporting it, as when loading a snapshot.
+     * @param report Whether to report it.
+     */
+    Outlet(String name, Component source, boolean report) {
+        super(name, source, report);
+        if(report){
+            this.getSource().attach(this);
+        }else{
+            this.getSource().addLoad(this);
+        }
+    }
+
+    @Override
+    Reporter.Kind getKind(){
+        return Reporter.Kind.OUTLET;
     }
 
     @Override
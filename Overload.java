@@ -2,8 +2,18 @@ package components;
 
 import components.*;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -21,16 +31,34 @@ public class Overload {
     public static final int UNKNOWN_COMPONENT_TYPE = 6;
     public static final int UNKNOWN_USER_COMMAND = 7;
     public static final int UNSWITCHABLE_COMPONENT = 8;
+    public static final int NO_VERSIONS = 9;
+    public static final int NOTHING_TO_UNDO = 10;
+    public static final int NOTHING_TO_REDO = 11;
+    public static final int VERSION_NOT_KEPT = 12;
 
     private static final String WHITESPACE_REGEX = "\\s+";
     private static final String[] NO_STRINGS = new String[ 0 ];
 
     private static final String PROMPT = "? ";
+    private static final EnumSet<Reporter.Kind> SWITCHABLE =
+            EnumSet.of(Reporter.Kind.CIRCUIT_BREAKER, Reporter.Kind.APPLIANCE);
+    private static final EnumSet<Reporter.Kind> APPLIANCES = EnumSet.of(Reporter.Kind.APPLIANCE);
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList(
+            "toggle", "display", "connect", "switch", "save", "load", "study", "risk",
+            "headroom", "canconnect", "stats", "undo", "redo", "diff", "why", "history"));
+    private static final Set<String> CHANGING = new HashSet<>(Arrays.asList("toggle", "connect", "switch"));
+    private static final Set<String> LOGGED = new HashSet<>(Arrays.asList("toggle", "connect", "switch", "undo", "redo", "history"));
     private static Reporter Support;
+    private static CommandLog journal;
+    private static History history;
+    private static int historySize = 1000;
 
     static {
         Reporter.addError(
-                BAD_ARGS, "Usage: java components.Overload <configFile>" );
+                BAD_ARGS,
+                "Usage: java components.Overload [-compact] [-parallel] [-parallel-power] [-partitioned] [-history <n>] [-no-history] [-feeds <file,...>] [-batch <file|->] [-async] [-quiet]"
+                + " [-report <msg,...>] [-sample <n>]"
+                + " [-stats <file>] [-stats-every <seconds>] [-wal <dir>] [-checkpoint-every <n>] [-serve <port>] <configFile>" );
         Reporter.addError( FILE_NOT_FOUND, "Config file not found" );
         Reporter.addError( BAD_FILE_FORMAT, "Error in config file" );
         Reporter.addError(
@@ -49,41 +77,53 @@ public class Overload {
                 UNKNOWN_USER_COMMAND,
                 "Unknown user command"
         );
+        Reporter.addError(
+                UNSWITCHABLE_COMPONENT,
+                "Component cannot be switched"
+        );
+        Reporter.addError(
+                NO_VERSIONS,
+                "No versions of the circuit are kept"
+        );
+        Reporter.addError(
+                NOTHING_TO_UNDO,
+                "Nothing to undo since the last connect, load or checkpoint"
+        );
+        Reporter.addError(
+                NOTHING_TO_REDO,
+                "Nothing undone to redo"
+        );
+        Reporter.addError(
+                VERSION_NOT_KEPT,
+                "Version of the circuit not kept"
+        );
     }
 
     /**
-     * Takes in a file and build a Hashmap containing the components of the circuit.
+     * Takes in a file and adds the components it describes to a circuit.
+     * Components may be listed before their sources; errors name the line.
      * @param configFileName A string of the filename
-     * @return A Hashmap that contains the components of the circuit.
-     */
-    private static HashMap<String,Component> readConfiguration(String configFileName){
-        HashMap<String, Component> config = new HashMap<>();
-        try(Scanner configFile = new Scanner(new File(configFileName))){
-            while(configFile.hasNextLine()){
-                String[] line = configFile.nextLine().split(WHITESPACE_REGEX);
-                if(config.containsKey(line[1])) {
-                    Support.usageError(REPEAT_NAME);
-                }else if (line[0].equals("PowerSource")){
-                    PowerSource s = new PowerSource(line[1]);
-                    config.put(line[1], s);
-                }else if(line[0].equals("CircuitBreaker")){
-                    CircuitBreaker cb = new CircuitBreaker(line[1],config.get(line[2]), Integer.parseInt(line[3]));
-                    config.put(line[1],cb);
-                }else if(line[0].equals("Outlet")){
-                    Outlet o = new Outlet(line[1],config.get(line[2]));
-                    config.put(line[1],o);
-                }else if(line[0].equals("Appliance")){
-                    Appliance a = new Appliance(line[1],config.get(line[2]),Integer.parseInt(line[3]));
-                    config.put(line[1],a);
-                }else{
-                    Support.usageError(UNKNOWN_COMPONENT_TYPE);
+     * @param circuit The circuit to fill, either backend.
+     * @return The circuit, with the components of the file added.
+     */
+    private static Circuit readConfiguration(String configFileName, Circuit circuit){
+        return ConfigLoader.load(configFileName, circuit);
+    }
 
-                }
-            }
-        }catch(FileNotFoundException fnfe){
-            Support.usageError(FILE_NOT_FOUND);
-        }
-        return config;
+    /**
+     * Reads the file with the parallel, memory mapped loader and tells how fast it went.
+     * @param configFileName A string of the filename
+     * @param circuit The circuit to fill, either backend.
+     * @return The circuit, with the components of the file added.
+     */
+    private static Circuit readConfigurationParallel(String configFileName, Circuit circuit){
+        ConfigLoader loader = new ConfigLoader(true);
+        loader.read(configFileName, circuit);
+        Reporter.flush();
+        System.out.printf("Parsed %d lines in %.1f ms on %d threads (%.0f lines/sec).%n",
+                loader.getLines(), loader.getParseMillis(), loader.getParallelism(),
+                loader.getLinesPerSecond());
+        return circuit;
     }
 
     /**
@@ -91,6 +131,7 @@ public class Overload {
      * @param config A hashmap with all the components in the circuit
      */
     public static void display(HashMap<String, Component> config){
+        Reporter.flush();
         for(Component c: config.values()){
             if(c instanceof PowerSource){
                 c.display();
@@ -137,6 +178,7 @@ public class Overload {
     public static HashMap<String, Component> initialize(HashMap<String, Component> config){
         for(Component c: config.values()){
             if(c instanceof PowerSource){
+                Reporter.flush();
                 System.out.println(c.toString() + ": powering up");
                 c.engage();
                 config.put(c.getName(),c);
@@ -159,42 +201,921 @@ public class Overload {
         return config;
     }
 
+    /**
+     * Initialize a circuit once it is built: engage its power sources and
+     * everything they feed.
+     * @param circuit The circuit, either backend.
+     * @return The circuit, now running.
+     */
+    public static Circuit initialize(Circuit circuit){
+        circuit.initialize();
+        return circuit;
+    }
+
+    /**
+     * Toggles a switchable component of a circuit, as the toggle command does.
+     * @param circuit The circuit, either backend.
+     * @param name The name of the circuit breaker or appliance.
+     * @return The circuit after the component is toggled.
+     */
+    public static Circuit toggle(Circuit circuit, String name){
+        circuit.toggle(name);
+        return circuit;
+    }
+
+    /**
+     * Connects a new appliance to a circuit, as the connect command does.
+     * @param circuit The circuit, either backend.
+     * @param name The name of the appliance.
+     * @param source The outlet it is plugged into.
+     * @param rating The rating of the appliance.
+     * @return The circuit with the appliance added.
+     */
+    public static Circuit connect(Circuit circuit, String name, String source, int rating){
+        circuit.addAppliance(name, source, rating);
+        return circuit;
+    }
+
+    /**
+     * Saves the whole state of the circuit in a binary snapshot file.
+     * @param circuit The circuit to save.
+     * @param fileName Where to save it.
+     * @throws CommandException if the file cannot be written.
+     */
+    public static void save(Circuit circuit, String fileName){
+        try{
+            Snapshot.save(circuit, Paths.get(fileName));
+            Reporter.flush();
+            System.out.println(circuit.size() + " components saved.");
+        }catch(IOException ioe){
+            throw new CommandException(FILE_NOT_FOUND, fileName, ioe.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the circuit with the one saved in a binary snapshot file.
+     * @param fileName The snapshot to load.
+     * @param compact Whether to load it into the compact array model.
+     * @return The loaded circuit.
+     * @throws CommandException if the file cannot be read or is not a snapshot.
+     */
+    public static Circuit load(String fileName, boolean compact){
+        try{
+            Circuit circuit = Snapshot.load(Paths.get(fileName), compact);
+            Reporter.flush();
+            System.out.println(circuit.size() + " components loaded.");
+            return circuit;
+        }catch(NoSuchFileException nsfe){
+            throw new CommandException(FILE_NOT_FOUND, fileName);
+        }catch(IOException ioe){
+            throw new CommandException(BAD_FILE_FORMAT, fileName, ioe.getMessage());
+        }
+    }
+
+    /**
+     * Runs a load study of the circuit over some ticks, with the appliance
+     * profiles of a file, and prints the figures of every circuit breaker.
+     * The circuit itself is left as it is.
+     * @param circuit The circuit to study.
+     * @param fileName The profile file.
+     * @param ticks How many ticks to run.
+     * @throws CommandException if the profile file cannot be read or is wrong.
+     */
+    public static void study(Circuit circuit, String fileName, int ticks){
+        LoadStudy study = new LoadStudy(Snapshot.compact(circuit));
+        study.readProfiles(Paths.get(fileName));
+        study.run(ticks);
+        Reporter.flush();
+        study.print();
+    }
+
+    /**
+     * Runs random scenarios of the circuit, with every appliance on at the
+     * same chance, and prints how likely every circuit breaker is to trip.
+     * The circuit itself is left as it is.
+     * @param circuit The circuit to analyse.
+     * @param scenarios How many scenarios to run.
+     * @param probability The chance of each appliance being on.
+     * @param seed Seed of the random generator.
+     */
+    public static void risk(Circuit circuit, long scenarios, double probability, long seed){
+        RiskAnalysis analysis = new RiskAnalysis(Snapshot.compact(circuit));
+        analysis.run(scenarios, probability, seed);
+        Reporter.flush();
+        analysis.print();
+    }
+
+    /**
+     * Tells how much more draw a component could take before a circuit
+     * breaker above it blows.
+     * @param circuit The circuit to look in.
+     * @param name Name of the component.
+     * @throws CommandException if there is no such component.
+     */
+    public static void headroom(Circuit circuit, String name){
+        int headroom = circuit.headroom(name);
+        Reporter.flush();
+        System.out.println("Headroom of " + name + ": " + describeHeadroom(headroom));
+    }
+
+    /**
+     * Puts the circuit back as it was before the last command that changed
+     * it, without reporting events.
+     * @param circuit The circuit.
+     * @throws CommandException if there is nothing to undo, or the last change was a connect.
+     */
+    public static void undo(Circuit circuit){
+        int restored = history(circuit, "undo").undo();
+        Reporter.flush();
+        System.out.println("Undone to version " + history.getVersion() + ", " + restored + " components restored.");
+    }
+
+    /**
+     * Carries out again the last command undone, without reporting events.
+     * @param circuit The circuit.
+     * @throws CommandException if nothing has been undone since the last change.
+     */
+    public static void redo(Circuit circuit){
+        int restored = history(circuit, "redo").redo();
+        Reporter.flush();
+        System.out.println("Redone to version " + history.getVersion() + ", " + restored + " components restored.");
+    }
+
+    /**
+     * Keeps a number of versions from now on, starting over from the
+     * current state; 0 keeps none.
+     * @param size How many versions to keep.
+     */
+    public static void keepVersions(int size){
+        historySize = size;
+        history = null;
+        Reporter.flush();
+        System.out.println("Keeping " + size + " versions from now on.");
+    }
+
+    /**
+     * Prints every component whose switch, engagement or draw differs
+     * between two versions of the circuit, by name.
+     * @param circuit The circuit.
+     * @param from The number of a version.
+     * @param to The number of another version.
+     * @throws CommandException if a version is not kept any more.
+     */
+    public static void diff(Circuit circuit, long from, long to){
+        History h = history(circuit, "diff");
+        History.IntStack ids = h.diff(from, to);
+        List<Integer> order = new ArrayList<>(ids.size);
+        for(int i = 0; i < ids.size; i++){
+            order.add(ids.items[i]);
+        }
+        order.sort((a, b) -> h.name(a).compareTo(h.name(b)));
+        Reporter.flush();
+        System.out.println(order.size() + " components differ between versions " + from + " and " + to + ".");
+        for(int id: order){
+            System.out.println("  " + h.name(id) + ": " + h.describe(from, id) + " -> " + h.describe(to, id));
+        }
+    }
+
+    /**
+     * Tells how a circuit breaker came to blow the last time it did: the
+     * command, the draw propagations and trips that led to it, and what
+     * blowing did next. A partitioned circuit is let finish what it was
+     * given first.
+     * @param circuit The circuit to look in.
+     * @param name Name of the circuit breaker.
+     * @throws CommandException if there is no such component.
+     */
+    public static void why(Circuit circuit, String name){
+        if(!circuit.contains(name)){
+            throw new CommandException(UNKNOWN_COMPONENT, name);
+        }
+        if(circuit instanceof PartitionedCircuit){
+            ((PartitionedCircuit) circuit).drain();
+        }
+        List<String> lines = Trace.why(name);
+        Reporter.flush();
+        for(String line: lines){
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * @return The history of the circuit.
+     * @throws CommandException naming the command if no version of it has been kept.
+     */
+    private static History history(Circuit circuit, String command){
+        if(history == null || history.getCircuit() != circuit){
+            throw new CommandException(NO_VERSIONS, command);
+        }
+        return history;
+    }
+
+    /**
+     * Tells whether an appliance could be connected to a source and
+     * switched on without any circuit breaker blowing.
+     * @param circuit The circuit to look in.
+     * @param source Name of the source.
+     * @param rating Rating of the appliance.
+     * @throws CommandException if there is no such source.
+     */
+    public static void canConnect(Circuit circuit, String source, int rating){
+        int headroom = circuit.headroom(source);
+        Reporter.flush();
+        System.out.println(describePlacement(source, rating, headroom));
+    }
+
+    /**
+     * Tells, for every "source rating" line of a file, whether an appliance
+     * could be connected there and switched on without any circuit breaker
+     * blowing. Each placement is judged on its own, against the circuit as
+     * it is.
+     * @param circuit The circuit to look in.
+     * @param fileName The file of placements.
+     * @throws CommandException if the file cannot be read, a line is bad,
+     *                          or a source is unknown.
+     */
+    public static void canConnect(Circuit circuit, String fileName){
+        List<String> lines;
+        try{
+            lines = Files.readAllLines(Paths.get(fileName));
+        }catch(NoSuchFileException nsfe){
+            throw new CommandException(FILE_NOT_FOUND, fileName);
+        }catch(IOException ioe){
+            throw new CommandException(FILE_NOT_FOUND, fileName, ioe.getMessage());
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), false);
+        Reporter.flush();
+        int placements = 0;
+        int fitting = 0;
+        for(int i = 0; i < lines.size(); i++){
+            String line = lines.get(i).trim();
+            if(line.isEmpty()){
+                continue;
+            }
+            String[] words = line.split(WHITESPACE_REGEX);
+            int rating;
+            try{
+                if(words.length != 2){
+                    throw new NumberFormatException(line);
+                }
+                rating = Integer.parseInt(words[1]);
+            }catch(NumberFormatException nfe){
+                out.flush();
+                throw new CommandException(BAD_FILE_FORMAT, fileName + ":" + (i + 1), line);
+            }
+            int headroom;
+            try{
+                headroom = circuit.headroom(words[0]);
+            }catch(CommandException ce){
+                out.flush();
+                throw new CommandException(UNKNOWN_COMPONENT, fileName + ":" + (i + 1), words[0]);
+            }
+            placements++;
+            if(rating <= headroom){
+                fitting++;
+            }
+            out.println(describePlacement(words[0], rating, headroom));
+        }
+        out.println(fitting + " of " + placements + " placements fit.");
+        out.flush();
+    }
+
+    private static String describeHeadroom(int headroom){
+        return headroom == Integer.MAX_VALUE ? "unlimited" : Integer.toString(headroom);
+    }
+
+    private static String describePlacement(String source, int rating, int headroom){
+        return "Appliance of rating " + rating + " on " + source + ": " + (rating <= headroom ? "yes" : "no")
+                + " (headroom " + describeHeadroom(headroom) + ")";
+    }
+
+    /**
+     * Carries out one user command: toggle, display (of everything, or
+     * "display name [levels]" for one part), connect, save, load,
+     * "study profiles ticks" for a load study, "risk scenarios probability [seed]"
+     * for a Monte Carlo analysis, "headroom name", "canconnect source rating"
+     * or "canconnect file" to ask what a new appliance would do, "stats" for
+     * the Metrics, "switch on|off appliance..." to switch several
+     * appliances together in one Transaction, "undo", "redo" and
+     * "diff v1 v2" over the versions kept in the History, "history n" to
+     * keep n versions from now on, or "why breaker" to trace back the last
+     * time a circuit breaker blew. Toggle and switch take name patterns
+     * such as "kitchen.*" as well as names.
+     * Every toggle, connect and switch that was carried out makes a new
+     * version. Every command is counted and timed in the Metrics, under its
+     * name, or "unknown", and given a new trace id in the Trace. With a
+     * CommandLog, every toggle, connect, switch, undo, redo and history that
+     * was carried out is logged, and a load is checkpointed at once; each
+     * checkpoint is followed in the log by the number of versions kept.
+     * Quitting is left to the caller.
+     * @param circuit The circuit to run the command on.
+     * @param command The words of the command.
+     * @param count How many of the words are used.
+     * @return The circuit to carry on with, a new one after a load.
+     * @throws CommandException if the command is unknown or cannot be carried out.
+     */
+    public static Circuit execute(Circuit circuit, String[] command, int count){
+        long start = begin(command, count);
+        try{
+            boolean changing = historySize > 0 && CHANGING.contains(command[0]);
+            if(changing && (history == null || history.getCircuit() != circuit)){
+                history = History.of(circuit, historySize);
+            }
+            circuit = dispatch(circuit, command, count);
+            if(changing && history != null && history.getCircuit() == circuit){
+                remember(circuit, command, count);
+            }
+            if(journal != null){
+                log(circuit, command, count);
+            }
+            return circuit;
+        }finally{
+            done(command, start);
+        }
+    }
+
+    /**
+     * Gets ready to carry out a command, wherever it comes from: the REPL,
+     * batch mode or the concurrent simulator. The command starts a new
+     * trace on this thread.
+     * @param command The words of the command.
+     * @param count How many of the words are used.
+     * @return When the command started, to hand to done.
+     */
+    static long begin(String[] command, int count){
+        Trace.begin(command, count);
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts and times a command in the Metrics once it is over, whether
+     * it could be carried out or not.
+     * @param command The words of the command.
+     * @param start What begin returned for it.
+     */
+    static void done(String[] command, long start){
+        Metrics.command(COMMANDS.contains(command[0]) ? command[0] : "unknown", System.nanoTime() - start);
+    }
+
+    /**
+     * Carries out one command, as execute does, without timing it.
+     */
+    private static Circuit dispatch(Circuit circuit, String[] command, int count){
+        if(command[0].equals("toggle") && count >= 2){
+            for(String name: expand(circuit, command[1], SWITCHABLE)){
+                circuit.toggle(name);
+            }
+        }else if(command[0].equals("display") && count == 1){
+            circuit.display();
+        }else if(command[0].equals("display") && count <= 3){
+            int levels = Integer.MAX_VALUE;
+            if(count == 3){
+                try{
+                    levels = Integer.parseInt(command[2]);
+                }catch(NumberFormatException nfe){
+                    throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+                }
+            }
+            circuit.display(command[1], levels);
+        }else if(command[0].equals("connect")){
+            if(count < 5){
+                throw new CommandException(BAD_FILE_FORMAT, Arrays.copyOf(command, count));
+            }
+            int rating;
+            try{
+                rating = Integer.parseInt(command[4]);
+            }catch(NumberFormatException nfe){
+                throw new CommandException(BAD_FILE_FORMAT, command[4]);
+            }
+            circuit.addAppliance(command[2], command[3], rating);
+        }else if(command[0].equals("switch") && count >= 3
+                && (command[1].equals("on") || command[1].equals("off"))){
+            Transaction transaction = new Transaction(circuit);
+            for(int i = 2; i < count; i++){
+                for(String name: expand(circuit, command[i], APPLIANCES)){
+                    if(command[1].equals("on")){
+                        transaction.turnOn(name);
+                    }else{
+                        transaction.turnOff(name);
+                    }
+                }
+            }
+            transaction.commit();
+        }else if(command[0].equals("save") && count == 2){
+            save(circuit, command[1]);
+        }else if(command[0].equals("load") && count == 2){
+            if(circuit instanceof PartitionedCircuit){
+                PartitionedCircuit partitioned = (PartitionedCircuit) circuit;
+                partitioned.replace(load(command[1], partitioned.isCompact()));
+            }else{
+                circuit = load(command[1], circuit instanceof CircuitModel);
+            }
+        }else if(command[0].equals("study") && count == 3){
+            int ticks;
+            try{
+                ticks = Integer.parseInt(command[2]);
+            }catch(NumberFormatException nfe){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            if(ticks < 0){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            study(circuit, command[1], ticks);
+        }else if(command[0].equals("risk") && (count == 3 || count == 4)){
+            long scenarios;
+            double probability;
+            long seed = 0;
+            try{
+                scenarios = Long.parseLong(command[1]);
+                probability = Double.parseDouble(command[2]);
+                if(count == 4){
+                    seed = Long.parseLong(command[3]);
+                }
+            }catch(NumberFormatException nfe){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            if(scenarios < 0 || !(probability >= 0 && probability <= 1)){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            risk(circuit, scenarios, probability, seed);
+        }else if(command[0].equals("undo") && count == 1){
+            undo(circuit);
+        }else if(command[0].equals("redo") && count == 1){
+            redo(circuit);
+        }else if(command[0].equals("diff") && count == 3){
+            long from;
+            long to;
+            try{
+                from = Long.parseLong(command[1]);
+                to = Long.parseLong(command[2]);
+            }catch(NumberFormatException nfe){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            diff(circuit, from, to);
+        }else if(command[0].equals("history") && count == 2){
+            int size;
+            try{
+                size = Integer.parseInt(command[1]);
+            }catch(NumberFormatException nfe){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            if(size < 0){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            keepVersions(size);
+        }else if(command[0].equals("why") && count == 2){
+            why(circuit, command[1]);
+        }else if(command[0].equals("stats") && count == 1){
+            Metrics.print();
+        }else if(command[0].equals("headroom") && count == 2){
+            headroom(circuit, command[1]);
+        }else if(command[0].equals("canconnect") && count == 2){
+            canConnect(circuit, command[1]);
+        }else if(command[0].equals("canconnect") && count == 3){
+            int rating;
+            try{
+                rating = Integer.parseInt(command[2]);
+            }catch(NumberFormatException nfe){
+                throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+            }
+            canConnect(circuit, command[1], rating);
+        }else{
+            throw new CommandException(UNKNOWN_USER_COMMAND, Arrays.copyOf(command, count));
+        }
+        return circuit;
+    }
+
+    /**
+     * Makes a new version of the circuit after a command that changed it,
+     * from the components the command switched or added.
+     */
+    private static void remember(Circuit circuit, String[] command, int count){
+        int[] touched = new int[4];
+        int n = 0;
+        if(command[0].equals("connect")){
+            touched[n++] = history.id(command[2]);
+        }else{
+            boolean toggle = command[0].equals("toggle");
+            for(int i = toggle ? 1 : 2; i < (toggle ? 2 : count); i++){
+                for(String name: expand(circuit, command[i], toggle ? SWITCHABLE : APPLIANCES)){
+                    if(n == touched.length){
+                        touched = Arrays.copyOf(touched, n * 2);
+                    }
+                    touched[n++] = history.id(name);
+                }
+            }
+        }
+        history.record(touched, n);
+    }
+
+    /**
+     * Logs a command that was carried out, and takes a checkpoint after a
+     * load or when one is due. The history starts again after a checkpoint,
+     * so that a recovery from it keeps the same one.
+     */
+    private static void log(Circuit circuit, String[] command, int count){
+        boolean logged = LOGGED.contains(command[0]);
+        if(logged){
+            journal.append(command, count);
+        }
+        if(command[0].equals("load") || (logged && journal.isCheckpointDue())){
+            try{
+                journal.checkpoint(circuit);
+            }catch(IOException ioe){
+                throw new UncheckedIOException(ioe);
+            }
+            history = null;
+            logVersions(journal);
+        }
+    }
+
+    /**
+     * Logs a command that a ConcurrentSimulator thread carried out, while
+     * it still holds the lock of the branch the command changed, so that
+     * the commands of each branch are logged in the order they were
+     * carried out. No checkpoint is taken here, as other threads may be
+     * changing the circuit; the next command on the main thread takes one
+     * if it is due.
+     * @param command The words of the command.
+     */
+    static void journal(String... command){
+        CommandLog log = journal;
+        if(log != null && LOGGED.contains(command[0])){
+            log.append(command, command.length);
+        }
+    }
+
+    /**
+     * Turns a name pattern of a command into the names it stands for.
+     * @param circuit The circuit to look in.
+     * @param pattern A name, or a pattern with '*' and '?' wildcards.
+     * @param kinds The kinds of component the command works on.
+     * @return Just the name if it is not a pattern, otherwise the names that match.
+     * @throws CommandException if a pattern matches nothing.
+     */
+    private static List<String> expand(Circuit circuit, String pattern, EnumSet<Reporter.Kind> kinds){
+        if(!ComponentRegistry.isPattern(pattern)){
+            return Collections.singletonList(pattern);
+        }
+        List<String> names = circuit.find(pattern, kinds);
+        if(names.isEmpty()){
+            throw new CommandException(UNSWITCHABLE_COMPONENT, pattern);
+        }
+        return names;
+    }
+
+    /**
+     * Runs a command file, or standard input, without prompting, and tells how it went.
+     * @param circuit The circuit to run the commands on.
+     * @param source Name of the command file, or "-" for standard input.
+     */
+    private static void batch(Circuit circuit, String source){
+        BatchRunner runner = new BatchRunner(circuit);
+        try{
+            if(source.equals("-")){
+                runner.run(Channels.newChannel(System.in), "stdin");
+            }else{
+                try(FileChannel channel = FileChannel.open(Paths.get(source), StandardOpenOption.READ)){
+                    runner.run(channel, source);
+                }
+            }
+        }catch(NoSuchFileException nsfe){
+            Reporter.usageError(FILE_NOT_FOUND, source);
+        }catch(IOException ioe){
+            Reporter.usageError(FILE_NOT_FOUND, source, ioe.getMessage());
+        }
+        Reporter.flush();
+        System.out.printf("Ran %d commands (%d rejected) in %.1f ms (%.0f commands/sec), %d trips.%n",
+                runner.getCommands(), runner.getRejected(), runner.getMillis(),
+                runner.getCommandsPerSecond(), runner.getCircuit().getTrips());
+        List<String> sources = runner.getCircuit().getPowerSources();
+        Collections.sort(sources);
+        System.out.println("Final draw per PowerSource:");
+        for(String name: sources){
+            System.out.println("\t" + name + ": draw " + runner.getCircuit().getDraw(name));
+        }
+    }
+
+    /**
+     * Reads commands typed by the user, one per prompt, until quit.
+     * A command that cannot be carried out stops the program.
+     * @param circuit The circuit to run the commands on.
+     */
+    private static void interact(Circuit circuit){
+        Scanner scanner = new Scanner(System.in);
+        while(true){
+            Reporter.flush();
+            System.out.print("?  ->");
+            String input = scanner.nextLine();
+            if(input.equals("quit")){
+                break;
+            }
+            String[] command = input.split(WHITESPACE_REGEX);
+            try{
+                circuit = execute(circuit, command, command.length);
+            }catch(CommandException ce){
+                Reporter.usageError(ce.getErrorNumber(), ce.getArguments());
+            }
+            if(circuit instanceof PartitionedCircuit){
+                ((PartitionedCircuit) circuit).drain();
+            }
+            if(journal != null){
+                journal.sync();
+            }
+        }
+    }
+
+    /**
+     * Serves the commands to clients on a TCP port until one of them asks
+     * to stop, and tells how it went.
+     * @param circuit The circuit to run the commands on.
+     * @param port The port, on the loopback address.
+     */
+    private static void serve(Circuit circuit, int port){
+        CommandServer server = new CommandServer(circuit, journal);
+        try{
+            server.run(port);
+        }catch(IOException ioe){
+            Reporter.usageError(BAD_ARGS, "-serve", Integer.toString(port), ioe.getMessage());
+        }
+        Reporter.flush();
+        System.out.printf("Served %d commands (%d rejected) on %d connections.%n",
+                server.getCommands(), server.getRejected(), server.getConnections());
+    }
+
+    /**
+     * Splits the circuit into one part per power source, each run by a thread of its own.
+     * @param circuit The circuit, either backend.
+     * @return The partitioned circuit.
+     */
+    private static Circuit partition(Circuit circuit){
+        PartitionedCircuit partitioned = new PartitionedCircuit(circuit);
+        Reporter.flush();
+        System.out.println("Split into " + partitioned.getPartitions() + " partition(s), one per power source.");
+        return partitioned;
+    }
+
+    /**
+     * Replays command files concurrently, one thread per file, and tells how it went.
+     * @param circuit The circuit, made of Components.
+     * @param feeds Comma separated names of the command files.
+     */
+    private static void replay(Circuit circuit, String feeds){
+        if(!(circuit instanceof ComponentCircuit)){
+            Reporter.usageError(BAD_ARGS, "-feeds", "needs the Component backend");
+        }
+        ArrayList<Path> files = new ArrayList<>();
+        for(String feed: feeds.split(",")){
+            files.add(Paths.get(feed));
+        }
+        ConcurrentSimulator simulator = new ConcurrentSimulator((ComponentCircuit) circuit);
+        long start = System.nanoTime();
+        try{
+            simulator.replay(files);
+        }catch(NoSuchFileException nsfe){
+            Reporter.usageError(FILE_NOT_FOUND, nsfe.getFile());
+        }catch(IOException ioe){
+            Reporter.usageError(FILE_NOT_FOUND, ioe.getMessage());
+        }
+        Reporter.flush();
+        System.out.printf("Replayed %d commands (%d rejected) from %d feeds in %.1f ms.%n",
+                simulator.getApplied(), simulator.getRejected(), files.size(),
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Opens the command log in a directory.
+     * @param dir Name of the directory.
+     * @param checkpointEvery How many commands to log between two checkpoints.
+     * @return The log.
+     */
+    private static CommandLog openLog(String dir, int checkpointEvery){
+        try{
+            return new CommandLog(Paths.get(dir), checkpointEvery);
+        }catch(IOException ioe){
+            Reporter.usageError(FILE_NOT_FOUND, dir, ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds the circuit from the newest checkpoint of a command log and
+     * the commands logged after it, and tells how it went.
+     * @param log The command log.
+     * @param compact Whether to rebuild it as the compact array model.
+     * @return The circuit, or null if the log has no checkpoint yet.
+     */
+    private static Circuit recover(CommandLog log, boolean compact){
+        Circuit circuit = null;
+        try{
+            circuit = log.recover(compact);
+        }catch(IOException ioe){
+            Reporter.usageError(BAD_FILE_FORMAT, ioe.getMessage());
+        }
+        if(circuit != null){
+            Reporter.flush();
+            System.out.printf("Recovered %d components from checkpoint %d and replayed %d commands (%d rejected) in %.1f ms.%n",
+                    circuit.size(), log.getCheckpoint(), log.getReplayed(), log.getRejected(), log.getRecoveryMillis());
+        }
+        return circuit;
+    }
+
+    /**
+     * Saves the circuit as a new checkpoint of a command log.
+     * @param log The command log.
+     * @param circuit The circuit.
+     */
+    private static void checkpoint(CommandLog log, Circuit circuit){
+        try{
+            log.checkpoint(circuit);
+        }catch(IOException ioe){
+            Reporter.usageError(FILE_NOT_FOUND, ioe.getMessage());
+        }
+        logVersions(log);
+    }
+
+    /**
+     * Logs how many versions are kept at the start of a segment, so that
+     * undo and redo are replayed with the History they ran with, whatever
+     * -history the run that recovers them was given.
+     * @param log The command log.
+     */
+    private static void logVersions(CommandLog log){
+        log.append(new String[]{"history", Integer.toString(historySize)}, 2);
+    }
+
+    /**
+     * Turns a comma separated list of message keys into a reporting level.
+     * @param list Something like "BLOWN,SWITCHING_ON,SWITCHING_OFF".
+     * @return The set of keys to report.
+     */
+    private static EnumSet<Reporter.Msg> parseLevel(String list){
+        EnumSet<Reporter.Msg> level = EnumSet.noneOf(Reporter.Msg.class);
+        for(String key: list.split(",")){
+            try{
+                level.add(Reporter.Msg.valueOf(key.trim().toUpperCase()));
+            }catch(IllegalArgumentException iae){
+                Reporter.usageError(BAD_ARGS, key);
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Reads a positive number from the command line.
+     * @param text The argument to read.
+     * @param args The whole command line, printed if the number is bad.
+     * @return The number.
+     */
+    private static int parseNumber(String text, String[] args){
+        try{
+            int n = Integer.parseInt(text);
+            if(n > 0){
+                return n;
+            }
+        }catch(NumberFormatException nfe){
+            // reported below
+        }
+        Reporter.usageError(BAD_ARGS, args);
+        return 0;
+    }
+
     /**
      * This is the main program of the function.
      * It opens a file for configurations, and takes in input for commands.
+     * Options before the file name:
+     * -compact: simulate on the compact array model instead of Component objects.
+     * -parallel: map the configuration file and parse it on all cores.
+     * -parallel-power: engage and disengage the loads of large subtrees on all cores
+     *        (Component backend), with one draw change per component.
+     * -partitioned: split the circuit into one part per power source, each changed by a
+     *        thread of its own, so that commands for different power sources run at the same time.
+     * -history n: keep n versions of the circuit for undo, redo and diff instead of 1000.
+     * -no-history: keep no versions at all. Commands recovered from a -wal log are replayed
+     *        with the number of versions they ran with, then this one is logged.
+     * -feeds f1,f2,...: after starting up, replay these command files at the same time, one thread each.
+     * -batch file: run the commands in this file ("-" for standard input) without prompting,
+     *        report bad commands by line instead of stopping, then sum up how it went.
+     * -async: report events through a background writer instead of printing them right away.
+     * -quiet: report no events.
+     * -report BLOWN,SWITCHING_ON,...: report only these kinds of events.
+     * -sample n: report only one out of every n events of each kind.
+     * -stats file: append the Metrics to this file now and then, and when the program ends.
+     * -stats-every n: do so every n seconds instead of every 10.
+     * -wal dir: log every command that changes the circuit in this directory, with
+     *        checkpoints of the whole circuit; if it already holds a checkpoint, pick up
+     *        from there instead of reading the configuration file.
+     * -checkpoint-every n: take a checkpoint every n logged commands instead of every million.
+     * -serve port: instead of prompting, serve the commands to clients on this TCP port
+     *        of the loopback address, until one of them sends "shutdown".
      * @param args Command Line.
      */
     public static void main( String[] args ) {
         System.out.println( "Overload Project, CS2" );
-        java.util.Scanner scanner = new Scanner(System.in);
-        if(args.length < 1){
+        Circuit circuit = new ComponentCircuit();
+        boolean parallel = false;
+        boolean partitioned = false;
+        String feeds = null;
+        String batch = null;
+        String stats = null;
+        int statsEvery = 10;
+        String wal = null;
+        int checkpointEvery = 1000000;
+        int serve = 0;
+        int first = 0;
+        while(first < args.length && args[first].startsWith("-")){
+            if(args[first].equals("-compact")){
+                circuit = new CircuitModel();
+            }else if(args[first].equals("-parallel")){
+                parallel = true;
+            }else if(args[first].equals("-parallel-power")){
+                ParallelPower.setEnabled(true);
+            }else if(args[first].equals("-partitioned")){
+                partitioned = true;
+            }else if(args[first].equals("-history") && first + 1 < args.length){
+                historySize = parseNumber(args[++first], args);
+            }else if(args[first].equals("-no-history")){
+                historySize = 0;
+            }else if(args[first].equals("-feeds") && first + 1 < args.length){
+                feeds = args[++first];
+            }else if(args[first].equals("-batch") && first + 1 < args.length){
+                batch = args[++first];
+            }else if(args[first].equals("-async")){
+                Reporter.setSink(new AsyncEventSink());
+            }else if(args[first].equals("-quiet")){
+                Reporter.silence();
+            }else if(args[first].equals("-report") && first + 1 < args.length){
+                Reporter.setLevel(parseLevel(args[++first]));
+            }else if(args[first].equals("-sample") && first + 1 < args.length){
+                Reporter.setSampling(parseNumber(args[++first], args));
+            }else if(args[first].equals("-stats") && first + 1 < args.length){
+                stats = args[++first];
+            }else if(args[first].equals("-stats-every") && first + 1 < args.length){
+                statsEvery = parseNumber(args[++first], args);
+            }else if(args[first].equals("-wal") && first + 1 < args.length){
+                wal = args[++first];
+            }else if(args[first].equals("-checkpoint-every") && first + 1 < args.length){
+                checkpointEvery = parseNumber(args[++first], args);
+            }else if(args[first].equals("-serve") && first + 1 < args.length){
+                serve = parseNumber(args[++first], args);
+            }else{
+                Reporter.usageError(BAD_ARGS);
+            }
+            first++;
+        }
+        if(args.length - first < 1){
             Support.usageError(BAD_ARGS);
         }else{
-            HashMap<String,Component> config = readConfiguration(args[0]);
-            System.out.println(config.size() + " components created.");
-            System.out.println("Starting up the main circuit(s).");
-            config = initialize(config);
-            while(true){
-                System.out.print("?  ->");
-                String input = scanner.nextLine();
-                String[] command = input.split(WHITESPACE_REGEX);
-                if(input.equals("quit")){
-                    break;
+            if(stats != null){
+                Metrics.dumpEvery(Paths.get(stats), statsEvery);
+            }
+            CommandLog log = null;
+            Circuit recovered = null;
+            int versions = historySize;
+            if(wal != null){
+                log = openLog(wal, checkpointEvery);
+                recovered = recover(log, circuit instanceof CircuitModel);
+            }
+            if(recovered != null){
+                circuit = recovered;
+            }else{
+                if(parallel){
+                    circuit = readConfigurationParallel(args[first], circuit);
                 }else{
-                    if(command[0].equals("toggle")){
-                        config = toggle(config.get(command[1]),config);
-                    }else if(command[0].equals("display")){
-                        display(config);
-                    }else if(command[0].equals("connect")){
-                        if(command.length < 5){
-                            Support.usageError(BAD_FILE_FORMAT);
-                        }
-                        config = connect(config,command[2],command[3],command[4]);
-                    }else{
-                        Support.usageError(UNKNOWN_USER_COMMAND);
-                    }
+                    circuit = readConfiguration(args[first], circuit);
+                }
+                Reporter.flush();
+                System.out.println(circuit.size() + " components created.");
+                if(partitioned && feeds == null){
+                    circuit = partition(circuit);
                 }
+                System.out.println("Starting up the main circuit(s).");
+                circuit = initialize(circuit);
+            }
+            if(log != null && recovered == null){
+                checkpoint(log, circuit);
+            }
+            journal = log;
+            if(historySize != versions){
+                circuit = execute(circuit, new String[]{"history", Integer.toString(versions)}, 2);
+            }
+            if(feeds != null){
+                replay(circuit, feeds);
+            }
+            if(partitioned && !(circuit instanceof PartitionedCircuit)){
+                circuit = partition(circuit);
+            }
+            if(serve > 0){
+                serve(circuit, serve);
+            }else if(batch != null){
+                batch(circuit, batch);
+            }else{
+                interact(circuit);
+            }
+            if(journal != null){
+                journal.close();
             }
+            Reporter.getSink().close();
         }
     }
 
@@ -0,0 +1,321 @@
+package components;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Engages or disengages the loads of a component on a fork-join pool
+ * instead of one after another.
+ * <br><br>
+ * Every load with at least FORK_THRESHOLD components below it becomes a
+ * task, so large subtrees are split down to that size, while smaller
+ * subtrees are handled whole, one after another, by the task of their
+ * source, into its buffer. Each component is touched by exactly one task,
+ * and nothing above the starting component is touched at all while the
+ * tasks run: a task adds up the change in draw of its subtree and hands
+ * it to its source's task, so every component in the wave gets one draw
+ * change. The total for the starting component is passed up afterwards
+ * through propagateDraw, which is where circuit breaker limits are checked,
+ * as usual.
+ * <br><br>
+ * Each task reports its events into a buffer of its own. The buffers are
+ * put together in the order of the loads, and only then are the events
+ * published, so the event stream is the same on every run whatever the
+ * number of threads. If the thread that starts the wave is muted, so are
+ * its tasks, whichever threads they run on.
+ * <br><br>
+ * Each kind of component follows the rules of its class: circuit breakers
+ * are engaged without engaging their loads, appliances that are switched
+ * on start drawing when engaged and stop drawing when disengaged, and a
+ * circuit breaker that is off keeps the change of its loads to itself.
+ *
+ * @author Yutong Wu
+ */
+public class ParallelPower {
+    private static volatile boolean enabled = false;
+    private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+    private static final int FORK_THRESHOLD = 128;
+
+    /**
+     * Turn the parallel mode on or off for every circuit of Components.
+     * @param on Whether engaging and disengaging loads should run in parallel.
+     */
+    public static void setEnabled(boolean on){
+        enabled = on;
+    }
+
+    /**
+     * @return Whether engaging and disengaging loads runs in parallel.
+     */
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Engage every load of a component, and pass their new draw up.
+     * @param origin The component whose loads are engaged.
+     */
+    public static void engageLoads(Component origin){
+        run(origin, true);
+    }
+
+    /**
+     * Disengage every load of a component, and pass their lost draw up.
+     * @param origin The component whose loads are disengaged.
+     */
+    public static void disengageLoads(Component origin){
+        run(origin, false);
+    }
+
+    private static void run(Component origin, boolean engage){
+        EventBuffer out = new EventBuffer();
+        Loads task = new Loads(origin, engage, out);
+        POOL.invoke(task);
+        out.replay(Reporter.currentSink());
+        origin.propagateDraw(task.total);
+    }
+
+    /**
+     * Engage or disengage one component, as its class would, without
+     * passing any draw on.
+     * @return The change in the draw of the component itself.
+     */
+    private static int self(Component c, boolean engage){
+        Reporter.Kind kind = c.getKind();
+        if(engage){
+            if(kind == Reporter.Kind.CIRCUIT_BREAKER){
+                c.changeSwitch(true);
+            }
+            if(Reporter.enabled(Reporter.Msg.ENGAGING)){
+                Reporter.report(c, Reporter.Msg.ENGAGING);
+            }
+            if(kind == Reporter.Kind.APPLIANCE){
+                c.changeSwitch(true);
+                Appliance app = (Appliance) c;
+                if(app.isSwitchOn() && app.getSource().engaged() && app.getOwnDraw() == 0){
+                    app.setOwnDraw(app.getRating());
+                    return app.getRating();
+                }
+            }else if(kind != Reporter.Kind.CIRCUIT_BREAKER){
+                c.changeSwitch(true);
+            }
+            return 0;
+        }
+        if(Reporter.enabled(Reporter.Msg.DISENGAGING)){
+            Reporter.report(c, Reporter.Msg.DISENGAGING);
+        }
+        if(kind == Reporter.Kind.APPLIANCE){
+            int own = c.getOwnDraw();
+            c.setOwnDraw(0);
+            return -own;
+        }
+        if(kind != Reporter.Kind.POWER_SOURCE){
+            c.changeSwitch(false);
+        }
+        return 0;
+    }
+
+    /**
+     * @return Whether the wave goes on to the loads of a component.
+     */
+    private static boolean spreads(Component c, boolean engage){
+        Reporter.Kind kind = c.getKind();
+        return kind != Reporter.Kind.APPLIANCE && (!engage || kind != Reporter.Kind.CIRCUIT_BREAKER);
+    }
+
+    /**
+     * Take the change in draw of a component's subtree into its cached draw.
+     * @return The part of it that goes on to the source.
+     */
+    private static int absorb(Component c, int delta){
+        if(delta == 0){
+            return 0;
+        }
+        c.setDraw(delta);
+        if(c.getKind() == Reporter.Kind.CIRCUIT_BREAKER && !c.isSwitchOn()){
+            return 0;
+        }
+        if(Reporter.enabled(Reporter.Msg.DRAW_CHANGE)){
+            Reporter.report(c, Reporter.Msg.DRAW_CHANGE, delta);
+        }
+        return delta;
+    }
+
+    /**
+     * @return Whether the wave below a component reaches at least
+     *         FORK_THRESHOLD components, and so is worth a task of its own.
+     */
+    private static boolean large(Component c, boolean engage){
+        return measure(c, engage, FORK_THRESHOLD) == 0;
+    }
+
+    /**
+     * Count the components the wave reaches below a component, stopping
+     * as soon as the budget is spent.
+     * @return What is left of the budget, 0 once it is spent.
+     */
+    private static int measure(Component c, boolean engage, int budget){
+        if(!spreads(c, engage)){
+            return budget;
+        }
+        for(Component load: c.getLoads()){
+            if(--budget == 0){
+                return 0;
+            }
+            budget = measure(load, engage, budget);
+            if(budget == 0){
+                return 0;
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Engage or disengage a small subtree on the calling thread, as a Node
+     * would, its events going wherever the thread's events go.
+     * @return The part of its change in draw that goes on to its source.
+     */
+    private static int inline(Component c, boolean engage){
+        int total = self(c, engage);
+        if(spreads(c, engage)){
+            for(Component load: c.getLoads()){
+                total += inline(load, engage);
+            }
+        }
+        return absorb(c, total);
+    }
+
+    /**
+     * A task of the wave. It runs muted if the thread that created it was,
+     * and carries on the trace and cause that thread had, so that what it
+     * does is traced back to the same command.
+     */
+    private abstract static class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean muted = Reporter.muted();
+        private final long trace = Trace.current();
+        private final long cause = Trace.cause();
+
+        @Override
+        protected final void compute(){
+            long previousTrace = Trace.current();
+            long previousCause = Trace.cause();
+            Trace.resume(this.trace, this.cause);
+            if(this.muted){
+                Reporter.mute();
+            }
+            try{
+                this.run();
+            }finally{
+                if(this.muted){
+                    Reporter.unmute();
+                }
+                Trace.resume(previousTrace, previousCause);
+            }
+        }
+
+        /**
+         * Do the work of the task.
+         */
+        abstract void run();
+    }
+
+    /**
+     * The loads of one component. Loads with a large subtree are forked
+     * as Nodes; the others are done right here. Events end up in out in the
+     * order of the loads.
+     */
+    private static class Loads extends Task {
+        private static final long serialVersionUID = 1L;
+
+        private final Component source;
+        private final boolean engage;
+        private final EventBuffer out;
+        int total;
+
+        Loads(Component source, boolean engage, EventBuffer out){
+            this.source = source;
+            this.engage = engage;
+            this.out = out;
+        }
+
+        @Override
+        void run(){
+            Collection<Component> loads = this.source.getLoads();
+            Component[] children = loads.toArray(new Component[0]);
+            Node[] forked = new Node[children.length];
+            for(int i = 0; i < children.length; i++){
+                if(large(children[i], this.engage)){
+                    forked[i] = new Node(children[i], this.engage);
+                    forked[i].fork();
+                }
+            }
+            EventBuffer leaves = new EventBuffer();
+            int[] ends = new int[children.length];
+            EventSink previous = Reporter.capture(leaves);
+            try{
+                for(int i = 0; i < children.length; i++){
+                    if(forked[i] == null){
+                        this.total += inline(children[i], this.engage);
+                    }
+                    ends[i] = leaves.size();
+                }
+            }finally{
+                Reporter.capture(previous);
+            }
+            int from = 0;
+            for(int i = 0; i < children.length; i++){
+                if(forked[i] != null){
+                    forked[i].join();
+                    this.total += forked[i].pass;
+                    this.out.append(forked[i].out, 0, forked[i].out.size());
+                }else{
+                    this.out.append(leaves, from, ends[i]);
+                }
+                from = ends[i];
+            }
+        }
+    }
+
+    /**
+     * One component and, if the wave goes on, its loads.
+     */
+    private static class Node extends Task {
+        private static final long serialVersionUID = 1L;
+
+        private final Component node;
+        private final boolean engage;
+        final EventBuffer out = new EventBuffer();
+        int pass;
+
+        Node(Component node, boolean engage){
+            this.node = node;
+            this.engage = engage;
+        }
+
+        @Override
+        void run(){
+            int own;
+            EventSink previous = Reporter.capture(this.out);
+            try{
+                own = self(this.node, this.engage);
+            }finally{
+                Reporter.capture(previous);
+            }
+            int total = own;
+            if(spreads(this.node, this.engage)){
+                Loads loads = new Loads(this.node, this.engage, this.out);
+                loads.run();
+                total += loads.total;
+            }
+            previous = Reporter.capture(this.out);
+            try{
+                this.pass = absorb(this.node, total);
+            }finally{
+                Reporter.capture(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package components;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Circuit split into one circuit per power source, each owned by a
+ * worker thread of its own, so that commands for different power
+ * sources run at the same time.
+ * <br><br>
+ * The trees of different power sources share nothing, so each worker
+ * is the only writer of its part and no lock is taken on a component.
+ * The thread calling the Circuit methods is the router: it keeps an
+ * index of every name with its kind and its part, checks every toggle,
+ * connect and switch against it, and throws there and then if one cannot
+ * be carried out, exactly as the single circuit would. A checked command
+ * is queued to the worker of its part and the call returns at once; a
+ * switch over several parts becomes one transaction per part. Commands
+ * are handed over in batches through lock-free queues, so a worker is
+ * woken once per batch rather than once per command, and parks when its
+ * queue is empty.
+ * <br><br>
+ * Everything that reads the circuit first waits for every queued command
+ * to be carried out, then reads the parts from the router itself, so
+ * displays, draws, trip counts and snapshots are those of the single
+ * circuit after the same commands. The events of one part come out in
+ * order, but the events of different parts are interleaved as they
+ * happen.
+ *
+ * @author Yutong Wu
+ */
+public class PartitionedCircuit implements Circuit {
+    private static final int BATCH = 256;
+    private static final int MAX_BEHIND = 1 << 16;
+    private static final Object INITIALIZE = new Object();
+    private static final EnumSet<Reporter.Kind> SWITCHABLE =
+            EnumSet.of(Reporter.Kind.CIRCUIT_BREAKER, Reporter.Kind.APPLIANCE);
+
+    private final boolean compact;
+    private final ArrayList<Worker> workers = new ArrayList<>();
+    private ComponentRegistry index = new ComponentRegistry();
+    private int[] partition = new int[16];
+
+    /**
+     * Split a circuit into one part per power source and start a worker
+     * for each. The circuit itself is left as it is.
+     * @param circuit The circuit to split, either backend.
+     */
+    public PartitionedCircuit(Circuit circuit){
+        this.compact = circuit instanceof CircuitModel;
+        this.replace(circuit);
+    }
+
+    /**
+     * Stop the workers and carry on with another circuit instead, split
+     * the same way, as after a load.
+     * @param circuit The circuit to carry on with.
+     */
+    void replace(Circuit circuit){
+        this.close();
+        this.workers.clear();
+        this.index = new ComponentRegistry();
+        for(Circuit part: Snapshot.split(circuit, this.compact)){
+            ComponentRegistry registry = part instanceof CircuitModel
+                    ? ((CircuitModel) part).registry() : ((ComponentCircuit) part).registry();
+            for(int id = 0; id < registry.size(); id++){
+                this.index(registry.name(id), registry.kind(id), this.workers.size());
+            }
+            this.start(part);
+        }
+    }
+
+    /**
+     * @return Whether the parts are CircuitModels rather than Components.
+     */
+    public boolean isCompact(){
+        return this.compact;
+    }
+
+    /**
+     * @return The number of parts, one per power source.
+     */
+    public int getPartitions(){
+        return this.workers.size();
+    }
+
+    /**
+     * Wait until every queued command has been carried out.
+     * @throws RuntimeException the first one a worker threw since the last drain, if any.
+     */
+    public void drain(){
+        for(Worker w: this.workers){
+            this.hand(w);
+        }
+        for(Worker w: this.workers){
+            this.await(w, w.submitted);
+        }
+        for(Worker w: this.workers){
+            RuntimeException failure = w.failure;
+            if(failure != null){
+                w.failure = null;
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Wait for every queued command, then stop the workers.
+     */
+    public void close(){
+        this.drain();
+        for(Worker w: this.workers){
+            w.closed = true;
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * @return The parts, in the order of their power sources, once every
+     *         queued command has been carried out.
+     */
+    Circuit[] parts(){
+        this.drain();
+        Circuit[] parts = new Circuit[this.workers.size()];
+        for(int p = 0; p < parts.length; p++){
+            parts[p] = this.workers.get(p).part;
+        }
+        return parts;
+    }
+
+    @Override
+    public boolean contains(String name){
+        return this.index.id(name) != ComponentRegistry.NONE;
+    }
+
+    @Override
+    public int size(){
+        return this.index.size();
+    }
+
+    @Override
+    public void addPowerSource(String name){
+        Circuit part = this.compact ? new CircuitModel() : new ComponentCircuit();
+        part.addPowerSource(name);
+        this.index(name, Reporter.Kind.POWER_SOURCE, this.workers.size());
+        this.start(part);
+    }
+
+    @Override
+    public void addCircuitBreaker(String name, String source, int limit){
+        int p = this.partition(source, Overload.UNKNOWN_COMPONENT);
+        this.drain();
+        this.workers.get(p).part.addCircuitBreaker(name, source, limit);
+        this.index(name, Reporter.Kind.CIRCUIT_BREAKER, p);
+    }
+
+    @Override
+    public void addOutlet(String name, String source){
+        int p = this.partition(source, Overload.UNKNOWN_COMPONENT);
+        this.drain();
+        this.workers.get(p).part.addOutlet(name, source);
+        this.index(name, Reporter.Kind.OUTLET, p);
+    }
+
+    @Override
+    public void addAppliance(String name, String source, int rating){
+        Transaction transaction = new Transaction(this);
+        transaction.connect(name, source, rating);
+        this.commit(transaction);
+    }
+
+    /**
+     * Power up every part at the same time, and wait for all of them.
+     */
+    @Override
+    public void initialize(){
+        for(Worker w: this.workers){
+            this.push(w, INITIALIZE);
+        }
+        this.drain();
+    }
+
+    @Override
+    public void toggle(String name){
+        int id = this.index.id(name);
+        if(id == ComponentRegistry.NONE || !SWITCHABLE.contains(this.index.kind(id))){
+            throw new CommandException(Overload.UNSWITCHABLE_COMPONENT, name);
+        }
+        this.push(this.workers.get(this.partition[id]), name);
+    }
+
+    @Override
+    public List<String> find(String pattern, EnumSet<Reporter.Kind> kinds){
+        ArrayList<String> names = new ArrayList<>();
+        for(int id: this.index.find(pattern)){
+            if(kinds.contains(this.index.kind(id))){
+                names.add(this.index.name(id));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Check the transaction as the single circuit would, then queue one
+     * transaction per part it touches.
+     */
+    @Override
+    public void commit(Transaction transaction){
+        HashSet<String> connected = new HashSet<>();
+        for(int i = 0; i < transaction.count; i++){
+            String name = transaction.name[i];
+            if(transaction.op[i] == Transaction.CONNECT){
+                if(!this.contains(transaction.source[i]) && !connected.contains(transaction.source[i])){
+                    throw new CommandException(Overload.UNKNOWN_COMPONENT, transaction.source[i]);
+                }
+                connected.add(name);
+            }else if(!connected.contains(name)){
+                int id = this.index.id(name);
+                if(id == ComponentRegistry.NONE || this.index.kind(id) != Reporter.Kind.APPLIANCE){
+                    throw new CommandException(Overload.UNSWITCHABLE_COMPONENT, name);
+                }
+            }
+        }
+        HashMap<String, Integer> created = new HashMap<>();
+        Transaction[] parts = new Transaction[this.workers.size()];
+        for(int i = 0; i < transaction.count; i++){
+            String name = transaction.name[i];
+            String key = transaction.op[i] == Transaction.CONNECT ? transaction.source[i] : name;
+            Integer p = created.get(key);
+            if(p == null){
+                p = this.partition[this.index.id(key)];
+            }
+            if(parts[p] == null){
+                parts[p] = new Transaction(this.workers.get(p).part);
+            }
+            if(transaction.op[i] == Transaction.CONNECT){
+                parts[p].connect(name, transaction.source[i], transaction.rating[i]);
+                created.put(name, p);
+                this.index(name, Reporter.Kind.APPLIANCE, p);
+            }else if(transaction.op[i] == Transaction.TURN_ON){
+                parts[p].turnOn(name);
+            }else{
+                parts[p].turnOff(name);
+            }
+        }
+        for(int p = 0; p < parts.length; p++){
+            if(parts[p] != null){
+                this.push(this.workers.get(p), parts[p]);
+            }
+        }
+    }
+
+    @Override
+    public void display(){
+        for(Circuit part: this.parts()){
+            part.display();
+        }
+    }
+
+    @Override
+    public void display(String name, int levels){
+        this.owner(name).display(name, levels);
+    }
+
+    @Override
+    public List<String> getPowerSources(){
+        ArrayList<String> names = new ArrayList<>(this.workers.size());
+        for(Circuit part: this.parts()){
+            names.addAll(part.getPowerSources());
+        }
+        return names;
+    }
+
+    @Override
+    public int getDraw(String name){
+        return this.owner(name).getDraw(name);
+    }
+
+    @Override
+    public long getTrips(){
+        long trips = 0;
+        for(Circuit part: this.parts()){
+            trips += part.getTrips();
+        }
+        return trips;
+    }
+
+    @Override
+    public int headroom(String name){
+        return this.owner(name).headroom(name);
+    }
+
+    /**
+     * @return The part a component is in, once every queued command has been carried out.
+     * @throws CommandException if there is no such component.
+     */
+    private Circuit owner(String name){
+        int p = this.partition(name, Overload.UNKNOWN_COMPONENT);
+        this.drain();
+        return this.workers.get(p).part;
+    }
+
+    /**
+     * @return The index of the part a component is in.
+     * @throws CommandException with the given error if there is no such component.
+     */
+    private int partition(String name, int error){
+        int id = this.index.id(name);
+        if(id == ComponentRegistry.NONE){
+            throw new CommandException(error, name);
+        }
+        return this.partition[id];
+    }
+
+    private void index(String name, Reporter.Kind kind, int p){
+        int id = this.index.add(name, kind);
+        if(id == this.partition.length){
+            this.partition = Arrays.copyOf(this.partition, id * 2);
+        }
+        this.partition[id] = p;
+    }
+
+    private void start(Circuit part){
+        List<String> roots = part.getPowerSources();
+        Worker w = new Worker(part, "overload-partition-" + roots.get(0));
+        this.workers.add(w);
+        w.start();
+    }
+
+    /**
+     * Add a command to the batch of a worker, handing the batch over once
+     * it is full. A worker too far behind is let catch up halfway first.
+     */
+    private void push(Worker w, Object task){
+        w.traces[w.batched] = Trace.current();
+        w.batch[w.batched++] = task;
+        w.submitted++;
+        if(w.batched == BATCH){
+            this.hand(w);
+            if(w.submitted - w.done > MAX_BEHIND){
+                this.await(w, w.submitted - MAX_BEHIND / 2);
+            }
+        }
+    }
+
+    /**
+     * Queue the batch of a worker, waking it if it sleeps.
+     */
+    private void hand(Worker w){
+        if(w.batched == 0){
+            return;
+        }
+        Object[] tasks = Arrays.copyOf(w.batch, w.batched + 1);
+        tasks[w.batched] = Arrays.copyOf(w.traces, w.batched);
+        w.queue.offer(tasks);
+        Arrays.fill(w.batch, 0, w.batched, null);
+        w.batched = 0;
+        if(w.sleeping){
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * Park until a worker has carried out a number of commands.
+     */
+    private void await(Worker w, long target){
+        if(w.done >= target){
+            return;
+        }
+        w.waiter = Thread.currentThread();
+        w.wanted = target;
+        while(w.done < target){
+            LockSupport.park(this);
+        }
+        w.wanted = Long.MAX_VALUE;
+        w.waiter = null;
+    }
+
+    /**
+     * The only thread that changes one part. In a batch, a String is a
+     * name to toggle, a Transaction is committed, and INITIALIZE powers
+     * the part up; the last element holds the trace of each of them. The
+     * batch being filled and the count of commands submitted belong to the
+     * router.
+     */
+    private static final class Worker extends Thread {
+        final Circuit part;
+        final ConcurrentLinkedQueue<Object[]> queue = new ConcurrentLinkedQueue<>();
+        final Object[] batch = new Object[BATCH];
+        final long[] traces = new long[BATCH];
+        int batched;
+        long submitted;
+        volatile long done;
+        volatile long wanted = Long.MAX_VALUE;
+        volatile Thread waiter;
+        volatile boolean sleeping;
+        volatile boolean closed;
+        volatile RuntimeException failure;
+
+        Worker(Circuit part, String name){
+            super(name);
+            this.part = part;
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            while(true){
+                Object[] tasks = this.queue.poll();
+                if(tasks == null){
+                    if(this.closed){
+                        return;
+                    }
+                    this.sleeping = true;
+                    if(this.queue.isEmpty() && !this.closed){
+                        LockSupport.park(this);
+                    }
+                    this.sleeping = false;
+                    continue;
+                }
+                int count = tasks.length - 1;
+                long[] traces = (long[]) tasks[count];
+                for(int i = 0; i < count; i++){
+                    Trace.resume(traces[i]);
+                    this.perform(tasks[i]);
+                }
+                long d = this.done + count;
+                this.done = d;
+                if(d >= this.wanted){
+                    Thread w = this.waiter;
+                    if(w != null){
+                        LockSupport.unpark(w);
+                    }
+                }
+            }
+        }
+
+        private void perform(Object task){
+            try{
+                if(task == INITIALIZE){
+                    this.part.initialize();
+                }else if(task instanceof Transaction){
+                    ((Transaction) task).commit();
+                }else{
+                    this.part.toggle((String) task);
+                }
+            }catch(RuntimeException e){
+                if(this.failure == null){
+                    this.failure = e;
+                }
+            }
+        }
+    }
+}
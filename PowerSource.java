@@ -5,12 +5,18 @@ public class PowerSource extends Component {
         super(name, null);
     }
 
+    PowerSource(String name, boolean report) {
+        super(name, null, report);
+    }
+
     /**
      * Engage the power source, change the state of engage to true, engage loads if it has any.
      */
     @Override
     public void engage(){
-        Reporter.report(this,Reporter.Msg.ENGAGING);
+        if(Reporter.enabled(Reporter.Msg.ENGAGING)){
+            Reporter.report(this,Reporter.Msg.ENGAGING);
+        }
         this.changeSwitch(true);
         if(this.getLoads().size()>0){
             this.engageLoads();
@@ -22,7 +28,9 @@ public class PowerSource extends Component {
      */
     @Override
     public void disengage(){
-        Reporter.report(this,Reporter.Msg.DISENGAGING);
+        if(Reporter.enabled(Reporter.Msg.DISENGAGING)){
+            Reporter.report(this,Reporter.Msg.DISENGAGING);
+        }
         if(this.getLoads().size()>0){
             this.disengageLoads();
         }
@@ -37,6 +45,11 @@ public class PowerSource extends Component {
         return false;
     }
 
+    @Override
+    Reporter.Kind getKind(){
+        return Reporter.Kind.POWER_SOURCE;
+    }
+
     @Override
     public String toString(){
 
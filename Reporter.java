@@ -1,12 +1,20 @@
 package components;
 
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Components report their activity to this class.
  * String messages are pre-defined so that uniformity of
  * output from students' work is assured.
+ * The events themselves are handed to the EventBus, which passes
+ * each one to the listeners that asked for it. One of them is the
+ * printing sink, which by default prints each one on System.out
+ * right away.
  *
  * @author RIT CS
  */
@@ -28,6 +36,18 @@ public class Reporter {
         usageErrors.put( code, message );
     }
 
+    /**
+     * Look up the message of an error condition, e.g. to send it
+     * somewhere else than System.err.
+     * @param code the error code
+     * @return the message added for the code
+     *
+     * @see #addError
+     */
+    public static String errorMessage( int code ) {
+        return usageErrors.get( code );
+    }
+
     /**
      * When a fatal error is discovered, this method is called.
      * Information will be printed and the program will halt.
@@ -44,13 +64,36 @@ public class Reporter {
      * @see #addError
      */
     public static void usageError( int errNum, String... line ) {
+        bus.flush();
         System.err.println( usageErrors.get( errNum ) );
+        printArguments( line );
+        System.exit( errNum );
+    }
+
+    /**
+     * When a command that is not typed in by hand cannot be carried
+     * out, this method is called instead of usageError. The same
+     * information is printed, prefixed with where the command came
+     * from, and the program carries on.
+     *
+     * @param where where the command came from, e.g. "commands.txt:12"
+     * @param errNum the integer assigned to this type of error
+     * @param line (optional) values of interest, as for usageError
+     *
+     * @see #usageError
+     */
+    public static void commandError( String where, int errNum, String... line ) {
+        bus.flush();
+        System.err.println( where + ": " + usageErrors.get( errNum ) );
+        printArguments( line );
+    }
+
+    private static void printArguments( String... line ) {
         if ( line.length > 0 ) {
             System.err.print( "\tArguments read were (" );
             for ( String arg: line ) System.err.print( ' ' + arg );
             System.err.println( " )" );
         }
-        System.exit( errNum );
     }
 
     /**
@@ -74,6 +117,268 @@ public class Reporter {
         }
     }
 
+    /**
+     * The kinds of Component, each with the label used to identify it
+     */
+    public enum Kind {
+        POWER_SOURCE( "PowerSource" ),
+        CIRCUIT_BREAKER( "CircuitBreaker" ),
+        OUTLET( "Outlet" ),
+        APPLIANCE( "Appliance" );
+
+        private final String label;
+
+        Kind( String label ) {
+            this.label = label;
+        }
+
+        /**
+         * @return the class name shown when identifying a Component
+         */
+        public String label() {
+            return this.label;
+        }
+    }
+
+    /**
+     * Where events go: the listeners registered on the bus.
+     */
+    private static final EventBus bus = new EventBus();
+
+    /**
+     * The listener that prints events. Printing synchronously on
+     * System.out is the default.
+     */
+    private static volatile EventSink sink = new StdoutEventSink();
+
+    /**
+     * The registration of the printing listener, through its sampler;
+     * its keys are the reporting level.
+     */
+    private static EventBus.Registration printing =
+            bus.subscribe( new Sampler( sink ), EnumSet.allOf( Msg.class ) );
+
+    /**
+     * Each thread fills in its own reusable event before handing it
+     * to the sink, so reporting does not allocate per event.
+     * A thread may also capture its events in a sink of its own.
+     */
+    private static final ThreadLocal< ThreadState > scratch =
+            ThreadLocal.withInitial( ThreadState::new );
+
+    /**
+     * The reusable event of a thread, and the sink capturing its
+     * events instead of the shared sink, if any.
+     */
+    private static final class ThreadState {
+        final CircuitEvent event = new CircuitEvent();
+        EventSink capture;
+    }
+
+    /**
+     * Only every sampleEvery-th event of each key passes;
+     * 1 means no sampling.
+     */
+    private static int sampleEvery = 1;
+
+    /**
+     * Per-key count of events the printing listener got, for sampling.
+     * Races between threads only make the sample slightly uneven.
+     */
+    private static final long[] sampled = new long[ Msg.values().length ];
+
+    /**
+     * How deep in mute calls each thread is.
+     */
+    private static final ThreadLocal< int[] > muteDepth =
+            ThreadLocal.withInitial( () -> new int[ 1 ] );
+
+    /**
+     * How many threads are muted right now, so that the threads that
+     * are not can skip looking at their own depth.
+     */
+    private static final AtomicInteger mutedThreads = new AtomicInteger();
+
+    /**
+     * Stop reporting anything from this thread until the matching unmute,
+     * e.g. while a benchmark builds its circuit: its events are not
+     * published to any listener. Other threads go on reporting. Calls
+     * may be nested. To change only what is printed, use setLevel or
+     * setSampling instead.
+     */
+    public static void mute() {
+        if ( muteDepth.get()[ 0 ]++ == 0 ) {
+            mutedThreads.incrementAndGet();
+        }
+    }
+
+    /**
+     * Undo one call to mute from this thread.
+     */
+    public static void unmute() {
+        if ( --muteDepth.get()[ 0 ] == 0 ) {
+            mutedThreads.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return whether the current thread is muted; work it hands to
+     *         other threads should then be muted as well
+     */
+    static boolean muted() {
+        return mutedThreads.get() > 0 && muteDepth.get()[ 0 ] > 0;
+    }
+
+    /**
+     * Choose which event keys are printed. Keys that no listener
+     * gets are dropped before any formatting is done.
+     * @param msgs the keys to print
+     */
+    public static void setLevel( Set< Msg > msgs ) {
+        bus.setMsgs( printing, msgs );
+    }
+
+    /**
+     * Print nothing at all.
+     */
+    public static void silence() {
+        setLevel( EnumSet.noneOf( Msg.class ) );
+    }
+
+    /**
+     * Print only one out of every n printed events of each key. The
+     * other listeners still get every event.
+     * @param n the sampling period; 1 prints every event
+     */
+    public static void setSampling( int n ) {
+        sampleEvery = Math.max( 1, n );
+        Arrays.fill( sampled, 0L );
+    }
+
+    /**
+     * Cheap guard for callers on hot paths: when this returns false,
+     * a report with this key would be dropped, so the caller can
+     * skip the call entirely. An event dropped here is still counted
+     * in the Metrics, unless the thread is muted.
+     * @param msg the event key
+     * @return whether events with this key are reported at all
+     */
+    public static boolean enabled( Msg msg ) {
+        if ( muted() ) {
+            return false;
+        }
+        if ( !bus.wants( msg ) ) {
+            Metrics.event( msg );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decide whether this particular event is published at all: only
+     * if some listener gets its key. Every event of a thread that is
+     * not muted is counted in the Metrics first, whether it goes on
+     * or not. The level and the sampling are up to the printing
+     * listener alone.
+     */
+    private static boolean accept( Msg msg ) {
+        if ( muted() ) {
+            return false;
+        }
+        Metrics.event( msg );
+        return bus.wants( msg );
+    }
+
+    /**
+     * Stands between the bus and the printing sink, and passes on only
+     * one out of every sampleEvery events of each key.
+     */
+    private static final class Sampler implements EventSink {
+        private final EventSink sink;
+
+        Sampler( EventSink sink ) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void publish( CircuitEvent event ) {
+            if ( sampleEvery == 1 || sampled[ event.msg.ordinal() ]++ % sampleEvery == 0 ) {
+                this.sink.publish( event );
+            }
+        }
+
+        @Override
+        public void flush() {
+            this.sink.flush();
+        }
+
+        @Override
+        public void close() {
+            this.sink.close();
+        }
+    }
+
+    /**
+     * Replace the printing listener, keeping its level.
+     * Events already given to the old sink are flushed first.
+     * @param newSink the sink to use from now on
+     */
+    public static synchronized void setSink( EventSink newSink ) {
+        EventSink old = sink;
+        EventBus.Registration oldPrinting = printing;
+        sink = newSink;
+        printing = bus.subscribe( new Sampler( newSink ), oldPrinting.getMsgs() );
+        bus.unsubscribe( oldPrinting );
+        old.flush();
+    }
+
+    /**
+     * @return the bus every event goes through, to register
+     *         listeners on
+     */
+    public static EventBus getBus() {
+        return bus;
+    }
+
+    /**
+     * Send the events of the calling thread somewhere else than the
+     * shared sink, e.g. into a buffer to be merged in order later.
+     * @param buffer where this thread's events go from now on,
+     *               or null to go back to the shared sink
+     * @return the sink that was capturing this thread's events before,
+     *         to be put back when done
+     */
+    static EventSink capture( EventSink buffer ) {
+        ThreadState state = scratch.get();
+        EventSink previous = state.capture;
+        state.capture = buffer;
+        return previous;
+    }
+
+    /**
+     * @return where the events of the calling thread go right now:
+     *         its capturing sink if it has one, the shared sink otherwise
+     */
+    static EventSink currentSink() {
+        EventSink capture = scratch.get().capture;
+        return capture == null ? bus : capture;
+    }
+
+    /**
+     * @return the printing listener
+     */
+    public static EventSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Make sure every event reported so far has been written out.
+     * Call this before printing anything directly on System.out.
+     */
+    public static void flush() {
+        bus.flush();
+    }
+
     /**
      * Build a string that identifies a Component in a
      * way that is appropriate for its type.
@@ -97,60 +402,193 @@ public class Reporter {
      *         )
      */
     public static String identify( Component comp ) {
-        String identity =
-                comp.getClass().getSimpleName() + " " + comp.getName();
-        if ( comp instanceof Appliance ) {
-            final Appliance appl = (Appliance)comp;
-            identity += "(" + (appl.isSwitchOn()?"on":"off");
-            identity += "; rating " + appl.getRating() + ")";
-        }
-        else if ( comp instanceof CircuitBreaker ) {
-            final CircuitBreaker cb = (CircuitBreaker)comp;
-            identity += "(" + (cb.isSwitchOn()?"on":"off");
-            identity += "; draw " + comp.getDraw() +
-                        "; limit " + cb.getLimit() + ")";
+        StringBuilder identity = new StringBuilder( 64 );
+        appendIdentity( identity, comp.getKind(), comp.getName(),
+                        comp.isSwitchOn(), comp.getDraw(), auxValue( comp ) );
+        return identity.toString();
+    }
+
+    /**
+     * The extra number shown when identifying a Component.
+     * @param comp the Component to look at
+     * @return the rating of an Appliance, the limit of a CircuitBreaker,
+     *         0 for anything else
+     */
+    static int auxValue( Component comp ) {
+        switch ( comp.getKind() ) {
+            case APPLIANCE:
+                return ( (Appliance)comp ).getRating();
+            case CIRCUIT_BREAKER:
+                return ( (CircuitBreaker)comp ).getLimit();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Append the identity of a Component, given as the values
+     * captured when the event happened.
+     */
+    private static void appendIdentity( StringBuilder sb, Kind kind,
+                                        String name, boolean on,
+                                        int draw, int aux ) {
+        sb.append( kind.label ).append( ' ' ).append( name );
+        switch ( kind ) {
+            case APPLIANCE:
+                sb.append( '(' ).append( on ? "on" : "off" )
+                  .append( "; rating " ).append( aux ).append( ')' );
+                break;
+            case CIRCUIT_BREAKER:
+                sb.append( '(' ).append( on ? "on" : "off" )
+                  .append( "; draw " ).append( draw )
+                  .append( "; limit " ).append( aux ).append( ')' );
+                break;
+            default:
+                sb.append( "(draw " ).append( draw ).append( ')' );
+        }
+    }
+
+    /**
+     * Append the text of an event, without a line terminator.
+     * @param event the event to format
+     * @param sb where the text goes
+     */
+    public static void format( CircuitEvent event, StringBuilder sb ) {
+        appendIdentity( sb, event.kind, event.name,
+                        event.on, event.draw, event.aux );
+        if ( event.otherName != null ) {
+            sb.append( ' ' ).append( event.msg.message ).append( ' ' );
+            appendIdentity( sb, event.otherKind, event.otherName,
+                            event.otherOn, event.otherDraw, event.otherAux );
         }
         else {
-            identity += "(draw " + comp.getDraw() + ")";
+            sb.append( ": " ).append( event.msg.message );
+            if ( event.hasParam ) {
+                sb.append( ' ' ).append( event.param );
+            }
         }
-        return identity;
     }
 
     /**
-     * Print a message about an event involving one Component.
+     * Report a message about an event involving one Component.
      * @param comp the Component involved
      * @param msg the event key
      */
     public static void report( Component comp, Msg msg ) {
-        String eventMsg = identify( comp );
-        eventMsg += ": " + msg.message;
-        System.out.println( eventMsg );
+        if ( !accept( msg ) ) {
+            return;
+        }
+        ThreadState state = scratch.get();
+        CircuitEvent event = state.event;
+        event.msg = msg;
+        event.first( comp );
+        event.otherName = null;
+        event.hasParam = false;
+        event.param = 0;
+        ( state.capture == null ? bus : state.capture ).publish( event );
     }
 
     /**
-     * Print a message about an event involving one Component
+     * Report a message about an event involving one Component
      * and a numerical value.
      * @param comp the Component involved
      * @param msg the event key
      * @param param the numerical quantity of interest
      */
     public static void report( Component comp, Msg msg, int param ) {
-        String eventMsg = identify( comp );
-        eventMsg += ": " + msg.message;
-        eventMsg += " " + param;
-        System.out.println( eventMsg );
+        if ( !accept( msg ) ) {
+            return;
+        }
+        ThreadState state = scratch.get();
+        CircuitEvent event = state.event;
+        event.msg = msg;
+        event.first( comp );
+        event.otherName = null;
+        event.hasParam = true;
+        event.param = param;
+        ( state.capture == null ? bus : state.capture ).publish( event );
     }
 
     /**
-     * Print a message about an event that involves two Components.
+     * Report a message about an event that involves two Components.
      * @param comp1 the first Component involved
      * @param comp2 the second Component involved
      * @param msg the event key
      */
     public static void report( Component comp1, Component comp2, Msg msg ) {
-        String eventMsg = identify( comp1 );
-        eventMsg += ' ' + msg.message + ' ';
-        eventMsg += identify( comp2 );
-        System.out.println( eventMsg );
+        if ( !accept( msg ) ) {
+            return;
+        }
+        ThreadState state = scratch.get();
+        CircuitEvent event = state.event;
+        event.msg = msg;
+        event.first( comp1 );
+        event.second( comp2 );
+        event.hasParam = false;
+        event.param = 0;
+        ( state.capture == null ? bus : state.capture ).publish( event );
+    }
+
+    /**
+     * Report an event involving one component of a compact model.
+     * @param model the model holding the component
+     * @param id the node id of the component
+     * @param msg the event key
+     */
+    static void report( CircuitModel model, int id, Msg msg ) {
+        if ( !accept( msg ) ) {
+            return;
+        }
+        ThreadState state = scratch.get();
+        CircuitEvent event = state.event;
+        event.msg = msg;
+        event.first( model, id );
+        event.otherName = null;
+        event.hasParam = false;
+        event.param = 0;
+        ( state.capture == null ? bus : state.capture ).publish( event );
+    }
+
+    /**
+     * Report an event involving one component of a compact model
+     * and a numerical value.
+     * @param model the model holding the component
+     * @param id the node id of the component
+     * @param msg the event key
+     * @param param the numerical quantity of interest
+     */
+    static void report( CircuitModel model, int id, Msg msg, int param ) {
+        if ( !accept( msg ) ) {
+            return;
+        }
+        ThreadState state = scratch.get();
+        CircuitEvent event = state.event;
+        event.msg = msg;
+        event.first( model, id );
+        event.otherName = null;
+        event.hasParam = true;
+        event.param = param;
+        ( state.capture == null ? bus : state.capture ).publish( event );
+    }
+
+    /**
+     * Report an event that involves two components of a compact model.
+     * @param model the model holding the components
+     * @param id1 the node id of the first component
+     * @param id2 the node id of the second component
+     * @param msg the event key
+     */
+    static void report( CircuitModel model, int id1, int id2, Msg msg ) {
+        if ( !accept( msg ) ) {
+            return;
+        }
+        ThreadState state = scratch.get();
+        CircuitEvent event = state.event;
+        event.msg = msg;
+        event.first( model, id1 );
+        event.second( model, id2 );
+        event.hasParam = false;
+        event.param = 0;
+        ( state.capture == null ? bus : state.capture ).publish( event );
     }
 }
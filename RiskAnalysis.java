@@ -0,0 +1,356 @@
+package components;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Estimates how likely every circuit breaker is to trip when each
+ * appliance is on at random, by running many random scenarios.
+ * <br><br>
+ * The topology is copied once from a compact model into arrays that are
+ * never written to afterwards, so every thread can read them without any
+ * locking. In a scenario each appliance is on with the same probability,
+ * whatever its switch in the model; breakers that are off in the model
+ * stay open. The appliances add their draw to their sources in one tight
+ * pass, then the other components pass theirs on from the last node id to
+ * the first, which puts every load before its source. A breaker over its
+ * limit trips and passes nothing on, as it would if the appliances were
+ * switched on one by one. Nothing is reported.
+ * <br><br>
+ * Scenarios are run in blocks, each with its own SplittableRandom split
+ * from one seeded generator, on the threads of the fork-join pool. Every
+ * thread adds into figures of its own, which are put together at the end;
+ * all of them are whole numbers, so the results are the same for a seed
+ * whatever the number of threads.
+ * <br><br>
+ * For every breaker the analysis gives the share of scenarios it tripped
+ * in, and the distribution of the draw its loads asked of it: the mean,
+ * the largest, and the draw 95% of scenarios stayed within, rounded up to
+ * a tenth of the limit.
+ *
+ * @author Yutong Wu
+ */
+public class RiskAnalysis {
+    private static final int NONE = CircuitModel.NONE;
+    private static final int BINS = 21;
+    private static final int BLOCK = 1024;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int n;
+    private final int[] parent;
+    private final int[] value;
+    private final int[] applianceSource;
+    private final int[] applianceRating;
+    private final int[] inner;
+    private final int[] breakerIndex;
+    private final boolean[] open;
+    private final String[] breakerNames;
+    private final int[] breakerLimits;
+    private final ForkJoinPool pool;
+
+    private long scenarios;
+    private int threads;
+    private long[] trips;
+    private long[] drawSum;
+    private int[] drawMax;
+    private long[] histogram;
+    private long nanos;
+
+    /**
+     * Copy the topology, limits, ratings and breaker switches of a circuit.
+     * @param model The circuit.
+     */
+    public RiskAnalysis(CircuitModel model){
+        this.n = model.size();
+        this.parent = new int[this.n];
+        this.value = new int[this.n];
+        this.breakerIndex = new int[this.n];
+        this.open = new boolean[this.n];
+        ComponentRegistry registry = model.registry();
+        int breakers = 0;
+        for(int id: registry.find("*")){
+            if(model.getKind(id) == Reporter.Kind.CIRCUIT_BREAKER){
+                breakers++;
+            }
+        }
+        this.breakerNames = new String[breakers];
+        this.breakerLimits = new int[breakers];
+        int b = 0;
+        for(int id = 0; id < this.n; id++){
+            this.breakerIndex[id] = NONE;
+        }
+        for(int id: registry.find("*")){
+            if(model.getKind(id) == Reporter.Kind.CIRCUIT_BREAKER){
+                this.breakerIndex[id] = b;
+                this.breakerNames[b] = registry.name(id);
+                this.breakerLimits[b] = model.getValue(id);
+                b++;
+            }
+        }
+        int appliances = registry.count(Reporter.Kind.APPLIANCE);
+        this.applianceSource = new int[appliances];
+        this.applianceRating = new int[appliances];
+        this.inner = new int[this.n - appliances];
+        int a = 0;
+        int i = 0;
+        for(int id = this.n - 1; id >= 0; id--){
+            Reporter.Kind k = model.getKind(id);
+            this.parent[id] = model.getParent(id);
+            this.value[id] = model.getValue(id);
+            this.open[id] = k == Reporter.Kind.CIRCUIT_BREAKER && !model.isSwitchOn(id);
+            if(k == Reporter.Kind.APPLIANCE){
+                this.applianceSource[a] = this.parent[id];
+                this.applianceRating[a] = this.value[id];
+                a++;
+            }else{
+                this.inner[i++] = id;
+            }
+        }
+        this.pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Run scenarios, replacing the figures of any earlier run.
+     * @param count How many scenarios to run.
+     * @param probability The chance of each appliance being on in a scenario.
+     * @param seed Seed of the random generator.
+     */
+    public void run(long count, double probability, long seed){
+        long start = System.nanoTime();
+        int blocks = (int) ((count + BLOCK - 1) / BLOCK);
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] streams = new SplittableRandom[blocks];
+        for(int i = 0; i < blocks; i++){
+            streams[i] = root.split();
+        }
+        long threshold = (long) Math.ceil(Math.max(0, Math.min(1, probability)) * (1L << 32));
+        Worker[] workers = new Worker[Math.max(1, Math.min(blocks, this.pool.getParallelism()))];
+        AtomicInteger nextBlock = new AtomicInteger();
+        for(int w = 0; w < workers.length; w++){
+            workers[w] = new Worker(streams, count, threshold, nextBlock);
+        }
+        this.pool.invoke(new WorkerRange(workers, 0, workers.length));
+        int breakers = this.breakerNames.length;
+        this.scenarios = count;
+        this.threads = workers.length;
+        this.trips = new long[breakers];
+        this.drawSum = new long[breakers];
+        this.drawMax = new int[breakers];
+        this.histogram = new long[breakers * BINS];
+        for(Worker w: workers){
+            for(int b = 0; b < breakers; b++){
+                this.trips[b] += w.trips[b];
+                this.drawSum[b] += w.drawSum[b];
+                this.drawMax[b] = Math.max(this.drawMax[b], w.drawMax[b]);
+            }
+            for(int i = 0; i < this.histogram.length; i++){
+                this.histogram[i] += w.histogram[i];
+            }
+        }
+        this.nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return The number of circuit breakers, in name order in every figure.
+     */
+    public int getBreakerCount(){
+        return this.breakerNames.length;
+    }
+
+    /**
+     * @param b Index of a breaker.
+     * @return Its name.
+     */
+    public String getBreakerName(int b){
+        return this.breakerNames[b];
+    }
+
+    /**
+     * @param b Index of a breaker.
+     * @return The share of scenarios it tripped in.
+     */
+    public double getTripProbability(int b){
+        return this.scenarios == 0 ? 0 : (double) this.trips[b] / this.scenarios;
+    }
+
+    /**
+     * @param b Index of a breaker.
+     * @return The mean of the draw its loads asked of it.
+     */
+    public double getMeanDraw(int b){
+        return this.scenarios == 0 ? 0 : (double) this.drawSum[b] / this.scenarios;
+    }
+
+    /**
+     * @param b Index of a breaker.
+     * @return The largest draw its loads asked of it.
+     */
+    public int getMaxDraw(int b){
+        return this.drawMax[b];
+    }
+
+    /**
+     * @param b Index of a breaker.
+     * @param share A share of the scenarios, between 0 and 1.
+     * @return The draw that share of scenarios stayed within, rounded up to
+     *         a tenth of the limit, and no more than the largest draw.
+     */
+    public int getDrawQuantile(int b, double share){
+        long wanted = (long) Math.ceil(share * this.scenarios);
+        long seen = 0;
+        for(int bin = 0; bin < BINS - 1; bin++){
+            seen += this.histogram[b * BINS + bin];
+            if(seen >= wanted){
+                return (int) Math.min(this.drawMax[b], (long) this.breakerLimits[b] * (bin + 1) / 10);
+            }
+        }
+        return this.drawMax[b];
+    }
+
+    /**
+     * @return How long the last run took, in milliseconds.
+     */
+    public double getMillis(){
+        return this.nanos / 1e6;
+    }
+
+    /**
+     * Print the figures of every breaker on System.out, in name order.
+     */
+    public void print(){
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE), false);
+        out.printf("Risk analysis of %d scenarios on %d threads in %.1f ms.%n",
+                this.scenarios, this.threads, this.getMillis());
+        for(int b = 0; b < this.breakerNames.length; b++){
+            out.printf("CircuitBreaker %s: trips %.4f, draw mean %.1f, 95%% %d, max %d, limit %d%n",
+                    this.breakerNames[b], this.getTripProbability(b), this.getMeanDraw(b),
+                    this.getDrawQuantile(b, 0.95), this.drawMax[b], this.breakerLimits[b]);
+        }
+        out.flush();
+    }
+
+    /**
+     * @return The histogram bin of a draw, in tenths of the limit, the
+     *         last one for anything from twice the limit up.
+     */
+    private static int bin(int draw, int limit){
+        if(limit <= 0){
+            return draw > 0 ? BINS - 1 : 0;
+        }
+        return (int) Math.min(BINS - 1, (long) draw * 10 / limit);
+    }
+
+    /**
+     * Takes blocks of scenarios until there are none left, with figures
+     * and draw arrays of its own.
+     */
+    private class Worker {
+        private final SplittableRandom[] streams;
+        private final long count;
+        private final long threshold;
+        private final AtomicInteger nextBlock;
+        final long[] trips;
+        final long[] drawSum;
+        final int[] drawMax;
+        final long[] histogram;
+
+        Worker(SplittableRandom[] streams, long count, long threshold, AtomicInteger nextBlock){
+            int breakers = RiskAnalysis.this.breakerNames.length;
+            this.streams = streams;
+            this.count = count;
+            this.threshold = threshold;
+            this.nextBlock = nextBlock;
+            this.trips = new long[breakers];
+            this.drawSum = new long[breakers];
+            this.drawMax = new int[breakers];
+            this.histogram = new long[breakers * BINS];
+        }
+
+        void run(){
+            int[] load = new int[RiskAnalysis.this.n];
+            for(int block = this.nextBlock.getAndIncrement(); block < this.streams.length;
+                    block = this.nextBlock.getAndIncrement()){
+                SplittableRandom random = this.streams[block];
+                long first = (long) block * BLOCK;
+                long last = Math.min(this.count, first + BLOCK);
+                for(long s = first; s < last; s++){
+                    this.scenario(random, load);
+                }
+            }
+        }
+
+        /**
+         * Run one scenario. The draw array is all zeros before and after.
+         */
+        private void scenario(SplittableRandom random, int[] load){
+            int[] applianceSource = RiskAnalysis.this.applianceSource;
+            int[] applianceRating = RiskAnalysis.this.applianceRating;
+            for(int a = 0; a < applianceSource.length; a += 2){
+                long bits = random.nextLong();
+                if((bits & 0xFFFFFFFFL) < this.threshold){
+                    load[applianceSource[a]] += applianceRating[a];
+                }
+                if(a + 1 < applianceSource.length && (bits >>> 32) < this.threshold){
+                    load[applianceSource[a + 1]] += applianceRating[a + 1];
+                }
+            }
+            int[] inner = RiskAnalysis.this.inner;
+            int[] parent = RiskAnalysis.this.parent;
+            int[] value = RiskAnalysis.this.value;
+            int[] breakerIndex = RiskAnalysis.this.breakerIndex;
+            boolean[] open = RiskAnalysis.this.open;
+            for(int id: inner){
+                int draw = load[id];
+                load[id] = 0;
+                int b = breakerIndex[id];
+                if(b != NONE){
+                    this.drawSum[b] += draw;
+                    this.drawMax[b] = Math.max(this.drawMax[b], draw);
+                    this.histogram[b * BINS + bin(draw, value[id])]++;
+                    if(open[id]){
+                        draw = 0;
+                    }else if(draw > value[id]){
+                        this.trips[b]++;
+                        draw = 0;
+                    }
+                }
+                if(draw != 0 && parent[id] != NONE){
+                    load[parent[id]] += draw;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a range of workers, splitting it in two until one is left.
+     */
+    private static class WorkerRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Worker[] workers;
+        private final int from;
+        private final int to;
+
+        WorkerRange(Worker[] workers, int from, int to){
+            this.workers = workers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if(this.to - this.from == 1){
+                this.workers[this.from].run();
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new WorkerRange(this.workers, this.from, middle),
+                    new WorkerRange(this.workers, middle, this.to));
+        }
+    }
+}
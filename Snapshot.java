@@ -0,0 +1,292 @@
+package components;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Saves the complete state of a circuit in a compact binary file and
+ * rebuilds it from one, without re-running the configuration or
+ * reporting an event per component.
+ * <br><br>
+ * Layout: a magic number, a version, the number of components, then one
+ * record per component with every source before its loads: kind, name,
+ * index of the source (-1 for a power source), limit or rating, engaged
+ * and switch flags, draw, and own draw.
+ *
+ * @author Yutong Wu
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x4F564C53;
+    private static final short VERSION = 1;
+    private static final int ENGAGED = 1;
+    private static final int ON = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Reporter.Kind[] KINDS = Reporter.Kind.values();
+
+    /**
+     * Write the state of a circuit to a file.
+     * @param circuit The circuit, any backend.
+     * @param file Where to write it.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void save(Circuit circuit, Path file) throws IOException{
+        try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE))){
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            save(circuit, out);
+        }
+    }
+
+    /**
+     * Rebuild a circuit from a file. Nothing is reported while it is rebuilt.
+     * @param file The snapshot.
+     * @param compact Whether to rebuild it as a CircuitModel rather than Components.
+     * @return The circuit, in the state it was saved in.
+     * @throws IOException if the file cannot be read or is not a snapshot.
+     */
+    public static Circuit load(Path file, boolean compact) throws IOException{
+        try(DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))){
+            if(in.readInt() != MAGIC || in.readShort() != VERSION){
+                throw new IOException(file + " is not a circuit snapshot");
+            }
+            return compact ? loadModel(in) : loadComponents(in);
+        }
+    }
+
+    /**
+     * Copy a circuit into a compact model, through a snapshot kept in
+     * memory. Nothing is reported while it is copied.
+     * @param circuit The circuit, any backend.
+     * @return The circuit itself if it is already a CircuitModel, else a copy.
+     */
+    public static CircuitModel compact(Circuit circuit){
+        if(circuit instanceof CircuitModel){
+            return (CircuitModel) circuit;
+        }
+        try{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try(DataOutputStream out = new DataOutputStream(bytes)){
+                save(circuit, out);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            return (CircuitModel) loadModel(in);
+        }catch(IOException ioe){
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Copy a circuit into one circuit per power source, through a snapshot
+     * kept in memory. Nothing is reported while it is copied.
+     * @param circuit The circuit, any backend.
+     * @param compact Whether to build the copies as CircuitModels rather than Components.
+     * @return One circuit per power source, in the order of the power sources.
+     */
+    static Circuit[] split(Circuit circuit, boolean compact){
+        try{
+            ByteArrayOutputStream whole = new ByteArrayOutputStream();
+            try(DataOutputStream out = new DataOutputStream(whole)){
+                save(circuit, out);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(whole.toByteArray()));
+            int n = in.readInt();
+            int[] part = new int[n];
+            int[] local = new int[n];
+            ArrayList<ByteArrayOutputStream> bytes = new ArrayList<>();
+            ArrayList<DataOutputStream> outs = new ArrayList<>();
+            int[] counts = new int[4];
+            for(int i = 0; i < n; i++){
+                Reporter.Kind k = kind(in.readByte());
+                String name = in.readUTF();
+                int source = in.readInt();
+                int value = in.readInt();
+                int f = in.readByte();
+                int draw = in.readInt();
+                int own = in.readInt();
+                if(source < 0){
+                    part[i] = outs.size();
+                    bytes.add(new ByteArrayOutputStream());
+                    outs.add(new DataOutputStream(bytes.get(part[i])));
+                    if(outs.size() > counts.length){
+                        counts = Arrays.copyOf(counts, counts.length * 2);
+                    }
+                }else{
+                    part[i] = part[source];
+                }
+                local[i] = counts[part[i]]++;
+                write(outs.get(part[i]), k, name, source < 0 ? -1 : local[source], value,
+                        (f & ENGAGED) != 0, (f & ON) != 0, draw, own);
+            }
+            Circuit[] parts = new Circuit[outs.size()];
+            for(int p = 0; p < parts.length; p++){
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                try(DataOutputStream out = new DataOutputStream(records)){
+                    out.writeInt(counts[p]);
+                    bytes.get(p).writeTo(out);
+                }
+                in = new DataInputStream(new ByteArrayInputStream(records.toByteArray()));
+                parts[p] = compact ? loadModel(in) : loadComponents(in);
+            }
+            return parts;
+        }catch(IOException ioe){
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Write the number of components, then every component. A partitioned
+     * circuit is written part after part, as if it were one circuit.
+     */
+    private static void save(Circuit circuit, DataOutputStream out) throws IOException{
+        Circuit[] parts = circuit instanceof PartitionedCircuit
+                ? ((PartitionedCircuit) circuit).parts() : new Circuit[]{circuit};
+        int n = 0;
+        for(Circuit part: parts){
+            n += part.size();
+        }
+        out.writeInt(n);
+        int offset = 0;
+        for(Circuit part: parts){
+            if(part instanceof CircuitModel){
+                save((CircuitModel) part, out, offset);
+            }else{
+                save((ComponentCircuit) part, out, offset);
+            }
+            offset += part.size();
+        }
+    }
+
+    /**
+     * Write the components, breadth first from every power source.
+     * Source indexes are counted from offset.
+     */
+    private static void save(ComponentCircuit circuit, DataOutputStream out, int offset) throws IOException{
+        ComponentRegistry registry = circuit.registry();
+        ArrayList<Component> order = new ArrayList<>(circuit.size());
+        for(int r = 0; r < registry.rootCount(); r++){
+            order.add(circuit.get(registry.root(r)));
+        }
+        for(int i = 0; i < order.size(); i++){
+            order.addAll(order.get(i).getLoads());
+        }
+        IdentityHashMap<Component, Integer> index = new IdentityHashMap<>(order.size());
+        for(Component c: order){
+            index.put(c, offset + index.size());
+            Component source = c.getSource();
+            write(out, c.getKind(), c.getName(), source == null ? -1 : index.get(source),
+                    Reporter.auxValue(c), c.engaged(), c.isSwitchOn(), c.getDraw(), c.getOwnDraw());
+        }
+    }
+
+    /**
+     * Write the nodes of a compact model. Ids already put sources first.
+     * Source indexes are counted from offset.
+     */
+    private static void save(CircuitModel model, DataOutputStream out, int offset) throws IOException{
+        int n = model.size();
+        for(int id = 0; id < n; id++){
+            Reporter.Kind k = model.getKind(id);
+            int own = k == Reporter.Kind.APPLIANCE && model.isDrawing(id) ? model.getValue(id) : 0;
+            int parent = model.getParent(id);
+            write(out, k, model.getName(id), parent == CircuitModel.NONE ? -1 : offset + parent, model.getValue(id),
+                    model.isEngaged(id), model.isSwitchOn(id), model.getDraw(id), own);
+        }
+    }
+
+    private static void write(DataOutputStream out, Reporter.Kind k, String name, int source,
+                              int value, boolean engaged, boolean on, int draw, int own) throws IOException{
+        out.writeByte(k.ordinal());
+        out.writeUTF(name);
+        out.writeInt(source);
+        out.writeInt(value);
+        out.writeByte((engaged ? ENGAGED : 0) | (on ? ON : 0));
+        out.writeInt(draw);
+        out.writeInt(own);
+    }
+
+    /**
+     * Create every Component first, then put each one in its saved state.
+     * They are created and attached without reporting, and attaching a
+     * load never engages it on the way.
+     */
+    private static Circuit loadComponents(DataInputStream in) throws IOException{
+        int n = in.readInt();
+        Component[] nodes = new Component[n];
+        int[] flags = new int[n];
+        int[] draws = new int[n];
+        int[] owns = new int[n];
+        ComponentCircuit circuit = new ComponentCircuit();
+        for(int i = 0; i < n; i++){
+            Reporter.Kind k = kind(in.readByte());
+            String name = in.readUTF();
+            int source = in.readInt();
+            int value = in.readInt();
+            flags[i] = in.readByte();
+            draws[i] = in.readInt();
+            owns[i] = in.readInt();
+            if(source >= i || (source < 0) != (k == Reporter.Kind.POWER_SOURCE)){
+                throw new IOException("bad source for " + name);
+            }
+            switch(k){
+                case POWER_SOURCE:
+                    nodes[i] = new PowerSource(name, false);
+                    break;
+                case CIRCUIT_BREAKER:
+                    nodes[i] = new CircuitBreaker(name, nodes[source], value, false);
+                    break;
+                case OUTLET:
+                    nodes[i] = new Outlet(name, nodes[source], false);
+                    break;
+                default:
+                    nodes[i] = new Appliance(name, nodes[source], value, false);
+            }
+            circuit.put(nodes[i]);
+        }
+        for(int i = 0; i < n; i++){
+            nodes[i].restore((flags[i] & ENGAGED) != 0, (flags[i] & ON) != 0, draws[i], owns[i]);
+        }
+        return circuit;
+    }
+
+    /**
+     * Fill a compact model node by node.
+     */
+    private static Circuit loadModel(DataInputStream in) throws IOException{
+        int n = in.readInt();
+        CircuitModel model = new CircuitModel();
+        for(int i = 0; i < n; i++){
+            Reporter.Kind k = kind(in.readByte());
+            String name = in.readUTF();
+            int source = in.readInt();
+            int value = in.readInt();
+            int f = in.readByte();
+            int draw = in.readInt();
+            int own = in.readInt();
+            if(source >= i || (source < 0) != (k == Reporter.Kind.POWER_SOURCE)){
+                throw new IOException("bad source for " + name);
+            }
+            model.restore(k, name, source, value, (f & ENGAGED) != 0, (f & ON) != 0, draw, own != 0);
+        }
+        return model;
+    }
+
+    private static Reporter.Kind kind(byte b) throws IOException{
+        if(b < 0 || b >= KINDS.length){
+            throw new IOException("bad component kind " + b);
+        }
+        return KINDS[b];
+    }
+}
@@ -0,0 +1,23 @@
+package components;
+
+/**
+ * The original reporting behavior: every event is formatted and
+ * printed on System.out before the Component carries on.
+ *
+ * @author Yutong Wu
+ */
+public class StdoutEventSink implements EventSink {
+    private final StringBuilder line = new StringBuilder(128);
+
+    @Override
+    public synchronized void publish(CircuitEvent event){
+        this.line.setLength(0);
+        Reporter.format(event, this.line);
+        System.out.println(this.line);
+    }
+
+    @Override
+    public void flush(){
+        System.out.flush();
+    }
+}
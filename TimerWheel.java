@@ -0,0 +1,132 @@
+package components;
+
+import java.util.Arrays;
+
+/**
+ * A hashed timer wheel of int ids, each with at most one deadline tick.
+ * <br><br>
+ * A timer goes into the slot of its deadline modulo the number of slots,
+ * in a doubly linked list threaded through int arrays, so setting and
+ * cancelling one are O(1). The wheel is advanced one tick at a time and
+ * only looks at the slot of that tick; a timer further away than one
+ * turn of the wheel is passed over until its turn comes.
+ *
+ * @author Yutong Wu
+ */
+class TimerWheel {
+    private static final int NONE = -1;
+    private static final long UNSET = -1;
+
+    private final int mask;
+    private final int[] head;
+    private int[] next;
+    private int[] prev;
+    private long[] deadline;
+    private int[] expired = new int[16];
+    private int expiredCount;
+
+    /**
+     * @param slots At least how many slots the wheel has.
+     * @param capacity How many ids to make room for at first.
+     */
+    TimerWheel(int slots, int capacity){
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.head = new int[size];
+        Arrays.fill(this.head, NONE);
+        this.next = new int[Math.max(capacity, 1)];
+        this.prev = new int[this.next.length];
+        this.deadline = new long[this.next.length];
+        Arrays.fill(this.deadline, UNSET);
+    }
+
+    /**
+     * Set the timer of an id, replacing the one it had.
+     * @param id The id.
+     * @param tick The tick it expires at, later than the last tick advanced to.
+     */
+    void schedule(int id, long tick){
+        this.cancel(id);
+        if(id >= this.deadline.length){
+            int size = Math.max(id + 1, this.deadline.length * 2);
+            int old = this.deadline.length;
+            this.next = Arrays.copyOf(this.next, size);
+            this.prev = Arrays.copyOf(this.prev, size);
+            this.deadline = Arrays.copyOf(this.deadline, size);
+            Arrays.fill(this.deadline, old, size, UNSET);
+        }
+        int slot = (int) (tick & this.mask);
+        this.deadline[id] = tick;
+        this.prev[id] = NONE;
+        this.next[id] = this.head[slot];
+        if(this.head[slot] != NONE){
+            this.prev[this.head[slot]] = id;
+        }
+        this.head[slot] = id;
+    }
+
+    /**
+     * Take away the timer of an id, if it has one.
+     * @param id The id.
+     */
+    void cancel(int id){
+        if(id >= this.deadline.length || this.deadline[id] == UNSET){
+            return;
+        }
+        if(this.prev[id] != NONE){
+            this.next[this.prev[id]] = this.next[id];
+        }else{
+            this.head[(int) (this.deadline[id] & this.mask)] = this.next[id];
+        }
+        if(this.next[id] != NONE){
+            this.prev[this.next[id]] = this.prev[id];
+        }
+        this.deadline[id] = UNSET;
+    }
+
+    /**
+     * @param id The id.
+     * @return Whether it has a timer set.
+     */
+    boolean isScheduled(int id){
+        return id < this.deadline.length && this.deadline[id] != UNSET;
+    }
+
+    /**
+     * Take every timer that expires at a tick off the wheel.
+     * @param tick The tick, one after the one advanced to last.
+     * @return How many expired; get them with expired(i), in no particular order.
+     */
+    int advance(long tick){
+        this.expiredCount = 0;
+        int id = this.head[(int) (tick & this.mask)];
+        while(id != NONE){
+            int following = this.next[id];
+            if(this.deadline[id] <= tick){
+                this.cancel(id);
+                if(this.expiredCount == this.expired.length){
+                    this.expired = Arrays.copyOf(this.expired, this.expiredCount * 2);
+                }
+                this.expired[this.expiredCount++] = id;
+            }
+            id = following;
+        }
+        return this.expiredCount;
+    }
+
+    /**
+     * @param i Index among the timers of the last advance.
+     * @return The id of that timer.
+     */
+    int expired(int i){
+        return this.expired[i];
+    }
+
+    /**
+     * Take away every timer.
+     */
+    void clear(){
+        Arrays.fill(this.head, NONE);
+        Arrays.fill(this.deadline, UNSET);
+    }
+}
@@ -0,0 +1,293 @@
+package components;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Links every draw propagation and every trip to the command that caused
+ * it, so that "why breaker" can tell how a circuit breaker came to blow.
+ * <br><br>
+ * Every command is given a trace id, kept per thread with the record
+ * being worked on, the cause. A draw propagation, a circuit breaker
+ * switched on and a trip each write one record: its trace, its cause,
+ * what it was, the name of the component and two numbers. A propagation
+ * started while a trip is being worked on, e.g. by the loads the breaker
+ * disengages, has the trip for cause, and a trip in a propagation has the
+ * propagation for cause; following the causes back from a trip gives the
+ * whole chain down from the command.
+ * <br><br>
+ * The records are kept in fixed arrays of primitives used as a ring, and
+ * the names are the Strings the components already have, so tracing
+ * allocates nothing and stays on. A record is claimed with one atomic
+ * increment, so any thread can write. Each slot works as a seqlock: its
+ * sequence number is cleared, behind a store fence, before the fields
+ * are written and set with a release store after, and a reader copies the
+ * fields between an acquire load of the number and a second load behind
+ * a fence, keeping the copy only if both are the number it wanted. A
+ * record overwritten while it is read is thus dropped, never torn. The
+ * words of a command are kept the same way. Only the last RECORDS
+ * records and the words of the last COMMANDS commands are kept.
+ *
+ * @author Yutong Wu
+ */
+public class Trace {
+    static final byte PROPAGATION = 1;
+    static final byte SWITCH_ON = 2;
+    static final byte TRIP = 3;
+
+    private static final int RECORDS = 1 << 16;
+    private static final int COMMANDS = 1 << 12;
+    private static final int WORDS = 4;
+    private static final int SHOWN = 8;
+
+    private static final AtomicLong records = new AtomicLong();
+    private static final AtomicLong traces = new AtomicLong();
+    private static final AtomicLongArray seqs = new AtomicLongArray(RECORDS);
+    private static final long[] recordTraces = new long[RECORDS];
+    private static final long[] causes = new long[RECORDS];
+    private static final byte[] kinds = new byte[RECORDS];
+    private static final int[] firsts = new int[RECORDS];
+    private static final int[] seconds = new int[RECORDS];
+    private static final String[] names = new String[RECORDS];
+    private static final AtomicLongArray commandTraces = new AtomicLongArray(COMMANDS);
+    private static final int[] wordCounts = new int[COMMANDS];
+    private static final String[] words = new String[COMMANDS * WORDS];
+
+    private static final ThreadLocal<Cursor> cursor = ThreadLocal.withInitial(Cursor::new);
+
+    /**
+     * The trace a thread works for, and the record it works on.
+     */
+    private static final class Cursor {
+        long trace;
+        long cause;
+    }
+
+    /**
+     * Start a new trace for a command carried out on this thread.
+     * @param command The words of the command.
+     * @param count How many of the words are used.
+     */
+    public static void begin(String[] command, int count){
+        long trace = traces.incrementAndGet();
+        int slot = (int) (trace & (COMMANDS - 1));
+        commandTraces.setOpaque(slot, 0);
+        VarHandle.storeStoreFence();
+        for(int i = 0; i < WORDS; i++){
+            words[slot * WORDS + i] = i < count ? command[i] : null;
+        }
+        wordCounts[slot] = count;
+        commandTraces.setRelease(slot, trace);
+        resume(trace);
+    }
+
+    /**
+     * @return The trace this thread works for, 0 outside any command.
+     */
+    public static long current(){
+        return cursor.get().trace;
+    }
+
+    /**
+     * @return The record this thread works on, 0 if none.
+     */
+    public static long cause(){
+        return cursor.get().cause;
+    }
+
+    /**
+     * Carry on a trace on this thread, e.g. for a command handed over to
+     * another thread.
+     * @param trace The trace id.
+     */
+    public static void resume(long trace){
+        resume(trace, 0);
+    }
+
+    /**
+     * Carry on a trace on this thread from the record another thread was
+     * working on, e.g. for part of a propagation handed over to a fork.
+     * @param trace The trace id.
+     * @param cause The record, as cause returned it there.
+     */
+    public static void resume(long trace, long cause){
+        Cursor c = cursor.get();
+        c.trace = trace;
+        c.cause = cause;
+    }
+
+    /**
+     * Write a record, and make it the cause of what this thread does
+     * until leave is called.
+     * @param kind PROPAGATION, SWITCH_ON or TRIP.
+     * @param name Name of the component.
+     * @param first The change in draw of a propagation, the draw a breaker
+     *              held when switched on, or the draw a breaker blew at.
+     * @param second The limit of the breaker, for a breaker switched on
+     *               or blown.
+     * @return The cause to give back to leave.
+     */
+    static long enter(byte kind, String name, int first, int second){
+        Cursor c = cursor.get();
+        long seq = records.incrementAndGet();
+        int slot = (int) (seq & (RECORDS - 1));
+        seqs.setOpaque(slot, 0);
+        VarHandle.storeStoreFence();
+        recordTraces[slot] = c.trace;
+        causes[slot] = c.cause;
+        kinds[slot] = kind;
+        names[slot] = name;
+        firsts[slot] = first;
+        seconds[slot] = second;
+        seqs.setRelease(slot, seq);
+        long previous = c.cause;
+        c.cause = seq;
+        return previous;
+    }
+
+    /**
+     * Go back to the cause this thread had before enter.
+     * @param previous What enter returned.
+     */
+    static void leave(long previous){
+        cursor.get().cause = previous;
+    }
+
+    /**
+     * Tell how a circuit breaker came to blow the last time it did, from
+     * the command down to the trip, and what the trip did next.
+     * @param name Name of the circuit breaker.
+     * @return The lines to show.
+     */
+    public static ArrayList<String> why(String name){
+        ArrayList<String> lines = new ArrayList<>();
+        long head = records.get();
+        Record trip = null;
+        for(long seq = head; seq > 0 && seq > head - RECORDS && trip == null; seq--){
+            Record r = read(seq);
+            if(r != null && r.kind == TRIP && name.equals(r.name)){
+                trip = r;
+            }
+        }
+        if(trip == null){
+            lines.add(name + " has not blown in the last " + RECORDS + " records kept.");
+            return lines;
+        }
+        ArrayList<Record> chain = new ArrayList<>();
+        chain.add(trip);
+        for(Record r = read(trip.cause); r != null; r = read(r.cause)){
+            chain.add(0, r);
+        }
+        lines.add(name + " blew in trace " + trip.trace + ".");
+        lines.add("  " + command(trip.trace));
+        String indent = "    ";
+        if(chain.get(0).cause != 0){
+            lines.add(indent + "(earlier causes no longer kept)");
+            indent += "  ";
+        }
+        for(Record r: chain){
+            lines.add(indent + r);
+            indent += "  ";
+        }
+        int shown = 0;
+        int more = 0;
+        for(long seq = trip.seq + 1; seq <= records.get() && seq <= trip.seq + RECORDS; seq++){
+            Record r = read(seq);
+            if(r != null && r.cause == trip.seq){
+                if(shown < SHOWN){
+                    lines.add(indent + r);
+                    shown++;
+                }else{
+                    more++;
+                }
+            }
+        }
+        if(more > 0){
+            lines.add(indent + "... and " + more + " more");
+        }
+        return lines;
+    }
+
+    /**
+     * A copy of one record, taken while no thread was writing it.
+     */
+    private static final class Record {
+        long seq;
+        long trace;
+        long cause;
+        byte kind;
+        String name;
+        int first;
+        int second;
+
+        /**
+         * @return The record, in words.
+         */
+        @Override
+        public String toString(){
+            if(this.kind == PROPAGATION){
+                return "draw " + (this.first > 0 ? "+" : "") + this.first + " at " + this.name;
+            }else if(this.kind == SWITCH_ON){
+                return this.name + " switched on, holding draw " + this.first;
+            }
+            return this.name + " blew at draw " + this.first + ", limit " + this.second;
+        }
+    }
+
+    /**
+     * Copy a record as a seqlock reader does.
+     * @param seq Its sequence number.
+     * @return The copy, or null if the record was overwritten or is
+     *         being written.
+     */
+    private static Record read(long seq){
+        if(seq <= 0){
+            return null;
+        }
+        int slot = (int) (seq & (RECORDS - 1));
+        if(seqs.getAcquire(slot) != seq){
+            return null;
+        }
+        Record r = new Record();
+        r.seq = seq;
+        r.trace = recordTraces[slot];
+        r.cause = causes[slot];
+        r.kind = kinds[slot];
+        r.name = names[slot];
+        r.first = firsts[slot];
+        r.second = seconds[slot];
+        VarHandle.loadLoadFence();
+        return seqs.get(slot) == seq ? r : null;
+    }
+
+    /**
+     * @return The command of a trace, as far as its words are kept.
+     */
+    private static String command(long trace){
+        if(trace == 0){
+            return "(outside any command)";
+        }
+        int slot = (int) (trace & (COMMANDS - 1));
+        if(commandTraces.getAcquire(slot) != trace){
+            return "(command no longer kept)";
+        }
+        StringBuilder sb = new StringBuilder();
+        int count = wordCounts[slot];
+        for(int i = 0; i < Math.min(count, WORDS); i++){
+            if(i > 0){
+                sb.append(' ');
+            }
+            sb.append(words[slot * WORDS + i]);
+        }
+        if(count > WORDS){
+            sb.append(" ... (").append(count).append(" words)");
+        }
+        VarHandle.loadLoadFence();
+        if(commandTraces.get(slot) != trace){
+            return "(command no longer kept)";
+        }
+        return sb.toString();
+    }
+}
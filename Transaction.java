@@ -0,0 +1,103 @@
+package components;
+
+import java.util.Arrays;
+
+/**
+ * A set of appliance operations that are carried out together.
+ * <br><br>
+ * Switching appliances one by one sends a change in draw up to the power
+ * source for each of them, and a circuit breaker may blow part of the way
+ * through. A transaction instead switches every appliance first, then adds
+ * up the net change in draw of every component above them, deepest first,
+ * so that each component gets one draw change and each circuit breaker
+ * checks its limit once, against the final draw. A breaker over its limit
+ * blows as usual and takes its part of the change back out.
+ * <br><br>
+ * Operations are kept in order as parallel arrays. Connections are made
+ * first; after that, the last switch operation on an appliance decides
+ * where its switch ends up. If any operation names something that does
+ * not exist, nothing is done at all.
+ *
+ * @author Yutong Wu
+ */
+public class Transaction {
+    static final byte TURN_ON = 0;
+    static final byte TURN_OFF = 1;
+    static final byte CONNECT = 2;
+
+    private final Circuit circuit;
+    int count;
+    byte[] op = new byte[8];
+    String[] name = new String[8];
+    String[] source = new String[8];
+    int[] rating = new int[8];
+
+    /**
+     * Start an empty transaction.
+     * @param circuit The circuit it will be committed to.
+     */
+    public Transaction(Circuit circuit){
+        this.circuit = circuit;
+    }
+
+    /**
+     * @return The number of operations collected so far.
+     */
+    public int size(){
+        return this.count;
+    }
+
+    /**
+     * Switch an appliance on.
+     * @param name Name of the appliance.
+     */
+    public void turnOn(String name){
+        this.add(TURN_ON, name, null, 0);
+    }
+
+    /**
+     * Switch an appliance off.
+     * @param name Name of the appliance.
+     */
+    public void turnOff(String name){
+        this.add(TURN_OFF, name, null, 0);
+    }
+
+    /**
+     * Connect a new appliance. It starts off, like any new appliance.
+     * @param name Name of the appliance.
+     * @param source Name of its source.
+     * @param rating Rating of the appliance.
+     */
+    public void connect(String name, String source, int rating){
+        this.add(CONNECT, name, source, rating);
+    }
+
+    /**
+     * Carry out every operation collected, then start over empty.
+     * @throws CommandException if an operation names an unknown appliance
+     *                          or source; nothing is done in that case.
+     */
+    public void commit(){
+        try{
+            this.circuit.commit(this);
+        }finally{
+            this.count = 0;
+        }
+    }
+
+    private void add(byte o, String n, String s, int r){
+        if(this.count == this.op.length){
+            int capacity = this.count * 2;
+            this.op = Arrays.copyOf(this.op, capacity);
+            this.name = Arrays.copyOf(this.name, capacity);
+            this.source = Arrays.copyOf(this.source, capacity);
+            this.rating = Arrays.copyOf(this.rating, capacity);
+        }
+        int i = this.count++;
+        this.op[i] = o;
+        this.name[i] = n;
+        this.source[i] = s;
+        this.rating[i] = r;
+    }
+}
@@ -0,0 +1,39 @@
+package components;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Writes the lines of a circuit display to System.out through one
+ * buffer: a tab per level below the component the display started at,
+ * then "+ " and the component.
+ *
+ * @author Yutong Wu
+ */
+class TreeWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final PrintWriter out = new PrintWriter(
+            new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE), false);
+
+    /**
+     * Write one component.
+     * @param depth How many levels below the start of the display it is.
+     * @param text The component.
+     */
+    void line(int depth, String text){
+        for(int t = 0; t < depth; t++){
+            this.out.write('\t');
+        }
+        this.out.write("+ ");
+        this.out.println(text);
+    }
+
+    /**
+     * Write out whatever is still in the buffer.
+     */
+    void flush(){
+        this.out.flush();
+    }
+}
@@ -0,0 +1,162 @@
+package components;
+
+/**
+ * How long a circuit breaker takes to trip when it is over its limit, in
+ * the ticks of a LoadStudy.
+ * <br><br>
+ * A breaker trips at once when its draw goes over the instantaneous
+ * threshold of its curve. Between its limit and that threshold it heats
+ * up, and trips when its heat reaches 1. The heat is kept by the study,
+ * one number per breaker; a curve only says how it changes while the draw
+ * stays the same, and when it will reach 1, so that an overloaded breaker
+ * can be put on a timer instead of being checked at every tick.
+ *
+ * @author Yutong Wu
+ */
+public interface TripCurve {
+
+    /**
+     * @param limit Limit of the breaker.
+     * @return The draw above which the breaker trips at once.
+     */
+    int instantaneous(int limit);
+
+    /**
+     * @param heat The heat of the breaker now.
+     * @param limit Limit of the breaker.
+     * @param draw Its draw, the same for all the ticks.
+     * @param ticks How many ticks go by.
+     * @return Its heat after that many ticks.
+     */
+    double heat(double heat, int limit, int draw, long ticks);
+
+    /**
+     * @param heat The heat of the breaker now.
+     * @param limit Limit of the breaker.
+     * @param draw Its draw from now on, not over the instantaneous threshold.
+     * @return In how many ticks it trips if the draw stays the same, 0 if it
+     *         should trip now, or Long.MAX_VALUE if it never does.
+     */
+    long ticksToTrip(double heat, int limit, int draw);
+
+    /**
+     * Trips as soon as the draw is over the limit, as breakers do outside a study.
+     */
+    TripCurve INSTANTANEOUS = new TripCurve(){
+        @Override
+        public int instantaneous(int limit){
+            return limit;
+        }
+
+        @Override
+        public double heat(double heat, int limit, int draw, long ticks){
+            return 0;
+        }
+
+        @Override
+        public long ticksToTrip(double heat, int limit, int draw){
+            return Long.MAX_VALUE;
+        }
+    };
+
+    /**
+     * Trips after constant / (r^exponent - 1) ticks at r times the limit,
+     * the shorter the higher the overload. Time spent over the limit adds
+     * up, and is forgotten as soon as the draw is back within it.
+     */
+    final class InverseTime implements TripCurve {
+        private final double constant;
+        private final double exponent;
+        private final double multiple;
+
+        /**
+         * @param constant Scale of the trip times, in ticks.
+         * @param exponent How steeply the trip time falls with the overload.
+         * @param multiple The instantaneous threshold, in times the limit.
+         */
+        public InverseTime(double constant, double exponent, double multiple){
+            if(!(constant > 0) || !(exponent > 0) || !(multiple >= 1)){
+                throw new IllegalArgumentException("bad inverse time curve");
+            }
+            this.constant = constant;
+            this.exponent = exponent;
+            this.multiple = multiple;
+        }
+
+        @Override
+        public int instantaneous(int limit){
+            return (int) Math.min(Integer.MAX_VALUE, Math.floor(limit * this.multiple));
+        }
+
+        @Override
+        public double heat(double heat, int limit, int draw, long ticks){
+            if(draw <= limit){
+                return 0;
+            }
+            return heat + ticks / this.tripTime(limit, draw);
+        }
+
+        @Override
+        public long ticksToTrip(double heat, int limit, int draw){
+            if(draw <= limit){
+                return Long.MAX_VALUE;
+            }
+            return (long) Math.max(0, Math.ceil((1 - heat) * this.tripTime(limit, draw)));
+        }
+
+        private double tripTime(int limit, int draw){
+            return this.constant / (Math.pow((double) draw / limit, this.exponent) - 1);
+        }
+    }
+
+    /**
+     * A thermal element: the heat moves towards (draw / limit)^2 with a
+     * time constant of tau ticks, and the breaker trips when it reaches 1.
+     * It heats up under an overload and cools down below the limit, so
+     * overloads close together trip it sooner than one alone.
+     */
+    final class Thermal implements TripCurve {
+        private final double tau;
+        private final double multiple;
+
+        /**
+         * @param tau Time constant, in ticks.
+         * @param multiple The instantaneous threshold, in times the limit.
+         */
+        public Thermal(double tau, double multiple){
+            if(!(tau > 0) || !(multiple >= 1)){
+                throw new IllegalArgumentException("bad thermal curve");
+            }
+            this.tau = tau;
+            this.multiple = multiple;
+        }
+
+        @Override
+        public int instantaneous(int limit){
+            return (int) Math.min(Integer.MAX_VALUE, Math.floor(limit * this.multiple));
+        }
+
+        @Override
+        public double heat(double heat, int limit, int draw, long ticks){
+            double target = steady(limit, draw);
+            return target + (heat - target) * Math.exp(-ticks / this.tau);
+        }
+
+        @Override
+        public long ticksToTrip(double heat, int limit, int draw){
+            if(heat >= 1){
+                return 0;
+            }
+            double target = steady(limit, draw);
+            if(target <= 1){
+                return Long.MAX_VALUE;
+            }
+            return (long) Math.ceil(this.tau * Math.log((target - heat) / (target - 1)));
+        }
+
+        private static double steady(int limit, int draw){
+            double r = limit == 0 ? (draw > 0 ? Double.MAX_VALUE : 0) : (double) draw / limit;
+            return r * r;
+        }
+    }
+}
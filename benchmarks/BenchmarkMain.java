@@ -0,0 +1,27 @@
+package components.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the simulation benchmarks with the GC profiler attached, so every
+ * result comes with its allocation rate and bytes allocated per operation.
+ * <br><br>
+ * Usage: java components.benchmarks.BenchmarkMain [benchmark regex]
+ *
+ * @author Yutong Wu
+ */
+public class BenchmarkMain {
+
+    public static void main( String[] args ) throws RunnerException {
+        String include = args.length > 0 ? args[ 0 ] : CircuitBenchmarks.class.getSimpleName();
+        Options options = new OptionsBuilder()
+                .include( include )
+                .addProfiler( GCProfiler.class )
+                .build();
+        new Runner( options ).run();
+    }
+}
@@ -0,0 +1,263 @@
+package components.benchmarks;
+
+import components.Circuit;
+import components.CircuitEvent;
+import components.CircuitModel;
+import components.ComponentCircuit;
+import components.ConfigLoader;
+import components.EventSink;
+import components.Overload;
+import components.Reporter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the hot paths of the simulation, on synthetic trees
+ * of configurable fan-out and depth, on both backends, with reporting on
+ * (every event formatted, then thrown away) and off (every event dropped
+ * before it is built, and a sink that would throw it away anyway).
+ * Startup, toggling and connecting go through the Overload entry points
+ * the REPL uses.
+ * Run them through BenchmarkMain to get allocation figures as well.
+ *
+ * @author Yutong Wu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircuitBenchmarks {
+    private static final int RATING = 1;
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    /**
+     * The shape of the tree and how the simulation is run.
+     */
+    @State(Scope.Benchmark)
+    public static class Shape {
+        @Param({"4", "10"})
+        public int fanOut;
+
+        @Param({"2", "3"})
+        public int depth;
+
+        @Param({"on", "off"})
+        public String reporting;
+
+        @Param({"objects", "compact"})
+        public String backend;
+
+        private EventSink previous;
+
+        @Setup(Level.Trial)
+        public void reporting(){
+            this.previous = Reporter.getSink();
+            if(this.reporting.equals("on")){
+                Reporter.setSink(new FormattingSink());
+                Reporter.setLevel(EnumSet.allOf(Reporter.Msg.class));
+            }else{
+                Reporter.setSink(new DiscardingSink());
+                Reporter.silence();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void restore(){
+            Reporter.setSink(this.previous);
+            Reporter.setLevel(EnumSet.allOf(Reporter.Msg.class));
+        }
+
+        SyntheticTree tree(int leafLimit){
+            return new SyntheticTree(this.fanOut, this.depth, NO_LIMIT, leafLimit, RATING);
+        }
+
+        Circuit empty(){
+            return this.backend.equals("compact") ? new CircuitModel() : new ComponentCircuit();
+        }
+
+        /**
+         * Build a circuit without reporting anything, whatever the reporting mode.
+         */
+        Circuit quietly(SyntheticTree tree){
+            Reporter.mute();
+            try{
+                return tree.build(this.empty());
+            }finally{
+                Reporter.unmute();
+            }
+        }
+    }
+
+    /**
+     * A configuration file of the tree, written once.
+     */
+    @State(Scope.Benchmark)
+    public static class ConfigFile {
+        Path file;
+
+        @Setup(Level.Trial)
+        public void write(Shape shape) throws IOException{
+            this.file = Files.createTempFile("overload-bench", ".config");
+            shape.tree(NO_LIMIT).write(this.file);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException{
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    /**
+     * A freshly built circuit that has not been started up yet.
+     */
+    @State(Scope.Thread)
+    public static class Fresh {
+        Circuit circuit;
+
+        @Setup(Level.Invocation)
+        public void build(Shape shape){
+            this.circuit = shape.quietly(shape.tree(NO_LIMIT));
+        }
+    }
+
+    /**
+     * A running circuit with every breaker on and every appliance off.
+     * Nothing in it can blow.
+     */
+    @State(Scope.Thread)
+    public static class Running {
+        Circuit circuit;
+        SyntheticTree tree;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void build(Shape shape){
+            this.tree = shape.tree(NO_LIMIT);
+            this.circuit = shape.quietly(this.tree);
+            Reporter.mute();
+            try{
+                this.circuit.initialize();
+                for(int level = 1; level <= this.tree.depth(); level++){
+                    for(int b = 0; b < this.tree.breakers(level); b++){
+                        this.circuit.toggle(SyntheticTree.breaker(level, b));
+                    }
+                }
+            }finally{
+                Reporter.unmute();
+            }
+            this.next = 0;
+        }
+    }
+
+    /**
+     * A running circuit whose last level breakers are too weak for their
+     * appliances, which are all switched on: switching one of those breakers
+     * on makes it blow and disengage everything below it.
+     */
+    @State(Scope.Thread)
+    public static class Overloaded {
+        Circuit circuit;
+        SyntheticTree tree;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void build(Shape shape){
+            this.tree = shape.tree(shape.fanOut * RATING - 1);
+            this.circuit = shape.quietly(this.tree);
+            Reporter.mute();
+            try{
+                for(int a = 0; a < this.tree.appliances(); a++){
+                    this.circuit.toggle(SyntheticTree.appliance(a));
+                }
+                this.circuit.initialize();
+                for(int level = 1; level < this.tree.depth(); level++){
+                    for(int b = 0; b < this.tree.breakers(level); b++){
+                        this.circuit.toggle(SyntheticTree.breaker(level, b));
+                    }
+                }
+            }finally{
+                Reporter.unmute();
+            }
+            this.next = 0;
+        }
+    }
+
+    @Benchmark
+    public Circuit parseConfig(Shape shape, ConfigFile config){
+        return ConfigLoader.load(config.file.toString(), shape.empty());
+    }
+
+    @Benchmark
+    public Circuit initialize(Fresh fresh){
+        return Overload.initialize(fresh.circuit);
+    }
+
+    @Benchmark
+    public Circuit toggleLeaf(Running running){
+        int a = running.next++ % running.tree.appliances();
+        return Overload.toggle(running.circuit, SyntheticTree.appliance(a));
+    }
+
+    @Benchmark
+    public Circuit toggleBreaker(Running running){
+        int depth = running.tree.depth();
+        int b = running.next++ % running.tree.breakers(depth);
+        return Overload.toggle(running.circuit, SyntheticTree.breaker(depth, b));
+    }
+
+    @Benchmark
+    public Circuit cascadingTrip(Overloaded overloaded){
+        int depth = overloaded.tree.depth();
+        int b = overloaded.next++ % overloaded.tree.breakers(depth);
+        return Overload.toggle(overloaded.circuit, SyntheticTree.breaker(depth, b));
+    }
+
+    @Benchmark
+    public Circuit connect(Running running){
+        return Overload.connect(running.circuit, "N" + running.next++, SyntheticTree.firstOutlet(), RATING);
+    }
+
+    /**
+     * Formats every event as the stdout sink would, without printing it,
+     * so that "reporting on" measures the cost of the events themselves.
+     */
+    public static class FormattingSink implements EventSink {
+        private final StringBuilder line = new StringBuilder(128);
+        public long characters;
+
+        @Override
+        public void publish(CircuitEvent event){
+            this.line.setLength(0);
+            Reporter.format(event, this.line);
+            this.characters += this.line.length();
+        }
+    }
+
+    /**
+     * Throws every event away, for "reporting off".
+     */
+    public static class DiscardingSink implements EventSink {
+        @Override
+        public void publish(CircuitEvent event){
+        }
+    }
+}
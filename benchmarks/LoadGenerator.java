@@ -0,0 +1,324 @@
+package components.benchmarks;
+
+import components.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Drives a server started with "-serve" from many clients at once over
+ * the loopback address, and tells how fast it answered.
+ * <br><br>
+ * Every client sends its commands pipelined, keeping up to a window of
+ * them waiting for their replies, and times each command from sending it
+ * to reading its "OK" or "ERR" line. The first clients can subscribe to
+ * the events as well; the events they receive are counted. All clients
+ * are run from one thread through a Selector, so thousands of them cost
+ * no more than thousands of sockets.
+ * <br><br>
+ * Usage: java components.benchmarks.LoadGenerator port clients commands
+ * window commandFile [subscribers] [shutdown]
+ * <br>
+ * Each client sends "commands" commands, taken from the lines of the
+ * file in turn, starting at a different line for every client. With
+ * "shutdown" last, the server is told to stop at the end.
+ *
+ * @author Yutong Wu
+ */
+public class LoadGenerator {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final List< String > commands;
+    private final int perClient;
+    private final int window;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long replies;
+    private long rejected;
+    private long events;
+    private long dropped;
+    private long lines;
+
+    /**
+     * @param commands The command lines to send, in turn.
+     * @param perClient How many of them every client sends.
+     * @param window How many commands a client may have waiting for replies.
+     */
+    public LoadGenerator( List< String > commands, int perClient, int window ){
+        this.commands = commands;
+        this.perClient = perClient;
+        this.window = Math.max( 1, window );
+    }
+
+    /**
+     * Connect the clients, send every command and wait for every reply.
+     * @param port Port of the server, on the loopback address.
+     * @param clients How many clients to run.
+     * @param subscribers How many of them subscribe to the events.
+     * @return How long it took from the first connection, in nanoseconds.
+     * @throws IOException if a client cannot connect or loses its connection.
+     */
+    public long run( int port, int clients, int subscribers ) throws IOException{
+        long start = System.nanoTime();
+        InetSocketAddress address = new InetSocketAddress( InetAddress.getLoopbackAddress(), port );
+        try( Selector selector = Selector.open() ){
+            List< Client > all = new ArrayList<>();
+            for( int i = 0; i < clients; i++ ){
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking( false );
+                channel.socket().setTcpNoDelay( true );
+                boolean subscriber = i < subscribers;
+                Client c = new Client( channel, i, subscriber, this.perClient + ( subscriber ? 1 : 0 ), this.window );
+                all.add( c );
+                if( channel.connect( address ) ){
+                    c.key = channel.register( selector, SelectionKey.OP_READ, c );
+                    this.send( c );
+                }else{
+                    c.key = channel.register( selector, SelectionKey.OP_CONNECT, c );
+                }
+            }
+            int unfinished = clients;
+            while( unfinished > 0 ){
+                selector.select();
+                Iterator< SelectionKey > keys = selector.selectedKeys().iterator();
+                while( keys.hasNext() ){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client c = ( Client ) key.attachment();
+                    if( key.isConnectable() ){
+                        c.channel.finishConnect();
+                        key.interestOps( SelectionKey.OP_READ );
+                        this.send( c );
+                    }
+                    if( key.isValid() && key.isWritable() ){
+                        this.write( c );
+                    }
+                    if( key.isValid() && key.isReadable() ){
+                        boolean wasDone = c.isDone();
+                        this.read( c );
+                        this.send( c );
+                        if( !wasDone && c.isDone() ){
+                            unfinished--;
+                        }
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            for( Client c: all ){
+                c.channel.close();
+            }
+            return nanos;
+        }
+    }
+
+    /**
+     * Fill a client's window with commands and write what the socket takes.
+     */
+    private void send( Client c ) throws IOException{
+        while( c.sent < c.total && c.sent - c.replied < this.window ){
+            String command;
+            if( c.subscriber && c.sent == 0 ){
+                command = "subscribe";
+            }else{
+                int index = c.subscriber ? c.sent - 1 : c.sent;
+                command = this.commands.get( ( c.index + index ) % this.commands.size() );
+            }
+            byte[] bytes = ( command + "\n" ).getBytes( StandardCharsets.UTF_8 );
+            if( c.out.remaining() < bytes.length ){
+                break;
+            }
+            c.out.put( bytes );
+            c.sentAt[ c.sent % this.window ] = System.nanoTime();
+            c.sent++;
+        }
+        this.write( c );
+    }
+
+    private void write( Client c ) throws IOException{
+        c.out.flip();
+        c.channel.write( c.out );
+        c.out.compact();
+        int ops = SelectionKey.OP_READ;
+        if( c.out.position() > 0 ){
+            ops |= SelectionKey.OP_WRITE;
+        }
+        c.key.interestOps( ops );
+    }
+
+    /**
+     * Read what came back and match every status line with the oldest
+     * command waiting for one.
+     */
+    private void read( Client c ) throws IOException{
+        if( c.channel.read( c.in ) < 0 ){
+            throw new IOException( "client " + c.index + " lost its connection after "
+                    + c.replied + " replies" );
+        }
+        byte[] bytes = c.in.array();
+        int start = 0;
+        for( int i = 0; i < c.in.position(); i++ ){
+            if( bytes[ i ] != '\n' ){
+                continue;
+            }
+            this.lines++;
+            if( startsWith( bytes, start, i, "OK" ) && i - start == 2 ){
+                this.reply( c );
+            }else if( startsWith( bytes, start, i, "ERR " ) ){
+                this.rejected++;
+                this.reply( c );
+            }else if( startsWith( bytes, start, i, "EVENT " ) ){
+                this.events++;
+            }else if( startsWith( bytes, start, i, "DROPPED " ) ){
+                this.dropped += Long.parseLong( new String( bytes, start + 8, i - start - 8, StandardCharsets.US_ASCII ) );
+            }
+            start = i + 1;
+        }
+        c.in.flip();
+        c.in.position( start );
+        c.in.compact();
+    }
+
+    private void reply( Client c ){
+        this.latency.record( System.nanoTime() - c.sentAt[ c.replied % this.window ] );
+        c.replied++;
+        this.replies++;
+    }
+
+    private static boolean startsWith( byte[] bytes, int from, int to, String prefix ){
+        if( to - from < prefix.length() ){
+            return false;
+        }
+        for( int i = 0; i < prefix.length(); i++ ){
+            if( bytes[ from + i ] != prefix.charAt( i ) ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The latency of every command, from sending it to its reply.
+     */
+    public LatencyHistogram getLatency(){
+        return this.latency;
+    }
+
+    /**
+     * @return The number of replies read.
+     */
+    public long getReplies(){
+        return this.replies;
+    }
+
+    /**
+     * @return The number of "ERR" replies among them.
+     */
+    public long getRejected(){
+        return this.rejected;
+    }
+
+    /**
+     * @return The number of events the subscribers received.
+     */
+    public long getEvents(){
+        return this.events;
+    }
+
+    /**
+     * @return The number of events the server dropped for the subscribers.
+     */
+    public long getDropped(){
+        return this.dropped;
+    }
+
+    /**
+     * @return The number of lines read, output and events included.
+     */
+    public long getLines(){
+        return this.lines;
+    }
+
+    /**
+     * Tell the server to stop.
+     * @param port Port of the server, on the loopback address.
+     * @throws IOException if the server cannot be reached.
+     */
+    public static void shutdown( int port ) throws IOException{
+        try( SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress( InetAddress.getLoopbackAddress(), port ) ) ){
+            channel.write( ByteBuffer.wrap( "shutdown\n".getBytes( StandardCharsets.US_ASCII ) ) );
+            channel.read( ByteBuffer.allocate( 16 ) );
+        }
+    }
+
+    public static void main( String[] args ) throws IOException{
+        if( args.length < 5 ){
+            System.err.println( "Usage: java components.benchmarks.LoadGenerator port clients commands window"
+                    + " commandFile [subscribers] [shutdown]" );
+            System.exit( 1 );
+        }
+        int port = Integer.parseInt( args[ 0 ] );
+        int clients = Integer.parseInt( args[ 1 ] );
+        int perClient = Integer.parseInt( args[ 2 ] );
+        int window = Integer.parseInt( args[ 3 ] );
+        List< String > commands = new ArrayList<>();
+        for( String line: Files.readAllLines( Paths.get( args[ 4 ] ) ) ){
+            if( !line.trim().isEmpty() ){
+                commands.add( line.trim() );
+            }
+        }
+        int subscribers = args.length > 5 && !args[ 5 ].equals( "shutdown" ) ? Integer.parseInt( args[ 5 ] ) : 0;
+        boolean stop = args[ args.length - 1 ].equals( "shutdown" );
+        LoadGenerator generator = new LoadGenerator( commands, perClient, window );
+        long nanos = generator.run( port, clients, subscribers );
+        LatencyHistogram h = generator.getLatency();
+        System.out.printf( "%d clients, %d replies (%d rejected) in %.1f ms (%.0f commands/sec)%n",
+                clients, generator.getReplies(), generator.getRejected(), nanos / 1e6,
+                generator.getReplies() * 1e9 / nanos );
+        System.out.printf( "Latency: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                h.getMean() / 1e3, h.getPercentile( 0.5 ) / 1e3, h.getPercentile( 0.99 ) / 1e3, h.getMax() / 1e3 );
+        System.out.printf( "Lines read %d, events received %d, dropped %d%n",
+                generator.getLines(), generator.getEvents(), generator.getDropped() );
+        if( stop ){
+            shutdown( port );
+        }
+    }
+
+    /**
+     * One connection and where it is in its commands.
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final int index;
+        final boolean subscriber;
+        final ByteBuffer out = ByteBuffer.allocate( BUFFER_SIZE );
+        final ByteBuffer in = ByteBuffer.allocate( BUFFER_SIZE );
+        final long[] sentAt;
+        final int total;
+        SelectionKey key;
+        int sent;
+        int replied;
+
+        Client( SocketChannel channel, int index, boolean subscriber, int total, int window ){
+            this.channel = channel;
+            this.index = index;
+            this.subscriber = subscriber;
+            this.total = total;
+            this.sentAt = new long[ window ];
+        }
+
+        boolean isDone(){
+            return this.replied == this.total;
+        }
+    }
+}
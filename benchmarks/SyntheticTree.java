@@ -0,0 +1,173 @@
+package components.benchmarks;
+
+import components.Circuit;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates synthetic circuits for the benchmarks: one PowerSource,
+ * levels of CircuitBreakers with a given fan-out, an Outlet under every
+ * breaker of the last level and fan-out Appliances on every Outlet.
+ * The breakers of the last level can get their own, lower, limit so that
+ * they blow while the ones above them hold.
+ *
+ * @author Yutong Wu
+ */
+public class SyntheticTree {
+    private final int fanOut;
+    private final int depth;
+    private final int limit;
+    private final int leafLimit;
+    private final int rating;
+
+    /**
+     * @param fanOut Number of loads under every breaker and outlet.
+     * @param depth Number of levels of breakers, at least 1.
+     * @param limit Limit of the breakers above the last level.
+     * @param leafLimit Limit of the breakers of the last level.
+     * @param rating Rating of every appliance.
+     */
+    public SyntheticTree(int fanOut, int depth, int limit, int leafLimit, int rating){
+        this.fanOut = fanOut;
+        this.depth = Math.max(1, depth);
+        this.limit = limit;
+        this.leafLimit = leafLimit;
+        this.rating = rating;
+    }
+
+    /**
+     * @return Number of levels of breakers.
+     */
+    public int depth(){
+        return this.depth;
+    }
+
+    /**
+     * @param level Level of the breakers, from 1.
+     * @return Number of breakers on that level.
+     */
+    public int breakers(int level){
+        return (int) Math.pow(this.fanOut, level);
+    }
+
+    /**
+     * @return Number of appliances in the tree.
+     */
+    public int appliances(){
+        return (int) Math.pow(this.fanOut, this.depth + 1);
+    }
+
+    /**
+     * @param i Index of an appliance, from 0.
+     * @return Its name.
+     */
+    public static String appliance(int i){
+        return "A" + i;
+    }
+
+    /**
+     * @param level Level of the breaker, from 1.
+     * @param i Index of the breaker on its level, from 0.
+     * @return Its name.
+     */
+    public static String breaker(int level, int i){
+        return "B" + level + "_" + i;
+    }
+
+    /**
+     * @return The name of the outlet the first appliance is on.
+     */
+    public static String firstOutlet(){
+        return "O0";
+    }
+
+    /**
+     * Add the tree to a circuit.
+     * @param circuit An empty circuit, either backend.
+     * @return The circuit.
+     */
+    public Circuit build(Circuit circuit){
+        this.emit(new Sink(){
+            public void source(String name){
+                circuit.addPowerSource(name);
+            }
+            public void breaker(String name, String source, int limit){
+                circuit.addCircuitBreaker(name, source, limit);
+            }
+            public void outlet(String name, String source){
+                circuit.addOutlet(name, source);
+            }
+            public void appliance(String name, String source){
+                circuit.addAppliance(name, source, SyntheticTree.this.rating);
+            }
+        });
+        return circuit;
+    }
+
+    /**
+     * Write the tree as a configuration file.
+     * @param file Where to write it.
+     * @throws IOException if it cannot be written.
+     */
+    public void write(Path file) throws IOException{
+        try(BufferedWriter out = Files.newBufferedWriter(file)){
+            IOException[] failure = new IOException[1];
+            this.emit(new Sink(){
+                public void source(String name){
+                    line("PowerSource " + name);
+                }
+                public void breaker(String name, String source, int limit){
+                    line("CircuitBreaker " + name + " " + source + " " + limit);
+                }
+                public void outlet(String name, String source){
+                    line("Outlet " + name + " " + source);
+                }
+                public void appliance(String name, String source){
+                    line("Appliance " + name + " " + source + " " + SyntheticTree.this.rating);
+                }
+                private void line(String text){
+                    try{
+                        out.write(text);
+                        out.newLine();
+                    }catch(IOException ioe){
+                        failure[0] = ioe;
+                    }
+                }
+            });
+            if(failure[0] != null){
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     * Walk the tree level by level, sources before loads.
+     */
+    private void emit(Sink sink){
+        sink.source("Root");
+        int width = 1;
+        for(int level = 1; level <= this.depth; level++){
+            for(int b = 0; b < width * this.fanOut; b++){
+                String source = level == 1 ? "Root" : breaker(level - 1, b / this.fanOut);
+                sink.breaker(breaker(level, b), source, level == this.depth ? this.leafLimit : this.limit);
+            }
+            width *= this.fanOut;
+        }
+        for(int o = 0; o < width; o++){
+            sink.outlet("O" + o, breaker(this.depth, o));
+            for(int a = 0; a < this.fanOut; a++){
+                sink.appliance(appliance(o * this.fanOut + a), "O" + o);
+            }
+        }
+    }
+
+    private interface Sink {
+        void source(String name);
+        void breaker(String name, String source, int limit);
+        void outlet(String name, String source);
+        void appliance(String name, String source);
+    }
+}
@@ -2,8 +2,19 @@ package components.testing;
 
 import components.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.stream.Stream;
 
 import static java.util.Map.entry;
 
@@ -35,7 +46,11 @@ public class Tests {
                         entry( 1, Tests::oneAppl ),
                         entry( 2, Tests::twoApplWithCB ),
                         entry( 3, Tests::treeOf15 ),
-                        entry( 4, Tests::multiCircuit )
+                        entry( 4, Tests::multiCircuit ),
+                        entry( 5, Tests::concurrentBackends ),
+                        entry( 6, Tests::logRecovery ),
+                        entry( 7, Tests::undoRedoDiff ),
+                        entry( 8, Tests::whyBreakerBlew )
                 )
             );
 
@@ -183,4 +198,306 @@ public class Tests {
         breaker2.turnOn();
     }
 
+    /**
+     * The same toggles, carried out by every way of running a circuit
+     * in parallel, must leave the circuit as a plain circuit of
+     * Components does. Events are turned off, since threads would print
+     * them in no set order; only the final circuits are compared.
+     */
+    public static void concurrentBackends() {
+        List< String > toggles = new ArrayList<>();
+        String expected = capture( () -> {
+            Circuit circuit = new ComponentCircuit();
+            neighbourhood( circuit, toggles );
+            circuit.initialize();
+            toggles.forEach( circuit::toggle );
+            circuit.display();
+        } );
+        System.out.println( toggles.size() + " toggles" );
+
+        boolean parallel = ParallelPower.isEnabled();
+        ParallelPower.setEnabled( true );
+        compare( "fork-join loads", expected, () -> {
+            Circuit circuit = new ComponentCircuit();
+            neighbourhood( circuit, new ArrayList<>() );
+            circuit.initialize();
+            toggles.forEach( circuit::toggle );
+            circuit.display();
+        } );
+        ParallelPower.setEnabled( parallel );
+
+        compare( "partitioned components", expected,
+                () -> partitioned( new ComponentCircuit(), toggles ) );
+        compare( "partitioned model", expected,
+                () -> partitioned( new CircuitModel(), toggles ) );
+
+        compare( "concurrent simulator", expected, () -> {
+            ComponentCircuit circuit = new ComponentCircuit();
+            neighbourhood( circuit, new ArrayList<>() );
+            circuit.initialize();
+            ConcurrentSimulator simulator = new ConcurrentSimulator( circuit );
+            List< Thread > threads = new ArrayList<>();
+            for ( int s = 0; s < 2; s++ ) {
+                String source = "Source" + s;
+                Thread t = new Thread( () -> {
+                    for ( String name : toggles ) {
+                        if ( name.startsWith( source ) ) {
+                            simulator.toggle( name );
+                        }
+                    }
+                } );
+                threads.add( t );
+                t.start();
+            }
+            for ( Thread t : threads ) {
+                try {
+                    t.join();
+                }
+                catch( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            circuit.display();
+        } );
+    }
+
+    /**
+     * Log commands as they are carried out, then rebuild the circuit
+     * from the last checkpoint and the log, as after a crash.
+     */
+    public static void logRecovery() {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory( "overload-tests" );
+            CommandLog log = new CommandLog( dir, 1000 );
+            Circuit circuit = new ComponentCircuit();
+            house( circuit, "" );
+            circuit.initialize();
+            log.checkpoint( circuit );
+            String[][] commands = {
+                    { "toggle", "Breaker1" }, { "toggle", "Breaker2" },
+                    { "toggle", "Heater" }, { "toggle", "Light1" },
+                    { "toggle", "ECar1" }, { "toggle", "ECar2" },
+                    { "toggle", "ECar3" }, { "toggle", "ECar4" },
+                    { "toggle", "ECar4" }, { "toggle", "Breaker2" },
+                    { "toggle", "Light1" }
+            };
+            for ( String[] command : commands ) {
+                circuit = Overload.execute( circuit, command, command.length );
+                log.append( command, command.length );
+            }
+            log.close();
+            Circuit running = circuit;
+            String expected = capture( running::display );
+
+            CommandLog reopened = new CommandLog( dir, 1000 );
+            Circuit recovered = reopened.recover( false );
+            System.out.println( "Replayed " + reopened.getReplayed() +
+                    " commands, rejected " + reopened.getRejected() );
+            compare( "recovered circuit", expected, recovered::display );
+            reopened.close();
+        }
+        catch( IOException ioe ) {
+            throw new UncheckedIOException( ioe );
+        }
+        finally {
+            delete( dir );
+        }
+    }
+
+    /**
+     * Step back and forth through the versions of a circuit, and list
+     * what changed between two of them.
+     */
+    public static void undoRedoDiff() {
+        Circuit circuit = new ComponentCircuit();
+        house( circuit, "" );
+        circuit.initialize();
+        run( circuit, "history 10" );
+        run( circuit, "toggle Breaker1" );
+        run( circuit, "toggle Light1" );
+        run( circuit, "toggle Light2" );
+        run( circuit, "toggle Light3" );
+        run( circuit, "toggle Heater" ); // Circuit breaker should blow here.
+        run( circuit, "undo" );
+        circuit.display();
+        run( circuit, "undo" );
+        run( circuit, "redo" );
+        run( circuit, "diff 0 5" );
+        run( circuit, "redo" );
+        run( circuit, "diff 4 5" );
+        try {
+            run( circuit, "redo" ); // Nothing left to redo.
+        }
+        catch( CommandException ce ) {
+            System.out.println( "redo refused: " +
+                    Reporter.errorMessage( ce.getErrorNumber() ) );
+        }
+        run( circuit, "history 1000" );
+    }
+
+    /**
+     * Blow a circuit breaker and ask why it blew, and ask the same of
+     * one that never did.
+     */
+    public static void whyBreakerBlew() {
+        Circuit circuit = new ComponentCircuit();
+        house( circuit, "Why" );
+        circuit.initialize();
+        run( circuit, "toggle WhyBreaker1" );
+        run( circuit, "toggle WhyLight1" );
+        run( circuit, "toggle WhyLight2" );
+        run( circuit, "toggle WhyLight3" );
+        run( circuit, "toggle WhyHeater" ); // Circuit breaker should blow here.
+        run( circuit, "toggle WhyHeater" );
+        run( circuit, "toggle WhyBreaker1" );
+        run( circuit, "why WhyBreaker1" );
+        run( circuit, "why WhyBreaker2" );
+    }
+
+    /**
+     * Build the circuit of treeOf15 through the Circuit interface.
+     * @param circuit The empty circuit to fill.
+     * @param prefix Put in front of every name, to tell circuits apart.
+     */
+    private static void house( Circuit circuit, String prefix ) {
+        circuit.addPowerSource( prefix + "Root" );
+        circuit.addCircuitBreaker( prefix + "Breaker1", prefix + "Root", 15 );
+        circuit.addCircuitBreaker( prefix + "Breaker2", prefix + "Root", 25 );
+        circuit.addOutlet( prefix + "Outlet1A", prefix + "Breaker1" );
+        circuit.addOutlet( prefix + "Outlet1B", prefix + "Breaker1" );
+        circuit.addOutlet( prefix + "Outlet2A", prefix + "Breaker2" );
+        circuit.addOutlet( prefix + "Outlet2B", prefix + "Breaker2" );
+        circuit.addAppliance( prefix + "Light1", prefix + "Outlet1A", 1 );
+        circuit.addAppliance( prefix + "Light2", prefix + "Outlet1A", 1 );
+        circuit.addAppliance( prefix + "Light3", prefix + "Outlet1B", 1 );
+        circuit.addAppliance( prefix + "Heater", prefix + "Outlet1B", 13 );
+        circuit.addAppliance( prefix + "ECar1", prefix + "Outlet2A", 7 );
+        circuit.addAppliance( prefix + "ECar2", prefix + "Outlet2A", 7 );
+        circuit.addAppliance( prefix + "ECar3", prefix + "Outlet2B", 7 );
+        circuit.addAppliance( prefix + "ECar4", prefix + "Outlet2B", 7 );
+    }
+
+    /**
+     * Build two power sources with two circuit breakers each, and
+     * outlets large enough to be worked on in parallel, and list toggles that switch
+     * the breakers on, switch appliances on one at a time until the
+     * breakers blow, switch some off again and switch the breakers back
+     * on with their loads under the limit.
+     * @param circuit The empty circuit to fill.
+     * @param toggles Where to list the toggles.
+     */
+    private static void neighbourhood( Circuit circuit, List< String > toggles ) {
+        List< String > breakers = new ArrayList<>();
+        List< String > appliances = new ArrayList<>();
+        List< String > extra = new ArrayList<>();
+        for ( int s = 0; s < 2; s++ ) {
+            String source = "Source" + s;
+            circuit.addPowerSource( source );
+            for ( int b = 0; b < 2; b++ ) {
+                String breaker = source + "Breaker" + b;
+                circuit.addCircuitBreaker( breaker, source, 150 + 100 * b );
+                breakers.add( breaker );
+                for ( int o = 0; o < 2; o++ ) {
+                    String outlet = breaker + "Outlet" + o;
+                    circuit.addOutlet( outlet, breaker );
+                    for ( int a = 0; a < 130; a++ ) {
+                        String appliance = outlet + "Appliance" + a;
+                        circuit.addAppliance( appliance, outlet, 1 + ( o + a ) % 5 );
+                        appliances.add( appliance );
+                        if ( a >= 20 ) {
+                            extra.add( appliance );
+                        }
+                    }
+                }
+            }
+        }
+        toggles.addAll( breakers );
+        toggles.addAll( appliances );
+        toggles.addAll( extra );
+        toggles.addAll( breakers );
+    }
+
+    /**
+     * Run the toggles through a partitioned circuit and show the result.
+     * @param circuit The empty circuit to partition.
+     * @param toggles The toggles to carry out.
+     */
+    private static void partitioned( Circuit circuit, List< String > toggles ) {
+        neighbourhood( circuit, new ArrayList<>() );
+        circuit.initialize();
+        PartitionedCircuit split = new PartitionedCircuit( circuit );
+        toggles.forEach( split::toggle );
+        split.drain();
+        split.display();
+        split.close();
+    }
+
+    /**
+     * Carry out one command the way the Overload program does.
+     * @param circuit The circuit.
+     * @param line The command.
+     */
+    private static void run( Circuit circuit, String line ) {
+        System.out.println( "> " + line );
+        String[] words = line.split( " " );
+        Overload.execute( circuit, words, words.length );
+    }
+
+    /**
+     * Tell whether something prints what was expected.
+     * @param what What is compared, for the message.
+     * @param expected The output expected.
+     * @param action What to run.
+     */
+    private static void compare( String what, String expected, Runnable action ) {
+        String actual = capture( action );
+        System.out.println( what + ": " +
+                ( actual.equals( expected ) ? "same circuit" : "DIFFERENT circuit" ) );
+    }
+
+    /**
+     * Run something with no events reported, from any thread, and its
+     * output kept aside.
+     * @param action What to run.
+     * @return What it printed.
+     */
+    private static String capture( Runnable action ) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        Reporter.silence();
+        System.setOut( new PrintStream( kept, true ) );
+        try {
+            action.run();
+        }
+        finally {
+            System.setOut( out );
+            Reporter.setLevel( EnumSet.allOf( Reporter.Msg.class ) );
+        }
+        return kept.toString();
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     * @param dir The directory, or null.
+     */
+    private static void delete( Path dir ) {
+        if ( dir == null ) {
+            return;
+        }
+        try ( Stream< Path > files = Files.walk( dir ) ) {
+            files.sorted( Comparator.reverseOrder() ).forEach( f -> {
+                try {
+                    Files.delete( f );
+                }
+                catch( IOException ioe ) {
+                    throw new UncheckedIOException( ioe );
+                }
+            } );
+        }
+        catch( IOException ioe ) {
+            throw new UncheckedIOException( ioe );
+        }
+    }
+
 }